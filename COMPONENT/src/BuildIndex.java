@@ -0,0 +1,52 @@
+/*
+  builds a B+-tree index on one column of a table from its
+  <tablename>.tbl file in slotted page format. the schema of
+  the table is read from <tablename>.md and the index is
+  written to <tablename>.<column>.idx (see BPlusTree).
+  the index has to be built again whenever the table is.
+*/
+
+import qp.utils.Attribute;
+import qp.utils.BPlusTree;
+import qp.utils.Schema;
+
+import java.io.*;
+
+public class BuildIndex {
+
+    public static void main(String[] args) throws IOException {
+        // check the arguments
+        if (args.length != 2) {
+            System.out.println("usage: java BuildIndex <tablename> <column> \n creates <tablename>.<column>.idx");
+            System.exit(1);
+        }
+        String tblname = args[0];
+        String colname = args[1];
+        String mdfile = tblname + ".md";
+
+        Schema schema = null;
+        try {
+            ObjectInputStream ins = new ObjectInputStream(new FileInputStream(mdfile));
+            schema = (Schema) ins.readObject();
+            ins.close();
+        } catch (ClassNotFoundException ce) {
+            System.out.println("class not found exception --- error in schema object file");
+            System.exit(1);
+        }
+
+        int column = schema.indexOf(new Attribute(tblname, colname));
+        if (column < 0) {
+            System.out.println("BuildIndex: no column " + colname + " in table " + tblname);
+            System.exit(1);
+        }
+
+        try {
+            BPlusTree.build(tblname, schema, column);
+        } catch (IOException io) {
+            System.out.println("BuildIndex: " + io.getMessage());
+            System.exit(1);
+        }
+        System.out.println("created " + BPlusTree.fileName(tblname, colname));
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+  converts a <tablename>.tbl file written with java serialization
+  (one Tuple object per record) into binary slotted pages of <pagesize> bytes.
+  the schema of the table is read from <tablename>.md
+*/
+
+import qp.utils.Batch;
+import qp.utils.Schema;
+import qp.utils.SlottedPage;
+import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
+import qp.utils.ZoneMap;
+
+import java.io.*;
+
+public class ConvertTblFormat {
+
+    public static void main(String[] args) throws IOException {
+        // check the arguments
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("usage: java ConvertTblFormat <tablename> [pagesize] \n rewrites <tablename>.tbl as slotted pages");
+            System.exit(1);
+        }
+        String tblname = args[0];
+        String mdfile = tblname + ".md";
+        String tblfile = tblname + ".tbl";
+        String tmpfile = tblname + ".tbl.tmp";
+        Batch.setPageSize(args.length == 2 ? Integer.parseInt(args[1]) : SlottedPage.DEFAULT_PAGE_SIZE);
+
+        if (TupleReader.isPageFile(tblfile)) {
+            System.out.println(tblfile + " is already in slotted page format");
+            return;
+        }
+
+        Schema schema = null;
+        try {
+            ObjectInputStream ins = new ObjectInputStream(new FileInputStream(mdfile));
+            schema = (Schema) ins.readObject();
+            ins.close();
+        } catch (ClassNotFoundException ce) {
+            System.out.println("class not found exception --- error in schema object file");
+            System.exit(1);
+        }
+
+        /** open the input and output streams **/
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(tblfile));
+        TupleWriter out = new TupleWriter(tmpfile, schema);
+        ZoneMap zonemap = new ZoneMap(schema);
+        out.setZoneMap(zonemap);
+        if (!out.open()) {
+            System.exit(1);
+        }
+
+        try {
+            while (true) {
+                out.next((Tuple) in.readObject());
+            }
+        } catch (EOFException e) {
+            // all the tuples have been converted
+        } catch (ClassNotFoundException ce) {
+            System.out.println("class not found exception --- error in table file");
+            System.exit(1);
+        }
+        in.close();
+        out.close();
+
+        File converted = new File(tmpfile);
+        File original = new File(tblfile);
+        if (!original.delete() || !converted.renameTo(original)) {
+            System.out.println("error in replacing " + tblfile + " with " + tmpfile);
+            System.exit(1);
+        }
+        zonemap.write(tblfile);
+        System.out.println(tblfile + ": " + out.getNumTuple() + " tuples in " + out.getNumBatch() + " pages");
+    }
+
+}
@@ -3,35 +3,49 @@
   attributes of the relation. each subsequent line represents 1
   tuple of the relation. also assume that the fields of each line
   is delimited by tabs ("\t")
+  the table is written as binary slotted pages of <pagesize> bytes
+  the values of each STRING column are replaced by their position
+  in the sorted list of its distinct values, written to <tablename>.dict
+  with -compress each page of the table is compressed (see PageCodec)
 */
 
 import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.Dictionary;
+import qp.utils.PageCodec;
 import qp.utils.Schema;
+import qp.utils.SlottedPage;
 import qp.utils.Tuple;
+import qp.utils.TupleWriter;
+import qp.utils.ZoneMap;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
 
 public class ConvertTxtToTbl {
 
     public static void main(String[] args) throws IOException {
         // check the arguments
-        if (args.length != 1) {
-            System.out.println("usage: java ConvertTxtToTbl <tablename> \n creats <tablename>.tbl files");
+        if (args.length > 0 && args[0].equals("-compress")) {
+            PageCodec.setEnabled(true);
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("usage: java ConvertTxtToTbl [-compress] <tablename> [pagesize] \n creats <tablename>.tbl files");
             System.exit(1);
         }
         String tblname = args[0];
         String mdfile = tblname + ".md";
         String tblfile = tblname + ".tbl";
-
-        /** open the input and output streams **/
-        BufferedReader in = new BufferedReader(new FileReader(tblname + ".txt"));
-        ObjectOutputStream outtbl = new ObjectOutputStream(new FileOutputStream(tblfile));
+        Batch.setPageSize(args.length == 2 ? Integer.parseInt(args[1]) : SlottedPage.DEFAULT_PAGE_SIZE);
 
         /** First Line is METADATA **/
         int linenum = 0;
         String line;
+        StringTokenizer tokenizer;
         Schema schema = null;
         try {
             ObjectInputStream ins = new ObjectInputStream(new FileInputStream(mdfile));
@@ -41,8 +55,45 @@ public class ConvertTxtToTbl {
             System.exit(1);
         }
 
+        /** collect the distinct values of the STRING columns **/
+        int numcols = schema.getNumCols();
+        ArrayList<TreeSet<String>> distinct = new ArrayList<>();
+        for (int i = 0; i < numcols; ++i) {
+            distinct.add(schema.typeOf(i) == Attribute.STRING ? new TreeSet<>() : null);
+        }
+        BufferedReader in = new BufferedReader(new FileReader(tblname + ".txt"));
+        while ((line = in.readLine()) != null) {
+            tokenizer = new StringTokenizer(line);
+            for (int attrIndex = 0; tokenizer.hasMoreElements() && attrIndex < numcols; ++attrIndex) {
+                String dataElement = tokenizer.nextToken();
+                if (distinct.get(attrIndex) != null) {
+                    distinct.get(attrIndex).add(dataElement);
+                }
+            }
+        }
+        in.close();
+
+        /** the codes are stored as INT in the table **/
+        Dictionary[] dictionaries = new Dictionary[numcols];
+        boolean[] coded = new boolean[numcols];
+        for (int i = 0; i < numcols; ++i) {
+            if (distinct.get(i) != null) {
+                dictionaries[i] = new Dictionary(distinct.get(i).toArray(new String[0]));
+                coded[i] = true;
+            }
+        }
+        Schema stored = Dictionary.withCodes(schema, coded);
+
+        /** open the input stream and the output pages **/
+        in = new BufferedReader(new FileReader(tblname + ".txt"));
+        TupleWriter outtbl = new TupleWriter(tblfile, stored);
+        ZoneMap zonemap = new ZoneMap(stored);
+        outtbl.setZoneMap(zonemap);
+        if (!outtbl.open()) {
+            System.exit(1);
+        }
+
         boolean flag = false;
-        StringTokenizer tokenizer;
         while ((line = in.readLine()) != null) {
             linenum++;
             tokenizer = new StringTokenizer(line);
@@ -58,7 +109,7 @@ public class ConvertTxtToTbl {
                 } else if (datatype == Attribute.REAL) {
                     data.add(Float.valueOf(dataElement));
                 } else if (datatype == Attribute.STRING) {
-                    data.add(dataElement);
+                    data.add(dictionaries[attrIndex].code(dataElement));
                 } else {
                     System.err.println("Invalid data type");
                     System.exit(1);
@@ -66,10 +117,12 @@ public class ConvertTxtToTbl {
                 attrIndex++;
             }
             Tuple tuple = new Tuple(data);
-            outtbl.writeObject(tuple);
+            outtbl.next(tuple);
         }
         outtbl.close();
         in.close();
+        zonemap.write(tblfile);
+        Dictionary.write(tblfile, schema, dictionaries);
     }
 
 }
@@ -3,7 +3,11 @@
  **/
 
 import qp.operators.Debug;
+import qp.operators.Exchange;
+import qp.operators.IndexScan;
 import qp.operators.Operator;
+import qp.operators.Scan;
+import qp.operators.Sort;
 import qp.optimizer.BufferManager;
 import qp.optimizer.PlanCost;
 import qp.optimizer.RandomOptimizer;
@@ -12,15 +16,18 @@ import qp.parser.parser;
 import qp.utils.*;
 
 import java.io.*;
+import java.util.ArrayList;
 
 public class QueryMain {
 
     static PrintWriter out;
     static int numAtts;
+    static Dictionary[] dictionaries;  // Dictionary of each column of the result holding codes
 
     public static void main(String[] args) {
+        args = parseOptions(args);
         if (args.length < 2) {
-            System.out.println("usage: java QueryMain <queryfilename> <resultfile> <pagesize> <numbuffer>");
+            System.out.println("usage: java QueryMain [-mmap] [-vector] [-pool <frames>] [-policy clock|lruk] [-parallel <workers>] [-runs load|replacement] [-indexscan <fraction>] [-compress <level>] <queryfilename> <resultfile> <pagesize> <numbuffer>");
             System.exit(1);
         }
 
@@ -36,6 +43,82 @@ public class QueryMain {
         executeQuery(root, args[1]);
     }
 
+    /**
+     * Apply the options (arguments starting with '-') and return the remaining arguments
+     * * -mmap: scan the base tables through a memory mapping of the table files
+     * * -vector: scan the base tables into column batches filtered and projected in place
+     * * -pool <frames>: number of pages cached by the buffer pool
+     * * -policy clock|lruk: replacement policy of the buffer pool
+     * * -parallel <workers>: scan the inputs of the joins on this many threads
+     * * -runs load|replacement: generate the sorted runs of Sort by sorting memory loads
+     * *   or by replacement selection (default)
+     * * -indexscan <fraction>: largest estimated selectivity of a selection done by an index scan
+     * *   (default 0.1, 0 never uses the indexes for selections)
+     * * -compress <level>: compress the pages of the temporary files and the sorted runs
+     * *   with this Deflater level, from 1 (fastest) to 9 (smallest)
+     **/
+    private static String[] parseOptions(String[] args) {
+        ArrayList<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("-mmap")) {
+                Scan.setMemoryMapped(true);
+            } else if (arg.equals("-vector")) {
+                Scan.setVectorized(true);
+            } else if (arg.equals("-pool") && i + 1 < args.length) {
+                int frames = Integer.parseInt(args[++i]);
+                if (frames < 1) {
+                    System.out.println("the buffer pool needs at least one frame");
+                    System.exit(1);
+                }
+                BufferManager.setPoolSize(frames);
+            } else if (arg.equals("-policy") && i + 1 < args.length) {
+                if (!BufferManager.setReplacementPolicy(args[++i])) {
+                    System.out.println("unknown replacement policy " + args[i]);
+                    System.exit(1);
+                }
+            } else if (arg.equals("-parallel") && i + 1 < args.length) {
+                int workers = Integer.parseInt(args[++i]);
+                if (workers < 1) {
+                    System.out.println("at least one worker is required");
+                    System.exit(1);
+                }
+                Exchange.setNumWorkers(workers);
+            } else if (arg.equals("-runs") && i + 1 < args.length) {
+                String strategy = args[++i];
+                if (strategy.equals("load")) {
+                    Sort.setRunGeneration(Sort.LOAD_SORT);
+                } else if (strategy.equals("replacement")) {
+                    Sort.setRunGeneration(Sort.REPLACEMENT_SELECTION);
+                } else {
+                    System.out.println("unknown run generation " + strategy);
+                    System.exit(1);
+                }
+            } else if (arg.equals("-indexscan") && i + 1 < args.length) {
+                double fraction = Double.parseDouble(args[++i]);
+                if (fraction < 0 || fraction > 1) {
+                    System.out.println("the selectivity of -indexscan must be between 0 and 1");
+                    System.exit(1);
+                }
+                IndexScan.setThreshold(fraction);
+            } else if (arg.equals("-compress") && i + 1 < args.length) {
+                int level = Integer.parseInt(args[++i]);
+                if (level < 1 || level > 9) {
+                    System.out.println("the level of -compress must be between 1 and 9");
+                    System.exit(1);
+                }
+                PageCodec.setEnabled(true);
+                PageCodec.setLevel(level);
+            } else if (arg.startsWith("-")) {
+                System.out.println("unknown option " + arg);
+                System.exit(1);
+            } else {
+                rest.add(arg);
+            }
+        }
+        return rest.toArray(new String[0]);
+    }
+
     /**
      * Get page size from arguments, if not provided request as input
      **/
@@ -175,6 +258,7 @@ public class QueryMain {
         /** Print the schema of the result **/
         Schema schema = root.getSchema();
         numAtts = schema.getNumCols();
+        dictionaries = Dictionary.codedColumns(schema);
         printSchema(schema);
 
         /** Print each tuple in the result **/
@@ -190,6 +274,19 @@ public class QueryMain {
         long endtime = System.currentTimeMillis();
         double executiontime = (endtime - starttime) / 1000.0;
         System.out.println("Execution time = " + executiontime);
+        BufferPool pool = BufferManager.getBufferPool();
+        System.out.printf("Buffer pool: %d hits, %d misses, %d pages written back\n",
+                pool.getNumHits(), pool.getNumMisses(), pool.getNumWrites());
+        if (Scan.getTotalSkippedPages() > 0) {
+            System.out.printf("Zone maps: %d pages skipped\n", Scan.getTotalSkippedPages());
+        }
+        if (PageCodec.getNumPages() > 0) {
+            System.out.printf("Page codec: %d pages of %d bytes written in %d bytes\n",
+                    PageCodec.getNumPages(), PageCodec.getRawBytes(), PageCodec.getStoredBytes());
+        }
+        if (Sort.getTotalNumRuns() > 0) {
+            System.out.printf("Sort: %d sorted runs, %d passes\n", Sort.getTotalNumRuns(), Sort.getTotalNumPasses());
+        }
         return executiontime;
     }
 
@@ -211,15 +308,17 @@ public class QueryMain {
 
     protected static void printTuple(Tuple t) {
         for (int i = 0; i < numAtts; ++i) {
-            Object data = t.dataAt(i);
-            if (data instanceof Integer) {
-                out.print(((Integer) data).intValue() + "\t");
-            } else if (data instanceof Float) {
-                out.print(((Float) data).floatValue() + "\t");
-            } else if (data == null) {
+            int type = t.typeAt(i);
+            if (type == Attribute.STRING && t.getString(i) == null) {
                 out.print("-NULL-\t");
+            } else if (dictionaries[i] != null) {
+                out.print(dictionaries[i].decode(t.getInt(i)) + "\t");
+            } else if (type == Attribute.INT) {
+                out.print(t.getInt(i) + "\t");
+            } else if (type == Attribute.REAL) {
+                out.print(t.getFloat(i) + "\t");
             } else {
-                out.print(((String) data) + "\t");
+                out.print(t.getString(i) + "\t");
             }
         }
         out.println();
@@ -4,10 +4,12 @@
 
 package qp.operators;
 
+import qp.optimizer.BufferManager;
 import qp.utils.Batch;
 import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
 
-import java.io.*;
 import java.util.ArrayList;
 
 public class CrossProduct extends Operator {
@@ -17,6 +19,7 @@ public class CrossProduct extends Operator {
 
     static int filenum = 0;         // To get unique filenum for this operation
     int batchsize;                  // Number of tuples per out batch
+    int[] layout;                   // Layout of the output tuples
     ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
     ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
     String rfname;                  // The file name where the right table is materialized
@@ -24,7 +27,7 @@ public class CrossProduct extends Operator {
     int blocksize;                  // No. of blocks for the outer (left) table
     ArrayList<Batch> leftblock;     // Buffer pages for left input stream
     Batch rightbatch;               // Buffer page for right input stream
-    ObjectInputStream in;           // File pointer to the right hand materialized file
+    TupleReader in;                 // Reads the right hand materialized file through the buffer pool
     int numBuff;                    // Number of buffers available
 
     int lblockcurs;                 // Cursor for left block
@@ -72,6 +75,7 @@ public class CrossProduct extends Operator {
         /** select number of tuples per batch **/
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
+        layout = Tuple.layoutOf(schema);
         blocksize = numBuff - 2;
         leftblock = new ArrayList<>();
 
@@ -103,16 +107,18 @@ public class CrossProduct extends Operator {
              **/
             filenum++;
             rfname = "CPtemp-" + String.valueOf(filenum);
-            try {
-                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(rfname));
-                while ((rightpage = right.next()) != null) {
-                    out.writeObject(rightpage);
-                }
-                out.close();
-            } catch (IOException io) {
+            TupleWriter out = new TupleWriter(rfname, right.getSchema());
+            out.setBufferPool(BufferManager.getBufferPool());
+            if (!out.open()) {
                 System.out.println("CrossProduct: Error writing to temporary file");
                 return false;
             }
+            while ((rightpage = right.next()) != null) {
+                for (int r = 0; r < rightpage.size(); ++r) {
+                    out.next(rightpage.get(r));
+                }
+            }
+            out.close();
             if (!right.close())
                 return false;
         }
@@ -128,7 +134,7 @@ public class CrossProduct extends Operator {
      **/
     public Batch next() {
         int i, j, k;
-        if (eosl == true && lblockcurs == 0 && lcurs == 0) {
+        if (eosl == true && eosr == true && lblockcurs == 0 && lcurs == 0 && rcurs == 0) {
             return null;
         }
         outbatch = new Batch(batchsize);
@@ -150,72 +156,61 @@ public class CrossProduct extends Operator {
                 /** Whenever a new left block came, we have to start the
                  ** scanning of right table
                  **/
-                try {
-                    in = new ObjectInputStream(new FileInputStream(rfname));
-                    eosr = false;
-                } catch (IOException io) {
+                in = new TupleReader(rfname, Batch.getPageSize() / right.getSchema().getTupleSize(), right.getSchema());
+                in.setBufferPool(BufferManager.getBufferPool());
+                if (!in.open()) {
                     System.err.println("CrossProduct:error in reading the file");
                     System.exit(1);
                 }
+                eosr = false;
 
             }
             while (eosr == false) {
-                try {
-                    if (rcurs == 0 && lcurs == 0 && lblockcurs == 0) {
-                        rightbatch = (Batch) in.readObject();
+                if (rcurs == 0 && lcurs == 0 && lblockcurs == 0) {
+                    rightbatch = in.nextBatch();
+                    if (rightbatch == null) {
+                        eosr = true;
+                        break;
                     }
-                    for (k = lblockcurs; k < leftblock.size(); k++) {
-                        Batch leftbatch = leftblock.get(k);
-                        for (i = lcurs; i < leftbatch.size(); ++i) {
-                            for (j = rcurs; j < rightbatch.size(); ++j) {
-                                Tuple lefttuple = leftbatch.get(i);
-                            Tuple righttuple = rightbatch.get(j);
-                                Tuple outtuple = lefttuple.joinWith(righttuple);
-                                outbatch.add(outtuple);
-                                if (outbatch.isFull()) {
-                                    if (k == leftblock.size() - 1 && i == leftbatch.size() - 1 && j == rightbatch.size() - 1) {  // case 1 : just done with entire left block
-                                        lblockcurs = 0;
-                                        lcurs = 0;
-                                        rcurs = 0;
-                                    } else if (k != leftblock.size() - 1 && i == leftbatch.size() - 1 && j == rightbatch.size() - 1) { // case 2: done with the current leftblock, move on to next
-                                        lblockcurs = k + 1;
-                                        lcurs = 0;
-                                        rcurs = 0;
-                                    } else if (i != leftbatch.size() - 1 && j == rightbatch.size() - 1) {  // case 3: still on same block, just done with a leftbatch
-                                        lblockcurs = k;
-                                        lcurs = i + 1;
-                                        rcurs = 0;
-                                    } else if (i == leftbatch.size() - 1 && j != rightbatch.size() - 1) {  // case 4: still on same block, same leftbatch, iterating through rightbatch
-                                        lblockcurs = k;
-                                        lcurs = i;
-                                        rcurs = j + 1;
-                                    } else { // case 5: still on same block, same leftbatch, iterating through rightbatch
-                                        lblockcurs = k;
-                                        lcurs = i;
-                                        rcurs = j + 1;
-                                    }
-                                    return outbatch;
+                }
+                for (k = lblockcurs; k < leftblock.size(); k++) {
+                    Batch leftbatch = leftblock.get(k);
+                    for (i = lcurs; i < leftbatch.size(); ++i) {
+                        for (j = rcurs; j < rightbatch.size(); ++j) {
+                            Tuple lefttuple = leftbatch.get(i);
+                        Tuple righttuple = rightbatch.get(j);
+                            Tuple outtuple = lefttuple.joinWith(righttuple, layout);
+                            outbatch.add(outtuple);
+                            if (outbatch.isFull()) {
+                                if (k == leftblock.size() - 1 && i == leftbatch.size() - 1 && j == rightbatch.size() - 1) {  // case 1 : just done with entire left block
+                                    lblockcurs = 0;
+                                    lcurs = 0;
+                                    rcurs = 0;
+                                } else if (k != leftblock.size() - 1 && i == leftbatch.size() - 1 && j == rightbatch.size() - 1) { // case 2: done with the current leftblock, move on to next
+                                    lblockcurs = k + 1;
+                                    lcurs = 0;
+                                    rcurs = 0;
+                                } else if (i != leftbatch.size() - 1 && j == rightbatch.size() - 1) {  // case 3: still on same block, just done with a leftbatch
+                                    lblockcurs = k;
+                                    lcurs = i + 1;
+                                    rcurs = 0;
+                                } else if (i == leftbatch.size() - 1 && j != rightbatch.size() - 1) {  // case 4: still on same block, same leftbatch, iterating through rightbatch
+                                    lblockcurs = k;
+                                    lcurs = i;
+                                    rcurs = j + 1;
+                                } else { // case 5: still on same block, same leftbatch, iterating through rightbatch
+                                    lblockcurs = k;
+                                    lcurs = i;
+                                    rcurs = j + 1;
                                 }
+                                return outbatch;
                             }
-                            rcurs = 0;
                         }
-                        lcurs = 0;
+                        rcurs = 0;
                     }
-                    lblockcurs = 0;
-                } catch (EOFException e) {
-                    try {
-                        in.close();
-                    } catch (IOException io) {
-                        System.out.println("CrossProduct: Error in reading temporary file");
-                    }
-                    eosr = true;
-                } catch (ClassNotFoundException c) {
-                    System.out.println("CrossProduct: Error in deserialising temporary file ");
-                    System.exit(1);
-                } catch (IOException io) {
-                    System.out.println("CrossProduct: Error in reading temporary file");
-                    System.exit(1);
+                    lcurs = 0;
                 }
+                lblockcurs = 0;
             }
         }
         return outbatch;
@@ -225,8 +220,10 @@ public class CrossProduct extends Operator {
      * Close the operator
      */
     public boolean close() {
-        File f = new File(rfname);
-        f.delete();
+        if (in != null) {
+            in.close();
+        }
+        BufferManager.getBufferPool().delete(rfname);
         return true;
     }
 
@@ -95,6 +95,9 @@ public class Debug {
                 case JoinType.HASHJOIN:
                     System.out.print("HashJoin(");
                     break;
+                case JoinType.INDEXNESTED:
+                    System.out.print("IndexNested(");
+                    break;
             }
             PPrint(((Join) node).getLeft());
             System.out.print("  [");
@@ -117,10 +120,37 @@ public class Debug {
 
         } else if (optype == OpType.SCAN) {
             System.out.print(((Scan) node).getTabName());
+        } else if (optype == OpType.INDEXSCAN) {
+            IndexScan scan = (IndexScan) node;
+            System.out.print(scan.isKeyOrder() ? "IndexScanOrdered(" : "IndexScan(");
+            System.out.print(scan.getTabName() + "  '");
+            PPrint(scan.getCondition());
+            System.out.print(")");
         } else if (optype == OpType.SORT) {
             System.out.print("OrderBy(");
             PPrint(((OrderBy) node).getBase());
             System.out.print(")");
+        } else if (optype == OpType.DISTINCT) {
+            Distinct distinct = (Distinct) node;
+            System.out.print(distinct.getStrategy() == Distinct.HASH_BASED ? "HashDistinct(" : "Distinct(");
+            PPrint(distinct.getBase());
+            System.out.print(")");
+        } else if (optype == OpType.TOPN) {
+            System.out.print("TopN[" + ((TopN) node).getLimit() + "](");
+            PPrint(((TopN) node).getBase());
+            System.out.print(")");
+        } else if (optype == OpType.LIMIT) {
+            System.out.print("Limit[" + ((Limit) node).getLimit() + "](");
+            PPrint(((Limit) node).getBase());
+            System.out.print(")");
+        } else if (optype == OpType.GROUPBY) {
+            System.out.print("GroupBy(");
+            PPrint(((GroupBy) node).getBase());
+            System.out.print(")");
+        } else if (optype == OpType.EXCHANGE) {
+            System.out.print("Exchange[" + ((Exchange) node).getNumWorkerThreads() + "](");
+            PPrint(((Exchange) node).getBase());
+            System.out.print(")");
         }
     }
 
@@ -129,14 +159,14 @@ public class Debug {
      * print a tuple
      **/
     public static void PPrint(Tuple t) {
-        for (int i = 0; i < t.data().size(); i++) {
-            Object data = t.dataAt(i);
-            if (data instanceof Integer) {
-                System.out.print((Integer) data + "\t");
-            } else if (data instanceof Float) {
-                System.out.print((Float) data + "\t");
+        for (int i = 0; i < t.size(); i++) {
+            int type = t.typeAt(i);
+            if (type == Attribute.INT) {
+                System.out.print(t.getInt(i) + "\t");
+            } else if (type == Attribute.REAL) {
+                System.out.print(t.getFloat(i) + "\t");
             } else {
-                System.out.print(((String) data) + "\t");
+                System.out.print(t.getString(i) + "\t");
             }
         }
         System.out.println();
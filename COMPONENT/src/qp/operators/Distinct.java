@@ -4,16 +4,35 @@
 
 package qp.operators;
 
+import qp.optimizer.BufferManager;
 import qp.utils.Attribute;
 import qp.utils.Batch;
 import qp.utils.Schema;
 import qp.utils.Tuple;
+import qp.utils.TupleHashTable;
+import qp.utils.TupleWriter;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Distinct - removes the duplicates either by an external merge sort (SORT_BASED)
+ * * or with a hash table (HASH_BASED), as chosen by the cost model.
+ * *
+ * * One buffer holds the input and each partition keeps one output buffer, and the hash table
+ * * holds as many distinct tuples as fit in the buffers left over (see numPartitions).
+ * * next() returns each tuple the first time it is added to the table, so nothing is
+ * * materialized while the table has room. Once it is full, the tuples that are not in
+ * * the table are written to the partitions, and each partition is deduplicated
+ * * in turn by a Distinct of the next level, which uses another hash function.
+ **/
 public class Distinct extends Operator {
 
+    public static final int SORT_BASED = 0;
+    public static final int HASH_BASED = 1;
+
+    static final int MAX_LEVEL = 8;   // Beyond this level a partition is sorted instead of split again (with 3 buffers or more)
+
     Operator base;                      // Base operator
     ArrayList<Attribute> attrset;       // Set of atttributes to project
     ArrayList<Integer> attrIndex;       // Index of attributes to project
@@ -21,9 +40,28 @@ public class Distinct extends Operator {
     int numbuff;                        // Number of buffers available
     int totalnumrun;                    // Number of sorted runs
     int totalnumpass;                   // Number of passes
-    ObjectInputStream insorted;         // Input stream for sorted results
+    RunMerger merger;                   // Merges the sorted runs left after open()
+    Tuple prevtuple;                    // Last tuple returned from the merge
     boolean eos;                        // Whether end of stream is reached
-    Tuple prevtuple;                    // Previous tuple
+    boolean inputdone;                  // Whether the base operator has returned all its pages
+    int strategy = SORT_BASED;          // How the duplicates are removed
+    int level;                          // Number of partitioning steps above this operator
+    long distinctpages;                 // Estimated number of pages of the distinct tuples, 0 if unknown
+
+    /**
+     * The following fields are used by the hash based strategy
+     **/
+    int[] keyindex;                     // attrIndex as an array, for hashing
+    int numparts;                       // Number of partitions, each with one output buffer
+    TupleHashTable table;               // Distinct tuples seen so far, as many as fit in memory
+    TupleWriter[] spill;                // Partition of the tuples that did not fit, if any
+    String[] spillnames;                // Names of the partition files
+    Batch inbatch;                      // Page of the base operator being read
+    int incurs;                         // Next tuple of inbatch
+    int partcurs;                       // Next partition to deduplicate
+    Distinct child;                     // Deduplicates the current partition
+    Batch childbatch;                   // Page of the child being output
+    int childcurs;                      // Next tuple of the page of the child
 
     public Distinct(Operator base, ArrayList<Attribute> as) {
         super(OpType.DISTINCT);
@@ -43,6 +81,50 @@ public class Distinct extends Operator {
         this.numbuff = num;
     }
 
+    /**
+     * Selects how the duplicates are removed, SORT_BASED or HASH_BASED
+     **/
+    public void setStrategy(int strategy) {
+        this.strategy = strategy;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Sets the estimated number of pages of the distinct tuples of the base (in pages of the base),
+     * * used to share the buffers between the hash table and the partitions
+     **/
+    public void setDistinctPages(long pages) {
+        distinctpages = pages;
+    }
+
+    /**
+     * Number of partitions of the hash strategy when the distinct tuples fill the given number
+     * * of pages. With k partitions, each holding one output buffer, the table keeps the
+     * * numbuff - 1 - k buffers left over next to the input buffer. The smallest k for which
+     * * the table and the k partitions can together hold the distinct tuples is chosen, at least one.
+     * * If the number of pages is unknown or too large, k maximizes what they can hold.
+     **/
+    public static int numPartitions(long distinctpages, long numbuff) {
+        long avail = numbuff - 1;
+        for (int k = 1; k < avail; k++) {
+            if ((long) (k + 1) * (avail - k) >= distinctpages) {
+                return k;
+            }
+        }
+        return (int) Math.max(1, avail / 2);
+    }
+
+    /**
+     * Number of distinct tuples the hash table holds, with the partitions chosen by numPartitions
+     **/
+    public static long hashCapacity(long distinctpages, long numbuff, long batchsize) {
+        long tablepages = numbuff - 1 - numPartitions(distinctpages, numbuff);
+        return Math.max(1, tablepages) * Math.max(1, batchsize);
+    }
+
     /**
      * Opens the connection to the base operator
      * * Also figures out what are the columns to be
@@ -59,19 +141,28 @@ public class Distinct extends Operator {
         attrIndex = new ArrayList<>(attrset.size());
         for (int i = 0; i < attrset.size(); i++) {
             Attribute attr = attrset.get(i);
-
-            if (attr.getAggType() != Attribute.NONE) {
-                System.err.println("Aggregation is not implemented.");
-                System.exit(1);
+            /** Aggregates can only come from a GroupBy below **/
+            int index = baseSchema.indexOf(attr);
+            if (index == -1) {
+                if (attr.getAggType() != Attribute.NONE) {
+                    System.err.println("Aggregation is not implemented.");
+                    System.exit(1);
+                }
+                index = baseSchema.indexOf(attr.getBaseAttribute());
             }
-
-            attrIndex.add(baseSchema.indexOf(attr.getBaseAttribute()));
+            attrIndex.add(index);
+        }
+        eos = false;
+        if (strategy == HASH_BASED) {
+            openHashed();
+            return true;
         }
-        prevtuple = null;
 
         totalnumrun = 0;
-        generateSortedRuns();
-        mergeSortedRuns(1, totalnumrun);
+        inputdone = false;
+        int numthreads = SortWorkers.numThreads(numbuff);
+        generateSortedRuns(numthreads);
+        mergeSortedRuns(1, totalnumrun, numthreads);
 
         if (!base.close()) return false;
 
@@ -79,35 +170,30 @@ public class Distinct extends Operator {
     }
 
     /**
-     * Read next tuple from sorted relation 
-     * * and project relevant attributes removing duplicates
+     * Read next tuples from the merge of the sorted runs
+     * * removing duplicates
      */
     public Batch next() {
+        if (strategy == HASH_BASED) {
+            return nextHashed();
+        }
         if (eos) {
             close();
             return null;
         }
 
         Batch outbatch = new Batch(batchsize);
-        try {
-            outbatch = (Batch) insorted.readObject();
-        } catch (EOFException e) {
-            eos = true;
-            try {
-                insorted.close();
-                String dfname = "SortedRun-" + (totalnumpass - 1) + "-" + 0 + "-" + this.hashCode();
-                File f = new File(dfname);
-                f.delete();
-            } catch (IOException io) {
-                System.err.println("Distinct: Error in reading temporary file");
+        Tuple tuple;
+        while (!outbatch.isFull() && (tuple = merger.next()) != null) {
+            if (prevtuple == null || compareTuples(prevtuple, tuple) != 0) { // not duplicate
+                prevtuple = tuple;
+                outbatch.add(tuple);
             }
-            return outbatch;
-        } catch (ClassNotFoundException c) {
-            System.err.println("Distinct: Error in deserialising temporary file ");
-            System.exit(1);
-        } catch (IOException io) {
-            System.err.println("Distinct: Error in reading temporary file");
-            System.exit(1);
+        }
+        if (outbatch.isEmpty()) {
+            eos = true;
+            close();
+            return null;
         }
         return outbatch;
     }
@@ -118,6 +204,8 @@ public class Distinct extends Operator {
         for (int i = 0; i < attrset.size(); ++i)
             newattr.add((Attribute) attrset.get(i).clone());
         Distinct newDistinct = new Distinct(newbase, newattr);
+        newDistinct.setStrategy(strategy);
+        newDistinct.setDistinctPages(distinctpages);
         Schema newSchema = newbase.getSchema().subSchema(newattr);
         newDistinct.setSchema(newSchema);
         return newDistinct;
@@ -135,211 +223,292 @@ public class Distinct extends Operator {
     }
 
     // generate sorted runs with duplicates removed from the base operator and write each run to a file
-    private void generateSortedRuns() {
-        Batch batch = base.next();
-        while (batch != null) {
+    // numthreads threads generate runs of their share of the buffers from their own pages of the base operator
+    private void generateSortedRuns(int numthreads) {
+        AtomicInteger runs = new AtomicInteger();
+        int share = numbuff / numthreads;
+        SortWorkers.run(numthreads, numthreads, t -> generateSortedRuns(share, runs));
+        totalnumrun = runs.get();
+        if (totalnumrun == 0) {
+            // an empty input still gives one (empty) run to merge
+            openRun("SortedRun-0-0-" + this.hashCode()).close();
+            totalnumrun++;
+        }
+    }
+
+    private void generateSortedRuns(int buffers, AtomicInteger runs) {
+        Batch batch;
+        while ((batch = nextPage()) != null) {
             // Ensure no duplicates when generating sorted runs as well
             TreeSet<Tuple> tuples = new TreeSet<>(this::compareTuples);
-            for (int i = 0; i < numbuff && batch != null; i++) {
+            for (int i = 1; batch != null; i++) {
                 for (int j = 0; j < batch.size(); j++) {
                     tuples.add(batch.get(j));
                 }
-                batch = base.next();
+                batch = i < buffers ? nextPage() : null;
             }
 
-            String fname = "SortedRun-" + 0 + "-" + totalnumrun + "-" + this.hashCode();
-            try {
-                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(fname));
-                Batch outbatch = new Batch(batchsize);
-                while (!tuples.isEmpty()) {
-                    Tuple tuple = tuples.pollFirst();
-                    outbatch.add(tuple);
-                    if (outbatch.isFull()) {
-                        out.writeObject(outbatch);
-                        outbatch = new Batch(batchsize);
-                    }
-                }
-                out.writeObject(outbatch);
-                out.close();
-            } catch (IOException e) {
-                System.err.println("Distinct: error writing to temporary file");
-                System.exit(1);
+            String fname = "SortedRun-" + 0 + "-" + runs.getAndIncrement() + "-" + this.hashCode();
+            TupleWriter out = openRun(fname);
+            while (!tuples.isEmpty()) {
+                out.next(tuples.pollFirst());
             }
-            totalnumrun++;
+            out.close();
         }
     }
 
-    // merge sorted runs iteratively until one sorted run is produced
-    private int mergeSortedRuns(int numpass, int numrun) {
-        if (numrun == 1) {
-            totalnumpass = numpass;
-            try {
-                String fname = "SortedRun-" + (numpass - 1) + "-" + (numrun - 1) + "-" + this.hashCode();
-                insorted = new ObjectInputStream(new FileInputStream(fname));
-            } catch (IOException e) {
-                System.err.println("Distinct: error in reading temporary file");
+    // opens the file of a sorted run, written as slotted pages that are compressed if the page codec is enabled
+    private TupleWriter openRun(String fname) {
+        TupleWriter out = new TupleWriter(fname, schema);
+        if (!out.open()) {
+            System.err.println("Distinct: error writing to temporary file");
+            System.exit(1);
+        }
+        return out;
+    }
+
+    // returns the next page of the base operator, null at the end; the threads generating runs take turns
+    private Batch nextPage() {
+        synchronized (base) {
+            if (inputdone) {
+                return null;
             }
+            Batch batch = base.next();
+            if (batch == null) {
+                inputdone = true;
+            }
+            return batch;
+        }
+    }
+
+    // merge sorted runs iteratively until at most numbuff - 1 runs are left, which next() merges on the fly
+    // the groups of runs of a pass are merged on numthreads threads, each with its share of the buffers
+    private int mergeSortedRuns(int numpass, int numrun, int numthreads) {
+        int fanin = numbuff - 1;
+        if (numrun <= fanin || numrun == 1) {
+            totalnumpass = numrun == 1 ? numpass : numpass + 1;
+            merger = new RunMerger(runNames(numpass - 1, 0, numrun), schema, this::compareRuns, null, "Distinct");
+            prevtuple = null;
             return numrun;
         }
 
-        int numoutrun = 0;
-        int start = 0;
-        while (start < numrun) {
-            int end = start + numbuff - 1 < numrun ? start + numbuff - 1 : numrun;
-            mergeSortedRunsRange(start, end, numpass, numoutrun);
-            numoutrun++;
-            start += numbuff - 1;
+        int threads = 1;
+        if (numthreads > 1) {
+            threads = numthreads;
+            fanin = Math.max(2, numbuff / numthreads - 1);
+        }
+        int numoutrun = (numrun + fanin - 1) / fanin;
+        int groupsize = fanin;
+        SortWorkers.run(threads, numoutrun, g -> {
+            int start = g * groupsize;
+            int end = Math.min(numrun, start + groupsize);
+            mergeSortedRunsRange(start, end, numpass, g);
+        });
+        return mergeSortedRuns(numpass + 1, numoutrun, numthreads);
+    }
+
+    private int compareRuns(TupleWithId t1, TupleWithId t2) {
+        return compareTuples(t1.tuple, t2.tuple);
+    }
+
+    // names of the files of the runs between start (inclusive) and end (exclusive) written by a pass
+    private String[] runNames(int pass, int start, int end) {
+        String[] names = new String[end - start];
+        for (int i = start; i < end; i++) {
+            names[i - start] = "SortedRun-" + pass + "-" + i + "-" + this.hashCode();
         }
-        return mergeSortedRuns(numpass + 1, numoutrun);
+        return names;
     }
 
     // merge sorted runs between start (inclusive) and end (exclusive) and remove duplicates
     // to produce one sorted run and write to file
     // note: end - start <= numbuff
     private void mergeSortedRunsRange(int start, int end, int numpass, int numrun) {
-        ObjectInputStream[] instream = new ObjectInputStream[end - start];
-        PriorityQueue<TupleWithId> pq = new PriorityQueue<>(batchsize, (t1, t2) -> compareTuples(t1.tuple, t2.tuple));
-        int[] curs = new int[end - start];
-        boolean[] done = new boolean[end - start];
-
+        RunMerger runs = new RunMerger(runNames(numpass - 1, start, end), schema, this::compareRuns, null, "Distinct");
         String ofname = "SortedRun-" + numpass + "-" + numrun + "-" + this.hashCode();
-        ObjectOutputStream out = null;
-        try {
-            out = new ObjectOutputStream(new FileOutputStream(ofname));
-        } catch (IOException io) {
-            System.err.println("Distinct: error writing to temporary file");
-            System.exit(1);
+        TupleWriter out = openRun(ofname);
+        Tuple prevtuple = null;
+        Tuple tuple;
+        while ((tuple = runs.next()) != null) {
+            if (prevtuple != null && compareTuples(prevtuple, tuple) == 0) {
+                continue;   // duplicate
+            }
+            prevtuple = tuple;
+            out.next(tuple);
         }
+        out.close();
+    }
 
-        // read sorted run into buffers
-        for (int i = 0; i < end - start; i++) {
-            String fname = "SortedRun-" + (numpass - 1) + "-" + (start + i) + "-" + this.hashCode();
-            try {
-                instream[i] = new ObjectInputStream(new FileInputStream(fname));
-            } catch (IOException io) {
-                System.err.println("Distinct: error in reading temporary file");
-                System.exit(1);
-            }
+    private void openHashed() {
+        keyindex = new int[attrIndex.size()];
+        for (int i = 0; i < keyindex.length; i++) {
+            keyindex[i] = attrIndex.get(i);
+        }
+        int basebatchsize = Math.max(1, Batch.getPageSize() / base.getSchema().getTupleSize());
+        numparts = numPartitions(distinctpages, numbuff);
+        table = new TupleHashTable((int) hashCapacity(distinctpages, numbuff, basebatchsize), attrIndex);
+        spill = null;
+        inbatch = null;
+        incurs = 0;
+        inputdone = false;
+        partcurs = 0;
+        child = null;
+        childbatch = null;
+    }
+
+    // hash of the attributes to project, the seed depends on the level
+    // so that a partition is not split the same way as its parent
+    private int hash(Tuple tuple) {
+        return tuple.hashOf(keyindex, 0x9e3779b9 * (level + 1));
+    }
 
-            Batch batch = new Batch(batchsize);
-            try {
-                batch = (Batch) instream[i].readObject();
-            } catch (EOFException e) {
-                try {
-                    instream[i].close();
-                    String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + i) + "-" + this.hashCode();
-                    File f = new File(dfname);
-                    f.delete();
-                } catch (IOException io) {
-                    System.err.println("Distinct: Error in reading temporary file");
+    /**
+     * Returns the tuples of the base operator that are not already in the table,
+     * * then the distinct tuples of each partition
+     **/
+    private Batch nextHashed() {
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull() && !eos) {
+            if (!inputdone) {
+                if (inbatch == null || incurs >= inbatch.size()) {
+                    inbatch = base.next();
+                    incurs = 0;
+                    if (inbatch == null) {
+                        inputdone = true;
+                        base.close();
+                        closeSpill();
+                    }
+                    continue;
                 }
-            } catch (ClassNotFoundException c) {
-                System.err.println("Distinct: Error in deserialising temporary file ");
-                System.exit(1);
-            } catch (IOException io) {
-                System.err.println("Distinct: Error in reading temporary file");
-                System.exit(1);
-            }
-            if (batch != null && !batch.isEmpty()) {
-                for (Tuple t : batch.getAllTuples()) {
-                    pq.add(new TupleWithId(t, i, curs[i]));
-                    curs[i]++;
+                Tuple tuple = inbatch.get(incurs++);
+                int h = hash(tuple);
+                if (table.find(tuple, h, attrIndex) != -1) {
+                    continue;
                 }
-            } else {
-                try {
-                    instream[i].close();
-                    String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + i) + "-" + this.hashCode();
-                    File f = new File(dfname);
-                    f.delete();
-                } catch (IOException io) {
-                    System.err.println("Distinct: Error in reading temporary file");
+                if (!table.isFull()) {
+                    table.add(tuple, h);
+                    outbatch.add(tuple);
+                } else if (!spill(tuple, h)) {
+                    System.exit(1);
                 }
+                continue;
+            }
+            if (childbatch != null && childcurs < childbatch.size()) {
+                outbatch.add(childbatch.get(childcurs++));
+                continue;
+            }
+            if (child != null) {
+                childbatch = child.next();
+                childcurs = 0;
+                if (childbatch != null) continue;
+                child.close();
+                child = null;
+            }
+            if (!openNextPartition()) {
+                eos = true;
             }
         }
+        return outbatch.isEmpty() ? null : outbatch;
+    }
 
-        // add next tuple to outbatch
-        Batch outbatch = new Batch(batchsize);
-        while (!pq.isEmpty()) {
-            TupleWithId tuple = pq.poll();
-
-            if (prevtuple == null || Tuple.compareTuples(prevtuple, tuple.tuple, attrIndex, attrIndex) != 0) { // not duplicate
-                prevtuple = tuple.tuple;
-                outbatch.add(tuple.tuple);
-                if (outbatch.isFull()) {
-                    try {
-                        out.writeObject(outbatch);
-                    } catch (IOException io) {
-                        System.err.println("Distinct: error writing to temporary file");
-                        System.exit(1);
-                    }
-                    outbatch = new Batch(batchsize);
-                }
+    /**
+     * Writes the tuple to the partition chosen by the high bits of its hash
+     **/
+    private boolean spill(Tuple tuple, int h) {
+        if (spill == null) {
+            spill = new TupleWriter[numparts];
+            spillnames = new String[numparts];
+        }
+        int p = (int) (((h >>> 16) * (long) numparts) >>> 16);
+        if (spill[p] == null) {
+            spillnames[p] = "DStemp-" + level + "-" + p + "-" + this.hashCode();
+            Schema baseSchema = base.getSchema();
+            spill[p] = new TupleWriter(spillnames[p], baseSchema);
+            spill[p].setBufferPool(BufferManager.getBufferPool());
+            if (!spill[p].open()) {
+                System.err.println("Distinct: Error writing to temporary file");
+                return false;
             }
+        }
+        return spill[p].next(tuple);
+    }
 
-            int runid = tuple.runid;
-            int nexttupleid = tuple.tupleid + 1;
-
-            // read next page for run into buffer if there are no more tuples for that sorted run
-            if (!done[runid] && nexttupleid % batchsize == 0) {
-                Batch batch = new Batch(batchsize);
-                try {
-                    batch = (Batch) instream[runid].readObject();
-                } catch (EOFException e) {
-                    try {
-                        instream[runid].close();
-                        done[runid] = true;
-                        String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + runid) + "-" + this.hashCode();
-                        File f = new File(dfname);
-                        f.delete();
-                    } catch (IOException io) {
-                        System.err.println("Distinct: Error in reading temporary file");
-                    }
-                } catch (ClassNotFoundException c) {
-                    System.err.println("Distinct: Error in deserialising temporary file ");
-                    System.exit(1);
-                } catch (IOException io) {
-                    System.err.println("Distinct: Error in reading temporary file");
-                    System.exit(1);
-                }
-                if (batch != null && !batch.isEmpty()) {
-                    for (Tuple t : batch.getAllTuples()) {
-                        pq.add(new TupleWithId(t, runid, curs[runid]));
-                        curs[runid]++;
-                    }
-                } else {
-                    try {
-                        instream[runid].close();
-                        done[runid] = true;
-                        String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + runid) + "-" + this.hashCode();
-                        File f = new File(dfname);
-                        f.delete();
-                    } catch (IOException io) {
-                        System.err.println("Distinct: Error in reading temporary file");
-                    }
-                }
-            }
+    /**
+     * Estimated number of pages of the distinct tuples of a partition, 0 if unknown
+     **/
+    private long partitionPages() {
+        if (distinctpages == 0) {
+            return 0;
         }
+        long tablepages = Math.max(1, numbuff - 1 - numparts);
+        return Math.max(1, (distinctpages - tablepages + numparts - 1) / numparts);
+    }
 
-        if (!outbatch.isEmpty()) {
-            try {
-                out.writeObject(outbatch);
-            } catch (IOException io) {
-                System.err.println("Distinct: error writing to temporary file");
-                System.exit(1);
+    private void closeSpill() {
+        if (spill != null) {
+            for (TupleWriter writer : spill) {
+                if (writer != null) writer.close();
             }
         }
+    }
 
-        try {
-            out.close();
-        } catch (IOException io) {
-            System.out.println("Distinct: Error in reading temporary file");
+    /**
+     * Starts the deduplication of the next non empty partition, false if there is none.
+     * * The tuples of a partition were never in the table, so it is deduplicated on its own
+     * * and the table is dropped first.
+     **/
+    private boolean openNextPartition() {
+        while (spill != null && partcurs < spill.length) {
+            int p = partcurs++;
+            if (spill[p] == null) continue;
+            table = null;
+            Scan scan = new Scan(spillnames[p], OpType.SCAN, true);
+            scan.setSchema(base.getSchema());
+            child = new Distinct(scan, attrset);
+            child.setSchema(schema);
+            child.setNumBuff(numbuff);
+            child.setDistinctPages(partitionPages());
+            child.level = level + 1;
+            child.setStrategy(level + 1 < MAX_LEVEL || numbuff < 3 ? HASH_BASED : SORT_BASED);
+            if (!child.open()) {
+                System.err.println("Distinct: Error in deduplicating a partition");
+                System.exit(1);
+            }
+            return true;
         }
+        return false;
     }
 
     /**
      * Close the operator
      */
     public boolean close() {
+        if (strategy != HASH_BASED) {
+            if (merger != null) {
+                merger.close();
+                merger = null;
+            }
+            return true;
+        }
+        if (child != null) {
+            child.close();
+            child = null;
+        }
+        if (!inputdone) {
+            inputdone = true;
+            base.close();
+            closeSpill();
+        }
+        if (spill != null) {
+            for (int p = 0; p < spill.length; ++p) {
+                if (spill[p] != null) {
+                    BufferManager.getBufferPool().delete(spillnames[p]);
+                }
+            }
+            spill = null;
+        }
+        table = null;
+        inbatch = null;
         return true;
     }
 }
@@ -0,0 +1,208 @@
+/**
+ * Exchange operator for intra-query parallelism
+ **/
+
+package qp.operators;
+
+import qp.utils.Batch;
+import qp.utils.Schema;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Exchange - runs copies of its base subtree on worker threads and gathers their pages.
+ * * Worker i runs a clone of the base in which every Scan reads only the pages
+ * * with page number % numworkers == i, so the workers produce disjoint parts of the result.
+ * * The pages produced by the workers reach next() through a bounded queue, so a slow
+ * * consumer blocks the workers instead of letting the pages pile up in memory.
+ * *
+ * * The base subtree must only contain Scan, Select and Project operators (see isPartitionable).
+ **/
+public class Exchange extends Operator {
+
+    static final int QUEUE_PAGES_PER_WORKER = 2;  // Capacity of the queue, per worker
+    static final Batch END = new Batch(0);        // Marks the end of the pages of one worker
+
+    static int numWorkers = 1;  // Number of workers of the exchanges inserted by the optimizer
+
+    Operator base;              // Subtree run by the workers
+    int numworkers;             // Number of worker threads
+
+    /**
+     * The following fields are required during execution
+     **/
+    ArrayBlockingQueue<Batch> queue;    // Pages waiting for next()
+    Thread[] workers;                   // The worker threads
+    volatile boolean stopped;           // Set when the exchange is closed early
+    volatile Throwable failure;         // Error raised in a worker, if any
+    int ended;                          // Number of workers whose end marker has been received
+
+    /**
+     * Gathers the pages of numworkers copies of the base
+     **/
+    public Exchange(Operator base, int numworkers) {
+        super(OpType.EXCHANGE);
+        this.base = base;
+        this.numworkers = numworkers;
+    }
+
+    /**
+     * Number of worker threads used by the exchanges the optimizer inserts,
+     * * 1 disables the insertion
+     **/
+    public static void setNumWorkers(int n) {
+        numWorkers = n;
+    }
+
+    public static int getNumWorkers() {
+        return numWorkers;
+    }
+
+    public Operator getBase() {
+        return base;
+    }
+
+    public void setBase(Operator base) {
+        this.base = base;
+    }
+
+    public int getNumWorkerThreads() {
+        return numworkers;
+    }
+
+    /**
+     * Whether copies of the subtree can each run on a part of the pages of the tables,
+     * * i.e. the subtree only contains scans of base tables, selections and projections
+     **/
+    public static boolean isPartitionable(Operator node) {
+        if (node.getOpType() == OpType.SCAN) {
+            return ((Scan) node).getTabName() != null;
+        } else if (node.getOpType() == OpType.SELECT) {
+            return isPartitionable(((Select) node).getBase());
+        } else if (node.getOpType() == OpType.PROJECT) {
+            return isPartitionable(((Project) node).getBase());
+        }
+        return false;
+    }
+
+    private static void setPartition(Operator node, int part, int numparts) {
+        if (node.getOpType() == OpType.SCAN) {
+            ((Scan) node).setPartition(part, numparts);
+        } else if (node.getOpType() == OpType.SELECT) {
+            setPartition(((Select) node).getBase(), part, numparts);
+        } else if (node.getOpType() == OpType.PROJECT) {
+            setPartition(((Project) node).getBase(), part, numparts);
+        }
+    }
+
+    /**
+     * Opens one copy of the base per worker, then starts the workers.
+     * * Opening the exchange again restarts the scan from the beginning.
+     **/
+    public boolean open() {
+        close();
+        stopped = false;
+        failure = null;
+        ended = 0;
+        queue = new ArrayBlockingQueue<>(QUEUE_PAGES_PER_WORKER * numworkers + numworkers);
+
+        /** Each worker gets its own copy of the subtree, opened before any thread starts **/
+        Operator[] plans = new Operator[numworkers];
+        for (int i = 0; i < numworkers; ++i) {
+            plans[i] = (Operator) base.clone();
+            setPartition(plans[i], i, numworkers);
+            if (!plans[i].open()) {
+                System.err.println("Exchange: error in opening the plan of worker " + i);
+                return false;
+            }
+        }
+        workers = new Thread[numworkers];
+        for (int i = 0; i < numworkers; ++i) {
+            Operator plan = plans[i];
+            workers[i] = new Thread(() -> work(plan), "exchange-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        return true;
+    }
+
+    /**
+     * Body of a worker thread: pulls the pages of its plan and queues them
+     **/
+    private void work(Operator plan) {
+        try {
+            Batch batch;
+            while (!stopped && (batch = plan.next()) != null) {
+                if (!batch.isEmpty()) {
+                    queue.put(batch);
+                }
+            }
+            plan.close();
+        } catch (InterruptedException | RuntimeException | Error e) {
+            failure = e;
+        }
+        /** The end marker is always delivered, unless the exchange has been closed **/
+        while (!stopped) {
+            try {
+                queue.put(END);
+                break;
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Next page produced by the workers, in the order they are produced
+     **/
+    public Batch next() {
+        while (ended < numworkers) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                System.err.println("Exchange: interrupted while waiting for the workers");
+                System.exit(1);
+                return null;
+            }
+            if (batch == END) {
+                ended++;
+            } else {
+                return batch;
+            }
+        }
+        if (failure != null) {
+            System.err.println("Exchange: error in a worker: " + failure);
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Stops the workers that are still running
+     **/
+    public boolean close() {
+        if (workers == null) return true;
+        stopped = true;
+        for (Thread worker : workers) {
+            /** A worker blocked on the full queue is released by emptying the queue **/
+            while (worker.isAlive()) {
+                queue.clear();
+                try {
+                    worker.join(10);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        workers = null;
+        return true;
+    }
+
+    public Object clone() {
+        Operator newbase = (Operator) base.clone();
+        Exchange newexchange = new Exchange(newbase, numworkers);
+        newexchange.setSchema((Schema) newbase.getSchema().clone());
+        return newexchange;
+    }
+}
@@ -1,32 +1,75 @@
 /**
- * To group the result
+ * To group the result and compute the aggregates of each group
  **/
 
 package qp.operators;
 
+import qp.optimizer.BufferManager;
 import qp.utils.Attribute;
 import qp.utils.Batch;
+import qp.utils.Dictionary;
 import qp.utils.Schema;
 import qp.utils.Tuple;
+import qp.utils.TupleWriter;
 
-import java.io.*;
-import java.util.*;
+import java.util.ArrayList;
 
+/**
+ * GroupBy - hash aggregation.
+ * * open() reads the whole input into an open addressing hash table that maps
+ * * the values of the group by attributes to the running aggregates of the group.
+ * * The table holds as many groups as fit into the buffers less one for the input.
+ * * Once it is full, the tuples of the groups that are not in the table are
+ * * written to numbuff - 1 partitions, and each partition is aggregated
+ * * in turn by a GroupBy of the next level, which uses another hash function.
+ * *
+ * * Without group by attributes all the tuples form a single group.
+ **/
 public class GroupBy extends Operator {
 
+    static final int MAX_LEVEL = 8;   // Beyond this level the table grows instead of spilling
+
     Operator base;                      // Base operator
-    ArrayList<Attribute> attrset;       // Set of atttributes to project
-    ArrayList<Integer> attrIndex;       // Index of attributes to project
+    ArrayList<Attribute> attrset;       // Set of atttributes to project and aggregate
     ArrayList<Attribute> groupbylist;   // Set of atttributes to groupby
-    ArrayList<Integer> groupbyIndex;    // Index of attributes to group by
     int batchsize;                      // Number of tuples per out batch
     int numbuff;                        // Number of buffers available
-    int curs;                           // Cursor for input buffer
-    boolean eos;                        // Whether end of stream is reached
-    Sort sort;                          // Sort
-    Tuple prevtuple;                    // Previous tuple
-    Batch inbatch;                      // Buffer page for input
-    Batch outbatch;                     // Buffer page for output
+    int level;                          // Number of partitioning steps above this operator
+
+    /**
+     * The following fields are computed in open()
+     **/
+    int[] groupbyIndex;     // Index of attributes to group by in the base schema
+    int[] attrIndex;        // Index in the base schema of the attribute of each output column
+    int[] aggtype;          // Aggregate type of each output column
+    int[] intype;           // Type of the attribute of each output column
+    int[] layout;           // Layout of the output tuples
+    int numcols;            // Number of output columns
+    int maxgroups;          // Number of groups that fit in memory
+
+    /**
+     * The hash table, groups are numbered in order of arrival
+     **/
+    int[] slots;            // Group number + 1 at each slot, 0 for an empty slot
+    int mask;               // Number of slots - 1, the number of slots is a power of two
+    int numgroups;          // Number of groups in the table
+    Tuple[] keys;           // First input tuple of each group, holds the group by values
+    Tuple[] results;        // Output tuple of each group, holds the MAX, MIN and projected values
+    long[] sums;            // SUM and AVG of each group and column, doubles are kept as bits
+    long[] counts;          // Number of tuples of each group
+
+    TupleWriter[] spill;    // Partition of the tuples of the groups that did not fit, if any
+    String[] spillnames;    // Names of the partition files
+
+    /**
+     * The following fields are required during next()
+     **/
+    int outcurs;            // Next group of the table to output
+    int partcurs;           // Next partition to aggregate
+    GroupBy child;          // Aggregates the current partition
+    Batch childbatch;       // Page of the child being output
+    int childcurs;          // Next tuple of the page of the child
+    boolean eos;            // Whether end of stream is reached
 
     public GroupBy(Operator base, ArrayList<Attribute> as, ArrayList<Attribute> groupbylist, int type) {
         super(type);
@@ -43,114 +86,405 @@ public class GroupBy extends Operator {
         this.base = base;
     }
 
+    public ArrayList<Attribute> getAttr() {
+        return attrset;
+    }
+
+    public ArrayList<Attribute> getGroupByList() {
+        return groupbylist;
+    }
+
     public void setNumBuff(int num) {
         this.numbuff = num;
     }
 
+    /**
+     * Whether the attributes need a GroupBy, i.e. there is an aggregate among them
+     **/
+    public static boolean hasAggregate(ArrayList<Attribute> attrs) {
+        for (Attribute attr : attrs) {
+            if (attr.getAggType() != Attribute.NONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Opens the connection to the base operator
      * * Also figures out what are the columns to be
-     * * grouped by and projected from the base operator
-     * * and sort the table on the attributes to group by
+     * * grouped by and aggregated from the base operator
+     * * and aggregates the whole input
      **/
     public boolean open() {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
 
-        if (!base.open()) return false;
-
-        sort = new Sort(base, groupbylist, numbuff, true);
-
         Schema baseSchema = base.getSchema();
-        attrIndex = new ArrayList<>(attrset.size());
-        for (int i = 0; i < attrset.size(); ++i) {
+        numcols = attrset.size();
+        attrIndex = new int[numcols];
+        aggtype = new int[numcols];
+        intype = new int[numcols];
+        for (int i = 0; i < numcols; ++i) {
             Attribute attr = attrset.get(i);
-            if (attr.getAggType() != Attribute.NONE) {
-                System.err.println("Aggregation is not implemented.");
-                System.exit(1);
+            attrIndex[i] = baseSchema.indexOf(attr.getBaseAttribute());
+            if (attrIndex[i] == -1) {
+                System.err.println("GroupBy: " + attr + " is not an attribute of the input");
+                return false;
+            }
+            aggtype[i] = attr.getAggType();
+            intype[i] = baseSchema.getAttribute(attrIndex[i]).getType();
+            boolean string = intype[i] == Attribute.STRING || Dictionary.isCoded(baseSchema.getAttribute(attrIndex[i]));
+            if ((aggtype[i] == Attribute.SUM || aggtype[i] == Attribute.AVG) && string) {
+                System.err.println("GroupBy: " + attr + " is not defined on strings");
+                return false;
             }
-            attrIndex.add(baseSchema.indexOf(attr.getBaseAttribute()));
         }
-
-        groupbyIndex = new ArrayList<>(groupbylist.size());
+        groupbyIndex = new int[groupbylist.size()];
         for (int i = 0; i < groupbylist.size(); i++) {
-            Attribute attr = attrset.get(i);
-            if (attr.getAggType() != Attribute.NONE) {
-                System.err.println("Aggregation is not implemented.");
-                System.exit(1);
+            groupbyIndex[i] = baseSchema.indexOf(groupbylist.get(i));
+            if (groupbyIndex[i] == -1) {
+                System.err.println("GroupBy: " + groupbylist.get(i) + " is not an attribute of the input");
+                return false;
             }
-            groupbyIndex.add(baseSchema.indexOf(attr));
         }
+        layout = Tuple.layoutOf(schema);
 
-        curs = 0;
+        /** All the buffers but the input one hold groups **/
+        maxgroups = Math.max(1, numbuff - 1) * Math.max(1, batchsize);
+        allocate(16);
+        numgroups = 0;
+        spill = null;
+        outcurs = 0;
+        partcurs = 0;
+        child = null;
+        childbatch = null;
         eos = false;
-        prevtuple = null;
-        
-        return sort.open();
+
+        if (!base.open()) return false;
+        Batch inbatch;
+        while ((inbatch = base.next()) != null) {
+            for (int i = 0; i < inbatch.size(); ++i) {
+                if (!add(inbatch.get(i))) return false;
+            }
+        }
+        base.close();
+
+        /** Without group by attributes an empty input still forms one group **/
+        if (groupbyIndex.length == 0 && numgroups == 0) {
+            keys[0] = null;
+            results[0] = emptyResult();
+            counts[0] = 0;
+            numgroups = 1;
+        }
+
+        if (spill != null) {
+            for (TupleWriter writer : spill) {
+                if (writer != null) writer.close();
+            }
+        }
+        return true;
     }
 
     /**
-     * Read next tuple from sorted relation 
-     * * and project relevant attributes
-     */
-    public Batch next() {
-        if (eos) {
-            close();
-            return null;
+     * Creates an empty table with room for the given number of groups
+     **/
+    private void allocate(int capacity) {
+        int numslots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 2;
+        slots = new int[numslots];
+        mask = numslots - 1;
+        keys = new Tuple[capacity];
+        results = new Tuple[capacity];
+        sums = new long[capacity * numcols];
+        counts = new long[capacity];
+    }
+
+    /**
+     * Doubles the table, keeping the load factor at most 1/2
+     **/
+    private void grow() {
+        int capacity = keys.length * 2;
+        int[] oldslots = slots;
+        Tuple[] oldkeys = keys;
+        Tuple[] oldresults = results;
+        long[] oldsums = sums;
+        long[] oldcounts = counts;
+        allocate(capacity);
+        System.arraycopy(oldkeys, 0, keys, 0, numgroups);
+        System.arraycopy(oldresults, 0, results, 0, numgroups);
+        System.arraycopy(oldsums, 0, sums, 0, numgroups * numcols);
+        System.arraycopy(oldcounts, 0, counts, 0, numgroups);
+        for (int slot : oldslots) {
+            if (slot != 0) {
+                int s = hash(keys[slot - 1]) & mask;
+                while (slots[s] != 0) {
+                    s = (s + 1) & mask;
+                }
+                slots[s] = slot;
+            }
         }
+    }
 
-        outbatch = new Batch(batchsize);
+    /**
+     * Hash of the group by values, the seed depends on the level
+     * * so that a partition is not split the same way as its parent
+     **/
+    private int hash(Tuple tuple) {
+        int h = 0x9e3779b9 * (level + 1);
+        for (int index : groupbyIndex) {
+            h = (h ^ tuple.hashCodeAt(index)) * 0x01000193;
+        }
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+        return h;
+    }
 
-        while (!outbatch.isFull()) {
-            if (curs == 0) {
-                inbatch = (Batch) sort.next();
-                if (inbatch == null) {
-                    eos = true;
-                    return outbatch;
-                }
+    private boolean sameGroup(Tuple left, Tuple right) {
+        for (int index : groupbyIndex) {
+            if (!left.equalsAt(right, index, index)) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the tuple to the aggregates of its group, or to a partition
+     * * if its group is not in the table and the table is full
+     **/
+    private boolean add(Tuple tuple) {
+        int h = hash(tuple);
+        int s = h & mask;
+        while (slots[s] != 0) {
+            int group = slots[s] - 1;
+            if (sameGroup(keys[group], tuple)) {
+                return accumulate(group, tuple);
+            }
+            s = (s + 1) & mask;
+        }
+        if (numgroups == maxgroups && level < MAX_LEVEL) {
+            return spill(tuple, h);
+        }
+        if (numgroups == keys.length) {
+            grow();
+            s = h & mask;
+            while (slots[s] != 0) {
+                s = (s + 1) & mask;
+            }
+        }
+        int group = numgroups++;
+        slots[s] = group + 1;
+        keys[group] = tuple;
+        Tuple result = new Tuple(layout);
+        for (int i = 0; i < numcols; ++i) {
+            if (aggtype[i] == Attribute.NONE || aggtype[i] == Attribute.MAX || aggtype[i] == Attribute.MIN) {
+                copy(tuple, attrIndex[i], result, i);
+            } else if (aggtype[i] == Attribute.SUM && intype[i] == Attribute.INT) {
+                sums[group * numcols + i] = 0;
+            } else {
+                sums[group * numcols + i] = Double.doubleToLongBits(0.0);
+            }
+        }
+        results[group] = result;
+        counts[group] = 0;
+        return accumulate(group, tuple);
+    }
 
-            for (int i = curs; i < inbatch.size(); i++) {
-                Tuple tuple = inbatch.get(i);
-                ArrayList<Object> present = new ArrayList<>();
+    private static void copy(Tuple from, int fromindex, Tuple to, int toindex) {
+        int type = from.typeAt(fromindex);
+        if (type == Attribute.INT) {
+            to.setInt(toindex, from.getInt(fromindex));
+        } else if (type == Attribute.REAL) {
+            to.setFloat(toindex, from.getFloat(fromindex));
+        } else {
+            to.setString(toindex, from.getString(fromindex));
+        }
+    }
 
-                if (prevtuple != null && Tuple.compareTuples(prevtuple, tuple, groupbyIndex, groupbyIndex) == 0) { // same group
-                    if (Tuple.compareTuples(prevtuple, tuple, attrIndex, attrIndex) != 0) {
+    private boolean accumulate(int group, Tuple tuple) {
+        Tuple result = results[group];
+        counts[group]++;
+        for (int i = 0; i < numcols; ++i) {
+            int index = attrIndex[i];
+            int pos = group * numcols + i;
+            switch (aggtype[i]) {
+                case Attribute.NONE:
+                    if (!tuple.equalsAt(result, index, i)) {
                         System.err.println("Group by: Error in projecting results");
-                        System.exit(1);
+                        return false;
+                    }
+                    break;
+                case Attribute.MAX:
+                    if (Tuple.compareTuples(tuple, result, index, i) > 0) {
+                        copy(tuple, index, result, i);
                     }
-                    prevtuple = tuple;
-                } else {
-                    prevtuple = tuple;
-                    for (int j = 0; j < attrIndex.size(); j++) {
-                        Object data = tuple.dataAt(attrIndex.get(j));
-                        present.add(data);
+                    break;
+                case Attribute.MIN:
+                    if (Tuple.compareTuples(tuple, result, index, i) < 0) {
+                        copy(tuple, index, result, i);
                     }
-                    Tuple outtuple = new Tuple(present);
-                    outbatch.add(outtuple);
-                    if (outbatch.isFull()) {
-                        if (i == inbatch.size() - 1) {
-                            curs = 0;
-                        } else {
-                            curs = i + 1;
-                        }
-                        return outbatch;
+                    break;
+                case Attribute.SUM:
+                case Attribute.AVG:
+                    if (aggtype[i] == Attribute.SUM && intype[i] == Attribute.INT) {
+                        sums[pos] += tuple.getInt(index);
+                    } else {
+                        double value = intype[i] == Attribute.INT ? tuple.getInt(index) : tuple.getFloat(index);
+                        sums[pos] = Double.doubleToLongBits(Double.longBitsToDouble(sums[pos]) + value);
                     }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the tuple to the partition chosen by the high bits of its hash
+     **/
+    private boolean spill(Tuple tuple, int h) {
+        int numparts = Math.max(2, numbuff - 1);
+        if (spill == null) {
+            spill = new TupleWriter[numparts];
+            spillnames = new String[numparts];
+        }
+        int p = (int) (((h >>> 16) * (long) numparts) >>> 16);
+        if (spill[p] == null) {
+            spillnames[p] = "GBtemp-" + level + "-" + p + "-" + this.hashCode();
+            Schema baseSchema = base.getSchema();
+            spill[p] = new TupleWriter(spillnames[p], baseSchema);
+            spill[p].setBufferPool(BufferManager.getBufferPool());
+            if (!spill[p].open()) {
+                System.err.println("GroupBy: Error writing to temporary file");
+                return false;
+            }
+        }
+        return spill[p].next(tuple);
+    }
+
+    /**
+     * Output tuple of the group of an empty input: COUNT is 0 and the other
+     * * columns are null, i.e. they are typed as a null STRING in this tuple only
+     **/
+    private Tuple emptyResult() {
+        int[] types = new int[numcols];
+        for (int i = 0; i < numcols; ++i) {
+            types[i] = aggtype[i] == Attribute.COUNT ? Attribute.INT : Attribute.STRING;
+        }
+        return new Tuple(types);
+    }
+
+    /**
+     * Output tuple of a group of the table, with the final aggregate values
+     **/
+    private Tuple result(int group) {
+        Tuple result = results[group];
+        if (counts[group] == 0) {
+            return result;
+        }
+        for (int i = 0; i < numcols; ++i) {
+            long sum = sums[group * numcols + i];
+            if (aggtype[i] == Attribute.COUNT) {
+                result.setInt(i, (int) counts[group]);
+            } else if (aggtype[i] == Attribute.AVG) {
+                result.setFloat(i, (float) (Double.longBitsToDouble(sum) / counts[group]));
+            } else if (aggtype[i] == Attribute.SUM && intype[i] == Attribute.INT) {
+                /** The sum is kept in a long, but the result column is an INT **/
+                if (sum != (int) sum) {
+                    System.err.println("GroupBy: " + attrset.get(i) + " = " + sum + " does not fit into an INT");
+                    close();
+                    System.exit(1);
                 }
+                result.setInt(i, (int) sum);
+            } else if (aggtype[i] == Attribute.SUM) {
+                result.setFloat(i, (float) Double.longBitsToDouble(sum));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Outputs the groups of the table, then the groups of each partition
+     **/
+    public Batch next() {
+        if (eos) {
+            close();
+            return null;
+        }
+
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            if (outcurs < numgroups) {
+                outbatch.add(result(outcurs));
+                results[outcurs] = null;
+                keys[outcurs] = null;
+                outcurs++;
+                continue;
+            }
+            if (childbatch != null && childcurs < childbatch.size()) {
+                outbatch.add(childbatch.get(childcurs++));
+                continue;
+            }
+            if (child != null) {
+                childbatch = child.next();
+                childcurs = 0;
+                if (childbatch != null) continue;
+                child.close();
+                child = null;
+            }
+            if (!openNextPartition()) {
+                eos = true;
+                break;
+            }
+        }
+        return outbatch.isEmpty() && eos ? null : outbatch;
+    }
+
+    /**
+     * Starts the aggregation of the next non empty partition, false if there is none
+     **/
+    private boolean openNextPartition() {
+        while (spill != null && partcurs < spill.length) {
+            int p = partcurs++;
+            if (spill[p] == null) continue;
+            Scan scan = new Scan(spillnames[p], OpType.SCAN, true);
+            scan.setSchema(base.getSchema());
+            child = new GroupBy(scan, attrset, groupbylist, optype);
+            child.setSchema(schema);
+            child.setNumBuff(numbuff);
+            child.level = level + 1;
+            if (!child.open()) {
+                System.err.println("GroupBy: Error in aggregating a partition");
+                System.exit(1);
             }
-            curs = 0;
+            return true;
         }
-        
-        return outbatch;
+        return false;
     }
 
     /**
      * Close the operator
      */
     public boolean close() {
-        inbatch = null;
-        base.close();
-        sort.close();
+        if (child != null) {
+            child.close();
+            child = null;
+        }
+        if (spill != null) {
+            for (int p = 0; p < spill.length; ++p) {
+                if (spill[p] != null) {
+                    BufferManager.getBufferPool().delete(spillnames[p]);
+                }
+            }
+            spill = null;
+        }
+        slots = null;
+        keys = null;
+        results = null;
         return true;
     }
 
@@ -4,20 +4,27 @@
 
 package qp.operators;
 
+import qp.optimizer.BufferManager;
 import qp.utils.Attribute;
 import qp.utils.Batch;
+import qp.utils.BloomFilter;
 import qp.utils.Condition;
 import qp.utils.RandNumb;
 import qp.utils.Tuple;
+import qp.utils.TupleHashTable;
+import qp.utils.TupleReader;
+import qp.utils.TupleWriter;
 
-import java.io.*;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HashJoin extends Join{
 
     int leftbatchsize;              // Number of tuples per left batch
     int rightbatchsize;             // Number of tuples per right batch
     int batchsize;                  // Number of tuples per out batch
+    int[] layout;                   // Layout of the output tuples
     int leftnumpages;               // Number of pages for left table
     ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
     ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
@@ -26,20 +33,46 @@ public class HashJoin extends Join{
     Batch outbatch;                 // Buffer page for output
     Batch leftbatch;                // Buffer page for left input stream
     Batch rightbatch;               // Buffer page for right input stream
-    ObjectInputStream inleft;       // File pointer to the left hand materialized file
-    ObjectInputStream inright;      // File pointer to the right hand materialized file
-    ArrayList<Batch> hashtable;     // Hash table for joining phase
-    Join hashjoin;                  // Hash join for recursive hash join
-    Join blocknestedjoin;           // Block nested join for partitions that cannot fit into memory
-
-    int lcurs;                      // Cursor for left side buffer
+    TupleReader inleft;             // Reads the left hand partition through the buffer pool
+    TupleReader inright;            // Reads the right hand partition through the buffer pool
+    TupleHashTable hashtable;       // Hash table for joining phase
+    Join hashjoin;                  // Hash join that repartitions a partition that cannot fit into memory
+    Join blocknestedjoin;           // Block nested join for partitions dominated by a single key
+    int depth;                      // Number of repartitioning steps above this join
+
+    long buildpages;                // Estimated number of pages of the left input, 0 if unknown
+    int numparts;                   // Number of partitions of each input
+    int[] leftpages;                // Number of pages of each partition of the left input on disk
+    boolean resident;               // Whether partition 0 of the left input is kept in memory
+    int residentcapacity;           // Number of tuples of partition 0 that fit into memory
+    TupleHashTable residenttable;   // Hash table of partition 0, probed while the right input is partitioned
+    ArrayList<TupleWriter> rightout;// Partitions of the right input, written during next()
+    boolean rightdone;              // Whether the right input has been partitioned
+    BloomFilter filter;             // Join keys of the left input checked by partitionRight, null if unused
+
+    int lcurs;                      // Next matching left tuple in the hash table + 1, 0 to probe a new right tuple
     int rcurs;                      // Cursor for right side buffer
     int pcurs;                      // Cursor for partition
     boolean eosl;                   // Whether end of stream (left table) is reached
     boolean eosr;                   // Whether end of stream (right table) is reached
     boolean done;                   // Whether the hash join is completed
 
-    int a1, b1, a2, b2;             // Constants for hash functions
+    static final int MAX_DEPTH = 4; // Partitions are repartitioned at most this number of times
+    static final int QUEUE_PAGES_PER_WORKER = 3;  // Pages of the output queue, per worker, taken from the buffers
+    static final Batch END = new Batch(0);        // Marks the end of the pages of one worker
+
+    /**
+     * The following fields are required when the partitions are joined by workers
+     **/
+    int numworkers;                             // Number of threads joining the partitions on disk
+    ArrayBlockingQueue<Batch> results;          // Output pages of the workers
+    Thread[] workers;                           // The worker threads, null if not started
+    AtomicInteger nextpart;                     // Next partition to be joined by a worker
+    int ended;                                  // Number of workers whose end marker has been received
+    volatile boolean stopped;                   // Set when the join is closed before the workers are done
+    volatile Throwable failure;                 // Error raised in a worker, if any
+
+    int partseed;                   // Seed of the hash function, also the key of the in-memory hash tables
 
     public HashJoin(Join jn) {
         super(jn.getLeft(), jn.getRight(), jn.getConditionList(), jn.getOpType());
@@ -47,16 +80,60 @@ public class HashJoin extends Join{
         jointype = jn.getJoinType();
         numBuff = jn.getNumBuff();
 
-        a1 = RandNumb.randInt(0, numBuff);
-        b1 = RandNumb.randInt(0, numBuff);
-        a2 = RandNumb.randInt(0, numBuff);
-        b2 = RandNumb.randInt(0, numBuff);
+        partseed = RandNumb.randInt(0, Integer.MAX_VALUE - 1);
+        numworkers = Exchange.getNumWorkers();
+    }
+
+    /**
+     * Hash of all the join attributes of the tuple, the seed selects the hash function
+     * * The final mixing spreads keys that only differ in a few bits over all the bits
+     **/
+    static int hash(Tuple tuple, ArrayList<Integer> index, int seed) {
+        int h = seed;
+        for (int i : index) {
+            h = Tuple.combineHash(h, tuple.hashCodeAt(i));
+        }
+        return Tuple.finishHash(h);
+    }
+
+    /**
+     * Maps a hash value to one of n buckets, never negative
+     **/
+    static int bucket(int hash, int n) {
+        return (int) (((hash & 0xffffffffL) * n) >>> 32);
+    }
+
+    /**
+     * Number of pages of the left input expected by the optimizer,
+     * * used to size the partition kept in memory
+     **/
+    public void setBuildPages(long pages) {
+        buildpages = pages;
+    }
+
+    /**
+     * Number of partitions of a hybrid hash join whose left input has the given number of pages.
+     * * With k partitions written to disk, each holding one output buffer, partition 0 keeps
+     * * the numbuff - 2 - k buffers left over in memory. The smallest k for which every partition
+     * * fits into memory is chosen, giving k + 1 partitions. When there is no such k, or the size
+     * * of the input is unknown, all the numbuff - 1 partitions are written to disk.
+     **/
+    public static int numPartitions(long buildpages, int numbuff) {
+        int avail = numbuff - 2;
+        if (buildpages > 0) {
+            for (int k = 0; k < avail; k++) {
+                if ((long) (k + 1) * (avail - k) >= buildpages) {
+                    return k + 1;
+                }
+            }
+        }
+        return numbuff - 1;
     }
 
     /**
      * During open finds the index of the join attributes
-     * * Partitions the left and right hand side into a file
-     * * Opens the connections
+     * * Partitions the left hand side, keeping partition 0 in memory if it fits
+     * * Opens the right hand side, which is partitioned during next()
      **/
     public boolean open() {
         /** select number of tuples per batch **/
@@ -66,6 +143,7 @@ public class HashJoin extends Join{
         rightbatchsize = Batch.getPageSize() / righttuplesize;
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
+        layout = Tuple.layoutOf(schema);
 
         /** find indices attributes of join conditions **/
         leftindex = new ArrayList<>();
@@ -89,90 +167,201 @@ public class HashJoin extends Join{
         eosr = true;
         done = false;
 
+        numparts = numPartitions(buildpages, numBuff);
+        resident = numparts < numBuff - 1;
+        if (resident) {
+            int residentpages = numBuff - 2 - (numparts - 1);
+            residentcapacity = residentpages * leftbatchsize;
+            residenttable = new TupleHashTable(residentcapacity, leftindex);
+        }
+
         /** Left hand side table is to be materialized
          ** for the left partition to perform
          **/
         if (!left.open()) {
             return false;
         } else {
-            ArrayList<Batch> partitions = new ArrayList<>(numBuff - 1);
-            for (int i = 0; i < numBuff - 1; i++) {
-                partitions.add(new Batch(leftbatchsize));
-            }
-            try {
-                ArrayList<ObjectOutputStream> leftout = new ArrayList<>(numBuff - 1);
-                for (int i = 0; i < numBuff - 1; i++) {
-                    String tfname =  "HJLtemp-" + String.valueOf(i) + this.hashCode();
-                    leftout.add(new ObjectOutputStream(new FileOutputStream(tfname)));
+            /** Each partition writer keeps one page pinned in the buffer pool **/
+            ArrayList<TupleWriter> leftout = new ArrayList<>(numparts);
+            for (int i = 0; i < numparts; i++) {
+                String tfname =  "HJLtemp-" + String.valueOf(i) + this.hashCode();
+                TupleWriter writer = new TupleWriter(tfname, left.getSchema());
+                writer.setBufferPool(BufferManager.getBufferPool());
+                if (!writer.open()) {
+                    System.out.println("HashJoin: Error writing to temporary file");
+                    return false;
                 }
-                while ((leftbatch = left.next()) != null) {
-                    leftnumpages++;
-                    for (int i = 0; i < leftbatch.size(); i++) {
-                        Tuple tuple = leftbatch.get(i);
-                        int key = tuple.dataAt(leftindex.get(0)).hashCode();
-                        int partitionnum = (a1 * key + b1) % (numBuff - 1);
-                        partitions.get(partitionnum).add(tuple);
-                        if (partitions.get(partitionnum).isFull()) {
-                            leftout.get(partitionnum).writeObject(partitions.get(partitionnum));
-                            partitions.set(partitionnum, new Batch(leftbatchsize));
+                leftout.add(writer);
+            }
+            long expected = buildpages > 0 ? buildpages * leftbatchsize : (long) numBuff * leftbatchsize;
+            filter = new BloomFilter(expected);
+            while ((leftbatch = left.next()) != null) {
+                leftnumpages++;
+                for (int i = 0; i < leftbatch.size(); i++) {
+                    Tuple tuple = leftbatch.get(i);
+                    int h = hash(tuple, leftindex, partseed);
+                    filter.add(h);
+                    int partitionnum = bucket(h, numparts);
+                    if (partitionnum == 0 && resident) {
+                        if (!residenttable.isFull()) {
+                            residenttable.add(tuple, h);
+                            continue;
                         }
+                        spillResident(leftout.get(0));
                     }
+                    leftout.get(partitionnum).next(tuple);
                 }
-                for (int i = 0; i < numBuff - 1; i++) {
-                    if (!partitions.get(i).isEmpty()) {
-                        leftout.get(i).writeObject(partitions.get(i));
-                    }
-                    leftout.get(i).close();
-                }
-            } catch (IOException io) {
-                System.out.println("HashJoin: Error writing to temporary file");
-                return false;
+            }
+            leftpages = new int[numparts];
+            for (int i = 0; i < numparts; i++) {
+                /** The last page of a partition is only written, and counted, when it is closed **/
+                leftout.get(i).close();
+                leftpages[i] = leftout.get(i).getNumBatch();
             }
             if (!left.close()) {
                 return false;
             }
         }
+        if (!filter.isSelective()) {
+            filter = null;
+        }
+
+        /** Partition 0 is joined while the right hand side is partitioned **/
+        pcurs = resident ? 0 : -1;
+        rightdone = false;
+        rightbatch = null;
+
+        /** The right tuples without a match are dropped by the scan below the right input if possible,
+         ** and otherwise before they are written to a partition
+         **/
+        if (filter != null) {
+            int[] keys = new int[conditionList.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = rightindex.get(i);
+            }
+            if (pushFilter(right, keys)) {
+                filter = null;
+            }
+        }
 
         /** Right hand side table is to be materialized
          ** for the right partition to perform
          **/
         if (!right.open()) {
             return false;
+        }
+        /** Each partition writer keeps one page pinned in the buffer pool **/
+        rightout = new ArrayList<>(numparts);
+        for (int i = 0; i < numparts; i++) {
+            String tfname =  "HJRtemp-" + String.valueOf(i) + this.hashCode();
+            TupleWriter writer = new TupleWriter(tfname, right.getSchema());
+            writer.setBufferPool(BufferManager.getBufferPool());
+            if (!writer.open()) {
+                System.out.println("HashJoin: Error writing to temporary file");
+                return false;
+            }
+            rightout.add(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Partition 0 turned out larger than the memory set aside for it,
+     * * it is written to disk like the other partitions
+     **/
+    private void spillResident(TupleWriter out) {
+        for (int i = 0; i < residenttable.size(); i++) {
+            out.next(residenttable.get(i));
+        }
+        residenttable = null;
+        resident = false;
+    }
+
+    /**
+     * Installs the filter on the scan of a base table at the bottom of the subtree,
+     * * if the tuples only go through selections, projections and exchanges on the way up.
+     * * keys are the indices of the join attributes in the schema of the node.
+     * * Returns whether the filter has been installed.
+     **/
+    private boolean pushFilter(Operator node, int[] keys) {
+        Operator base;
+        if (node.getOpType() == OpType.SELECT) {
+            base = ((Select) node).getBase();
+        } else if (node.getOpType() == OpType.PROJECT) {
+            base = ((Project) node).getBase();
+        } else if (node instanceof Exchange) {
+            base = ((Exchange) node).getBase();
         } else {
-            ArrayList<Batch> partitions = new ArrayList<>(numBuff - 1);
-            for (int i = 0; i < numBuff - 1; i++) {
-                partitions.add(new Batch(rightbatchsize));
+            if (node.getOpType() == OpType.SCAN && ((Scan) node).getTabName() != null) {
+                ((Scan) node).setJoinFilter(filter, keys, partseed);
+                return true;
             }
-            try {
-                ArrayList<ObjectOutputStream> rightout = new ArrayList<>(numBuff - 1);
-                for (int i = 0; i < numBuff - 1; i++) {
-                    String tfname =  "HJRtemp-" + String.valueOf(i) + this.hashCode();
-                    rightout.add(new ObjectOutputStream(new FileOutputStream(tfname)));
-                }
-                while ((rightbatch = right.next()) != null) {
-                    for (int i = 0; i < rightbatch.size(); i++) {
-                        Tuple tuple = rightbatch.get(i);
-                        int key = tuple.dataAt(rightindex.get(0)).hashCode();
-                        int partitionnum = (a1 * key + b1) % (numBuff - 1);
-                        partitions.get(partitionnum).add(tuple);
-                        if (partitions.get(partitionnum).isFull()) {
-                            rightout.get(partitionnum).writeObject(partitions.get(partitionnum));
-                            partitions.set(partitionnum,new Batch(rightbatchsize));
-                        }
-                    }
+            return false;
+        }
+        int[] basekeys = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            basekeys[i] = base.getSchema().indexOf(node.getSchema().getAttribute(keys[i]));
+            if (basekeys[i] < 0) {
+                return false;
+            }
+        }
+        return pushFilter(base, basekeys);
+    }
+
+    /**
+     * Reads the right hand side, writing its tuples to their partitions,
+     * * except those of partition 0 that are joined with the partition 0 in memory
+     * * Returns true if the output page is full before the right hand side is consumed
+     **/
+    private boolean partitionRight() {
+        while (true) {
+            if (rightbatch == null || rcurs >= rightbatch.size()) {
+                rightbatch = right.next();
+                rcurs = 0;
+                if (rightbatch == null) {
+                    break;
                 }
-                for (int i = 0; i < numBuff - 1; i++) {
-                    if (!partitions.get(i).isEmpty()) {
-                        rightout.get(i).writeObject(partitions.get(i));
+                continue;
+            }
+            Tuple righttuple = rightbatch.get(rcurs);
+            int h = hash(righttuple, rightindex, partseed);
+            if (filter != null && !filter.mightContain(h)) {
+                rcurs++;
+                continue;
+            }
+            int partitionnum = bucket(h, numparts);
+            if (partitionnum != 0 || !resident) {
+                rightout.get(partitionnum).next(righttuple);
+                rcurs++;
+                continue;
+            }
+            int i = lcurs > 0 ? lcurs - 1 : residenttable.find(righttuple, h, rightindex);
+            lcurs = 0;
+            for (; i >= 0; i = residenttable.next(i)) {
+                outbatch.add(residenttable.get(i).joinWith(righttuple, layout));
+                if (outbatch.isFull()) {
+                    if (residenttable.next(i) >= 0) {
+                        lcurs = residenttable.next(i) + 1;
+                    } else {
+                        rcurs++;
                     }
-                    rightout.get(i).close();
+                    return true;
                 }
-            } catch (IOException io) {
-                System.out.println("HashJoin: Error writing to temporary file");
-                return false;
             }
-            return right.close();
+            rcurs++;
+        }
+
+        for (TupleWriter writer : rightout) {
+            writer.close();
         }
+        right.close();
+        rightdone = true;
+        residenttable = null;
+        lcurs = 0;
+        rcurs = 0;
+        eosl = true;
+        eosr = true;
+        return false;
     }
 
     /**
@@ -184,223 +373,303 @@ public class HashJoin extends Join{
             return null;
         }
 
-        // if (numBuff < Math.sqrt(leftnumpages)) {
-        //     if (pcurs == -1) {
-        //         pcurs++;
-        //     }
-
-        //     // recursively partition each partition
-        //     while (pcurs < numBuff - 1) {
-        //         if (hashjoin == null) {
-        //             lfname = "HJLtemp-" + String.valueOf(pcurs) + this.hashCode();
-        //             rfname = "HJRtemp-" + String.valueOf(pcurs) + this.hashCode();
-        //             Scan s1 = new Scan(lfname, OpType.SCAN, true);
-        //             s1.setSchema(left.schema);
-        //             Scan s2 = new Scan(rfname, OpType.SCAN, true);
-        //             s2.setSchema(right.schema);
-        //             Join j = new Join(s1, s2, this.conditionList, this.optype);
-        //             j.setSchema(schema);
-        //             j.setJoinType(JoinType.HASHJOIN);
-        //             j.setNumBuff(numBuff);
-        //             hashjoin = new HashJoin(j);
-        //             hashjoin.open();
-        //         }
-
-        //         outbatch = hashjoin.next();
-        //         if (outbatch == null) {
-        //             hashjoin.close();
-        //             hashjoin = null;
-        //             pcurs++;
-        //         } else {
-        //             return outbatch;
-        //         }
-        //     }
-
-        //     return null;
-
-        // } else {
-            outbatch = new Batch(batchsize);
-            while (!outbatch.isFull()) {
-                if (lcurs == 0 && rcurs == 0 && eosr == true) {
-                    if (blocknestedjoin != null) {
-                        outbatch = blocknestedjoin.next();
-                        if (outbatch == null) {
-                            blocknestedjoin.close();
-                            blocknestedjoin = null;
-                            outbatch = new Batch(batchsize);
-                        } else {
-                            return outbatch;
-                        }
-                    }
-
-                    if (pcurs == numBuff - 2 && eosl == true) {
-                        done = true;
+        outbatch = new Batch(batchsize);
+        if (!rightdone && partitionRight()) {
+            return outbatch;
+        }
+        if (workers != null || startWorkers()) {
+            /** the matches of partition 0 found by partitionRight go out first **/
+            if (!outbatch.isEmpty()) {
+                return outbatch;
+            }
+            return nextFromWorkers();
+        }
+        while (!outbatch.isFull()) {
+            if (lcurs == 0 && rcurs == 0 && eosr == true) {
+                if (hashjoin != null || blocknestedjoin != null) {
+                    Join subjoin = hashjoin != null ? hashjoin : blocknestedjoin;
+                    outbatch = subjoin.next();
+                    if (outbatch == null) {
+                        subjoin.close();
+                        hashjoin = null;
+                        blocknestedjoin = null;
+                        outbatch = new Batch(batchsize);
+                    } else {
                         return outbatch;
                     }
+                }
 
-                    if (eosl == true) {
-                        pcurs++;
-                        lfname = "HJLtemp-" + String.valueOf(pcurs) + this.hashCode();
-                        rfname = "HJRtemp-" + String.valueOf(pcurs) + this.hashCode();
-                    }
+                if (pcurs == numparts - 1 && eosl == true) {
+                    done = true;
+                    return outbatch;
+                }
 
-                    try {
-                        inleft = new ObjectInputStream(new FileInputStream(lfname));
-                        inright = new ObjectInputStream(new FileInputStream(rfname));
-                    } catch (IOException e) {
-                        System.err.println("HashJoin:error in reading the file");
-                        System.exit(1);
-                    }
+                if (eosl == true) {
+                    pcurs++;
+                    lfname = "HJLtemp-" + String.valueOf(pcurs) + this.hashCode();
+                    rfname = "HJRtemp-" + String.valueOf(pcurs) + this.hashCode();
+                }
+
+                inleft = new TupleReader(lfname, leftbatchsize, left.getSchema());
+                inleft.setBufferPool(BufferManager.getBufferPool());
+                inright = new TupleReader(rfname, rightbatchsize, right.getSchema());
+                inright.setBufferPool(BufferManager.getBufferPool());
+                if (!inleft.open() || !inright.open()) {
+                    System.err.println("HashJoin:error in reading the file");
+                    System.exit(1);
+                }
+
+                hashtable = new TupleHashTable((numBuff - 2) * leftbatchsize, leftindex);
+
+                eosl = false;
+                eosr = false;
+                boolean full = false;
 
-                    hashtable = new ArrayList<>(numBuff - 2);
-                    for (int i = 0; i < numBuff - 2; i++) {
-                        hashtable.add(new Batch(leftbatchsize));
+                // read left partition
+                while (eosl == false && full == false) {
+                    leftbatch = inleft.nextBatch();
+                    if (leftbatch == null) {
+                        eosl = true;
+                        break;
                     }
 
-                    eosl = false;
-                    eosr = false;
-                    boolean full = false;
-
-                    // read left partition
-                    while (eosl == false && full == false) {
-                        try {
-                            leftbatch = (Batch) inleft.readObject();
-                        } catch (EOFException e) {
-                            try {
-                                inleft.close();
-                            } catch (IOException io) {
-                                System.out.println("HashJoin: Error in reading temporary file");
-                            }
+                    for (int i = 0; i < leftbatch.size(); i++) {
+                        hashtable.add(leftbatch.get(i), hash(leftbatch.get(i), leftindex, partseed));
+                        if (hashtable.isFull()) { // partition cannot fit into memory
+                            lcurs = 0;
+                            rcurs = 0;
                             eosl = true;
+                            eosr = true;
+                            full = true;
                             break;
-                        } catch (ClassNotFoundException c) {
-                            System.out.println("HashJoin: Error in deserialising temporary file ");
-                            System.exit(1);
-                        } catch (IOException io) {
-                            System.out.println("HashJoin: Error in reading temporary file");
-                            System.exit(1);
-                        }
-
-                        for (int i = 0; i < leftbatch.size(); i++) {
-                            Tuple tuple = leftbatch.get(i);
-                            int key = tuple.dataAt(leftindex.get(0)).hashCode();
-                            int partitionnum = (a2 * key + b2) % (numBuff - 2);
-                            hashtable.get(partitionnum).add(tuple);
-                            if (hashtable.get(partitionnum).size() >= leftbatchsize) { // partition cannot fit into memory
-                                lcurs = 0;
-                                rcurs = 0;
-                                eosl = true;
-                                eosr = true;
-                                full = true;
-                                break;
-                            }
                         }
                     }
+                }
 
-                    if (full == true) {
-                        // use block nested join if partition cannot fit in memory
-                        Scan s1 = new Scan(lfname, OpType.SCAN, true);
-                        s1.setSchema(left.schema);
-                        Scan s2 = new Scan(rfname, OpType.SCAN, true);
-                        s2.setSchema(right.schema);
-                        Join j = new Join(s1, s2, this.conditionList, this.optype);
-                        j.setSchema(schema);
-                        j.setJoinType(JoinType.BLOCKNESTED);
-                        j.setNumBuff(numBuff);
-                        blocknestedjoin = new BlockNestedJoin(j);
-                        blocknestedjoin.open();
-                        outbatch = blocknestedjoin.next();
-                        if (outbatch == null) {
-                            blocknestedjoin.close();
-                            blocknestedjoin = null;
-                            outbatch = new Batch(batchsize);
-                        } else {
-                            return outbatch;
-                        }
+                if (full == true) {
+                    // repartition the partition with another hash function, unless the
+                    // table only holds a single key that no hash function can split
+                    inleft.close();
+                    inright.close();
+                    Join subjoin;
+                    if (depth < MAX_DEPTH && hashtable.getNumKeys() > 1) {
+                        hashjoin = subjoin = partitionHashJoin(pcurs, numBuff);
                     } else {
-                        // read right partition
-                        try {
-                            rightbatch = (Batch) inright.readObject();
-                        } catch (EOFException e) {
-                            try {
-                                inright.close();
-                            } catch (IOException io) {
-                                System.out.println("HashJoin: Error in reading temporary file");
-                            }
-                            eosr = true;
-                            lcurs = 0;
-                            rcurs = 0;
-                            continue;
-                        } catch (ClassNotFoundException c) {
-                            System.out.println("HashJoin: Error in deserialising temporary file ");
-                            System.exit(1);
-                        } catch (IOException io) {
-                            System.out.println("HashJoin: Error in reading temporary file");
-                            System.exit(1);
-                        }
+                        Join j = partitionJoin(pcurs, numBuff);
+                        j.setJoinType(JoinType.BLOCKNESTED);
+                        blocknestedjoin = subjoin = new BlockNestedJoin(j);
+                    }
+                    if (!subjoin.open()) {
+                        System.err.println("HashJoin: error in joining partition " + pcurs);
+                        System.exit(1);
+                    }
+                    // the output of the previous partitions goes out before the pages of the subjoin
+                    if (!outbatch.isEmpty()) {
+                        return outbatch;
+                    }
+                } else {
+                    // read right partition
+                    rightbatch = inright.nextBatch();
+                    if (rightbatch == null) {
+                        eosr = true;
+                        lcurs = 0;
+                        rcurs = 0;
+                        continue;
                     }
                 }
+            }
 
-                while (eosr == false) {
-                    for (int j = rcurs; j < rightbatch.size(); j++) {
-                        Tuple righttuple = rightbatch.get(j);
-                        int key = righttuple.dataAt(rightindex.get(0)).hashCode();
-                        int partitionnum = (a2 * key + b2) % (numBuff - 2);
-                        for (int i = lcurs; i < hashtable.get(partitionnum).size(); i++) {
-                            Tuple lefttuple = hashtable.get(partitionnum).get(i);
-                            if (lefttuple.checkJoin(righttuple, leftindex, rightindex)) {
-                                Tuple outtuple = lefttuple.joinWith(righttuple);
-                                outbatch.add(outtuple);
-                                if (outbatch.isFull()) {
-                                    if (i == hashtable.get(partitionnum).size() - 1 && j != rightbatch.size() - 1) {
-                                        lcurs = 0;
-                                        rcurs = j + 1;
-                                    } else {
-                                        lcurs = i + 1;
-                                        rcurs = j;
-                                    }
-                                    return outbatch;
-                                }
+            while (eosr == false) {
+                for (int j = rcurs; j < rightbatch.size(); j++) {
+                    Tuple righttuple = rightbatch.get(j);
+                    int i = lcurs > 0 ? lcurs - 1 : hashtable.find(righttuple, hash(righttuple, rightindex, partseed), rightindex);
+                    lcurs = 0;
+                    for (; i >= 0; i = hashtable.next(i)) {
+                        Tuple outtuple = hashtable.get(i).joinWith(righttuple, layout);
+                        outbatch.add(outtuple);
+                        if (outbatch.isFull()) {
+                            if (hashtable.next(i) >= 0) {
+                                lcurs = hashtable.next(i) + 1;
+                                rcurs = j;
+                            } else {
+                                rcurs = j + 1;
                             }
+                            return outbatch;
                         }
-                        lcurs = 0;
                     }
-                    rcurs = 0;
-
-                    try {
-                        rightbatch = (Batch) inright.readObject();
-                    } catch (EOFException e) {
-                        try {
-                            inright.close();
-                        } catch (IOException io) {
-                            System.out.println("HashJoin: Error in reading temporary file");
-                        }
-                        eosr = true;
-                    } catch (ClassNotFoundException c) {
-                        System.out.println("HashJoin: Error in deserialising temporary file ");
-                        System.exit(1);
-                    } catch (IOException io) {
-                        System.out.println("HashJoin: Error in reading temporary file");
-                        System.exit(1);
+                }
+                rcurs = 0;
+
+                rightbatch = inright.nextBatch();
+                if (rightbatch == null) {
+                    eosr = true;
+                }
+            }
+        }
+
+        return outbatch;
+    }
+
+    /**
+     * Join of partition p of the left and right inputs, read from their files, with the given number of buffers
+     **/
+    private Join partitionJoin(int p, int buffers) {
+        Scan s1 = new Scan("HJLtemp-" + String.valueOf(p) + this.hashCode(), OpType.SCAN, true);
+        s1.setSchema(left.schema);
+        Scan s2 = new Scan("HJRtemp-" + String.valueOf(p) + this.hashCode(), OpType.SCAN, true);
+        s2.setSchema(right.schema);
+        Join j = new Join(s1, s2, this.conditionList, this.optype);
+        j.setSchema(schema);
+        j.setNumBuff(buffers);
+        return j;
+    }
+
+    /**
+     * Hash join of partition p, which repartitions it if it does not fit into the given number of buffers
+     **/
+    private HashJoin partitionHashJoin(int p, int buffers) {
+        Join j = partitionJoin(p, buffers);
+        j.setJoinType(JoinType.HASHJOIN);
+        HashJoin child = new HashJoin(j);
+        child.depth = depth + 1;
+        child.numworkers = 1;
+        child.setBuildPages(leftpages[p]);
+        return child;
+    }
+
+    /**
+     * Starts the workers joining the partitions on disk once the right input has been partitioned.
+     * * Each worker takes the partitions one at a time and joins them with a hash join limited to
+     * * its share of the buffers left once the pages of the output queue are set aside, so the
+     * * workers and the queue together use no more than the buffers of this join.
+     * * Returns false, and the partitions are joined by next() itself, if there are too few
+     * * partitions or buffers to share, or the recursion depth is exhausted.
+     **/
+    private boolean startWorkers() {
+        int first = pcurs + 1;
+        int ondisk = 0;
+        for (int p = first; p < numparts; p++) {
+            if (leftpages[p] > 0) ondisk++;
+        }
+        /** The pages of the output queue are taken from the buffers before they are shared **/
+        int n = Math.min(numworkers, Math.min(ondisk, numBuff / (QUEUE_PAGES_PER_WORKER + 3)));
+        if (n < 2 || depth >= MAX_DEPTH) {
+            return false;
+        }
+        int share = (numBuff - QUEUE_PAGES_PER_WORKER * n) / n;
+        nextpart = new AtomicInteger(first);
+        results = new ArrayBlockingQueue<>(QUEUE_PAGES_PER_WORKER * n);
+        stopped = false;
+        failure = null;
+        ended = 0;
+        workers = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            workers[i] = new Thread(() -> work(share), "hashjoin-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        return true;
+    }
+
+    /**
+     * Body of a worker thread: joins partitions until none is left and queues the output pages
+     **/
+    private void work(int buffers) {
+        try {
+            int p;
+            while (!stopped && (p = nextpart.getAndIncrement()) < numparts) {
+                if (leftpages[p] == 0) continue;
+                HashJoin partjoin = partitionHashJoin(p, buffers);
+                if (!partjoin.open()) {
+                    throw new IllegalStateException("HashJoin: error in joining partition " + p);
+                }
+                Batch batch;
+                while (!stopped && (batch = partjoin.next()) != null) {
+                    if (!batch.isEmpty()) {
+                        results.put(batch);
                     }
                 }
+                partjoin.close();
+            }
+        } catch (InterruptedException | RuntimeException | Error e) {
+            failure = e;
+        }
+        /** The end marker is always delivered, unless the join has been closed **/
+        while (!stopped) {
+            try {
+                results.put(END);
+                break;
+            } catch (InterruptedException e) {
+                failure = e;
             }
+        }
+    }
 
-            return outbatch;
-        // }
+    /**
+     * Next page produced by the workers, in the order they are produced
+     **/
+    private Batch nextFromWorkers() {
+        while (ended < workers.length) {
+            Batch batch;
+            try {
+                batch = results.take();
+            } catch (InterruptedException e) {
+                System.err.println("HashJoin: interrupted while waiting for the workers");
+                System.exit(1);
+                return null;
+            }
+            if (batch == END) {
+                ended++;
+            } else {
+                return batch;
+            }
+        }
+        if (failure != null) {
+            System.err.println("HashJoin: error in a worker: " + failure);
+            System.exit(1);
+        }
+        done = true;
+        return null;
+    }
+
+    /**
+     * Stops the workers that are still running
+     **/
+    private void stopWorkers() {
+        stopped = true;
+        for (Thread worker : workers) {
+            /** A worker blocked on the full queue is released by emptying the queue **/
+            while (worker.isAlive()) {
+                results.clear();
+                try {
+                    worker.join(10);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        workers = null;
     }
 
     /**
      * Close the operator
      */
     public boolean close() {
-        for(int i = 0; i < numBuff - 1; i++) {
-            String lfname = "HJLtemp-" + String.valueOf(i) + this.hashCode();
-            File lf = new File(lfname);
-            lf.delete();
-            String rfname = "HJRtemp-" + String.valueOf(i) + this.hashCode();
-            File rf = new File(rfname);
-            rf.delete();
+        if (workers != null) stopWorkers();
+        if (inleft != null) inleft.close();
+        if (inright != null) inright.close();
+        if (hashjoin != null) hashjoin.close();
+        if (blocknestedjoin != null) blocknestedjoin.close();
+        if (!rightdone && rightout != null) {
+            for (TupleWriter writer : rightout) {
+                writer.close();
+            }
+            right.close();
+            rightdone = true;
+        }
+        for(int i = 0; i < numparts; i++) {
+            BufferManager.getBufferPool().delete("HJLtemp-" + String.valueOf(i) + this.hashCode());
+            BufferManager.getBufferPool().delete("HJRtemp-" + String.valueOf(i) + this.hashCode());
         }
         return true;
     }
@@ -0,0 +1,212 @@
+/**
+ * Index Nested Loop Join algorithm
+ **/
+
+package qp.operators;
+
+import qp.optimizer.BufferManager;
+import qp.utils.Attribute;
+import qp.utils.BPlusTree;
+import qp.utils.Batch;
+import qp.utils.Condition;
+import qp.utils.Dictionary;
+import qp.utils.Predicate;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+
+import java.util.ArrayList;
+
+/**
+ * IndexNestedJoin - for each tuple of the left input the matching records of the right
+ * * table are found through a B+-tree index (see BPlusTree) on the join attribute and
+ * * fetched by their position, so the right table is never scanned. The right input must be
+ * * a base table, possibly under selections, which are checked on the fetched records.
+ * * The remaining join conditions are checked on each pair of tuples.
+ **/
+public class IndexNestedJoin extends Join {
+
+    int batchsize;                  // Number of tuples per out batch
+    int[] layout;                   // Layout of the output tuples
+    ArrayList<Integer> leftindex;   // Indices of the join attributes in left table
+    ArrayList<Integer> rightindex;  // Indices of the join attributes in right table
+    int probeindex;                 // Index of the probed join attribute in left table
+    Schema tableschema;             // Schema of the right table
+    Dictionary[] dictionaries;      // Dictionaries of the columns of the right table decoded when fetched
+    ArrayList<Predicate> selects;   // Selections on the right table
+    BPlusTree index;                // Index of the right table probed
+    BPlusTree.Cursor cursor;        // Position of the next matching record, valid while a left tuple is probed
+    Object probekey;                // Key of the left tuple probed
+    Batch leftbatch;                // Buffer page for left input stream
+    int lcurs;                      // Cursor for left side buffer
+    boolean probing;                // Whether the cursor is on the matches of leftbatch[lcurs]
+    boolean eosl;                   // Whether end of stream (left table) is reached
+
+    public IndexNestedJoin(Join jn) {
+        super(jn.getLeft(), jn.getRight(), jn.getConditionList(), jn.getOpType());
+        schema = jn.getSchema();
+        jointype = jn.getJoinType();
+        numBuff = jn.getNumBuff();
+    }
+
+    /**
+     * Scan of the base table under the selections of the right input, null if the right input is anything else
+     **/
+    static Scan baseScan(Operator right) {
+        while (right.getOpType() == OpType.SELECT) {
+            right = ((Select) right).getBase();
+        }
+        if (right.getOpType() == OpType.SCAN && ((Scan) right).getTabName() != null) {
+            return (Scan) right;
+        }
+        return null;
+    }
+
+    /**
+     * Position in the condition list of the join condition probed through an index
+     * * of the right table, -1 if the join cannot be done with an index
+     **/
+    public static int probedCondition(Join jn) {
+        Scan scan = baseScan(jn.getRight());
+        if (scan == null) {
+            return -1;
+        }
+        Schema leftschema = jn.getLeft().getSchema();
+        Schema rightschema = jn.getRight().getSchema();
+        ArrayList<Condition> conditions = jn.getConditionList();
+        for (int i = 0; i < conditions.size(); ++i) {
+            Attribute leftattr = conditions.get(i).getLhs();
+            Attribute rightattr = (Attribute) conditions.get(i).getRhs();
+            int leftind = leftschema.indexOf(leftattr);
+            int rightind = rightschema.indexOf(rightattr);
+            if (leftind < 0 || rightind < 0 || leftschema.typeOf(leftind) != rightschema.typeOf(rightind)) {
+                continue;
+            }
+            BPlusTree tree = BPlusTree.lookup(scan.getTabName(), rightattr.getColName());
+            if (tree != null && tree.getColumn() == rightind) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index probed by the join, null if the join cannot be done with an index
+     **/
+    public static BPlusTree probedIndex(Join jn) {
+        int i = probedCondition(jn);
+        if (i < 0) {
+            return null;
+        }
+        Attribute rightattr = (Attribute) jn.getConditionList().get(i).getRhs();
+        return BPlusTree.lookup(baseScan(jn.getRight()).getTabName(), rightattr.getColName());
+    }
+
+    /**
+     * During open finds the index of the join attributes and the index to probe
+     * * Only the left hand side is opened, the right table is read through the index
+     **/
+    public boolean open() {
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+        layout = Tuple.layoutOf(schema);
+
+        int probed = probedCondition(this);
+        if (probed < 0) {
+            System.out.println("IndexNestedJoin: there is no index on the join attributes of the right table");
+            return false;
+        }
+        leftindex = new ArrayList<>();
+        rightindex = new ArrayList<>();
+        for (Condition con : conditionList) {
+            Attribute leftattr = con.getLhs();
+            Attribute rightattr = (Attribute) con.getRhs();
+            leftindex.add(left.getSchema().indexOf(leftattr));
+            rightindex.add(right.getSchema().indexOf(rightattr));
+        }
+        probeindex = leftindex.get(probed);
+
+        Scan scan = baseScan(right);
+        tableschema = scan.getSchema();
+        dictionaries = Dictionary.decoders(tableschema);
+        selects = new ArrayList<>();
+        for (Operator op = right; op != scan; op = ((Select) op).getBase()) {
+            Predicate predicate = Predicate.compile(((Select) op).getCondition(), tableschema);
+            if (predicate == null) {
+                System.out.println("IndexNestedJoin: Malformed condition");
+                return false;
+            }
+            selects.add(predicate);
+        }
+        index = probedIndex(this);
+        index.setBufferPool(BufferManager.getBufferPool());
+        cursor = index.cursor();
+
+        lcurs = 0;
+        probing = false;
+        eosl = false;
+        leftbatch = null;
+        return left.open();
+    }
+
+    /**
+     * from input buffers selects the tuples satisfying join condition
+     * * And returns a page of output tuples
+     **/
+    public Batch next() {
+        if (eosl) {
+            return null;
+        }
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull()) {
+            if (leftbatch == null || lcurs >= leftbatch.size()) {
+                leftbatch = left.next();
+                lcurs = 0;
+                if (leftbatch == null) {
+                    eosl = true;
+                    break;
+                }
+                continue;
+            }
+            Tuple lefttuple = leftbatch.get(lcurs);
+            if (!probing) {
+                probekey = lefttuple.dataAt(probeindex);
+                cursor.seek(probekey);
+                probing = true;
+            }
+            while (!outbatch.isFull() && cursor.isValid() && cursor.compareKey(probekey) == 0) {
+                Tuple righttuple = index.fetch(tableschema, dictionaries, cursor.getPage(), cursor.getSlot());
+                cursor.advance();
+                if (matches(lefttuple, righttuple)) {
+                    outbatch.add(lefttuple.joinWith(righttuple, layout));
+                }
+            }
+            if (!cursor.isValid() || cursor.compareKey(probekey) != 0) {
+                cursor.close();
+                probing = false;
+                lcurs++;
+            }
+        }
+        return outbatch.isEmpty() ? null : outbatch;
+    }
+
+    // checks the selections on the right table and all the join conditions
+    private boolean matches(Tuple lefttuple, Tuple righttuple) {
+        for (Predicate predicate : selects) {
+            if (!predicate.test(righttuple)) {
+                return false;
+            }
+        }
+        return lefttuple.checkJoin(righttuple, leftindex, rightindex);
+    }
+
+    /**
+     * Close the left input and release the leaf pinned by the cursor
+     **/
+    public boolean close() {
+        if (cursor != null) {
+            cursor.close();
+        }
+        leftbatch = null;
+        return left.close();
+    }
+}
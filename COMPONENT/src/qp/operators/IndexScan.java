@@ -0,0 +1,239 @@
+/**
+ * Scans the records of a base table that satisfy a selection through an index
+ **/
+
+package qp.operators;
+
+import qp.optimizer.BufferManager;
+import qp.utils.BPlusTree;
+import qp.utils.Batch;
+import qp.utils.Condition;
+import qp.utils.Dictionary;
+import qp.utils.Predicate;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * IndexScan - replaces a Scan and a Select whose condition compares an indexed column with
+ * * a constant (=, <, >, <=, >=). Only the range of the index that satisfies the condition is
+ * * read. In key order the records are fetched as the leaves are walked and are returned sorted
+ * * on the column. Otherwise the positions of all the records in the range are collected and
+ * * sorted first, so each page of the table is read once and in the order of the file.
+ **/
+public class IndexScan extends Operator {
+
+    static double threshold = 0.1;  // Largest estimated selectivity for which an index scan replaces a scan
+
+    String tabname;             // Table name
+    Condition con;              // Select condition on the indexed column
+    boolean keyorder;           // Whether the records are returned in the order of the index
+    int batchsize;              // Number of tuples per out batch
+
+    /**
+     * The following fields are required during execution
+     **/
+    BPlusTree index;            // Index on the column of the condition
+    Object key;                 // Constant of the condition
+    Predicate predicate;        // Condition checked on each record fetched
+    Dictionary[] dictionaries;  // Dictionaries of the columns decoded when fetched
+    BPlusTree.Cursor cursor;    // Next entry of the range (key order)
+    long[] rids;                // Sorted page and slot of the records of the range (row id order)
+    int numrids;                // Number of records in rids
+    int ridcurs;                // Next record of rids to fetch
+    boolean eos;                // Whether end of stream is reached
+
+    public IndexScan(String tabname, Condition con, int type) {
+        super(type);
+        this.tabname = tabname;
+        this.con = con;
+    }
+
+    public String getTabName() {
+        return tabname;
+    }
+
+    public Condition getCondition() {
+        return con;
+    }
+
+    public boolean isKeyOrder() {
+        return keyorder;
+    }
+
+    public void setKeyOrder(boolean flag) {
+        keyorder = flag;
+    }
+
+    /**
+     * Set the largest estimated selectivity of a condition for which
+     * * the initial plan uses an index scan, 0 never uses one
+     **/
+    public static void setThreshold(double fraction) {
+        threshold = fraction;
+    }
+
+    public static double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Index that can be used for the select condition on the table, null if there is none
+     **/
+    public static BPlusTree indexFor(String tabname, Condition con, Schema schema) {
+        int exprtype = con.getExprType();
+        if (con.getOpType() != Condition.SELECT || !(con.getRhs() instanceof String)
+                || exprtype < Condition.LESSTHAN || exprtype > Condition.EQUAL) {
+            return null;
+        }
+        BPlusTree tree = BPlusTree.lookup(tabname, con.getLhs().getColName());
+        if (tree == null || tree.getColumn() != schema.indexOf(con.getLhs())
+                || tree.parseKey((String) con.getRhs()) == null) {
+            return null;
+        }
+        return tree;
+    }
+
+    /**
+     * Estimated fraction of the records of the table that satisfy the condition,
+     * * from the position of the constant in the index
+     **/
+    public static double selectivity(BPlusTree index, Condition con) {
+        if (index.getNumEntries() == 0) {
+            return 0;
+        }
+        index.setBufferPool(BufferManager.getBufferPool());
+        Object key = index.parseKey((String) con.getRhs());
+        double equal = 1.0 / index.getNumKeys();
+        double below = index.estimateFraction(key);
+        switch (con.getExprType()) {
+            case Condition.EQUAL:
+                return equal;
+            case Condition.LESSTHAN:
+                return below;
+            case Condition.LTOE:
+                return Math.min(1, below + equal);
+            case Condition.GREATERTHAN:
+                return Math.max(0, 1 - below - equal);
+            default:
+                return 1 - below;
+        }
+    }
+
+    /**
+     * Positions the cursor at the start of the range, and collects
+     * * and sorts the positions of its records unless in key order
+     **/
+    public boolean open() {
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+        eos = false;
+
+        index = indexFor(tabname, con, schema);
+        predicate = Predicate.compile(con, schema);
+        if (index == null || predicate == null) {
+            System.out.println("IndexScan: there is no index for the condition on " + tabname);
+            return false;
+        }
+        index.setBufferPool(BufferManager.getBufferPool());
+        dictionaries = Dictionary.decoders(schema);
+        key = index.parseKey((String) con.getRhs());
+        cursor = index.cursor();
+        int exprtype = con.getExprType();
+        if (exprtype == Condition.LESSTHAN || exprtype == Condition.LTOE) {
+            cursor.seek(null);
+        } else {
+            cursor.seek(key);
+            while (exprtype == Condition.GREATERTHAN && cursor.isValid() && cursor.compareKey(key) == 0) {
+                cursor.advance();
+            }
+        }
+
+        numrids = 0;
+        ridcurs = 0;
+        if (!keyorder) {
+            rids = new long[64];
+            while (inRange()) {
+                if (numrids == rids.length) {
+                    rids = Arrays.copyOf(rids, 2 * numrids);
+                }
+                rids[numrids++] = ((long) cursor.getPage() << 32) | cursor.getSlot();
+                cursor.advance();
+            }
+            cursor.close();
+            Arrays.sort(rids, 0, numrids);
+        }
+        return true;
+    }
+
+    // whether the cursor is on an entry of the range
+    private boolean inRange() {
+        if (!cursor.isValid()) {
+            return false;
+        }
+        switch (con.getExprType()) {
+            case Condition.EQUAL:
+                return cursor.compareKey(key) == 0;
+            case Condition.LESSTHAN:
+                return cursor.compareKey(key) < 0;
+            case Condition.LTOE:
+                return cursor.compareKey(key) <= 0;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Fetches the next page of records of the range, the records of a page
+     * * of the table are fetched one after the other so it is only read once
+     **/
+    public Batch next() {
+        if (eos) {
+            close();
+            return null;
+        }
+        Batch tuples = new Batch(batchsize);
+        while (!tuples.isFull()) {
+            Tuple data;
+            if (keyorder) {
+                if (!inRange()) {
+                    eos = true;
+                    break;
+                }
+                data = index.fetch(schema, dictionaries, cursor.getPage(), cursor.getSlot());
+                cursor.advance();
+            } else {
+                if (ridcurs >= numrids) {
+                    eos = true;
+                    break;
+                }
+                long rid = rids[ridcurs++];
+                data = index.fetch(schema, dictionaries, (int) (rid >>> 32), (int) rid);
+            }
+            /** The condition is checked again, with the semantics of Select **/
+            if (predicate.test(data)) {
+                tuples.add(data);
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * Release the leaf pinned by the cursor
+     **/
+    public boolean close() {
+        if (cursor != null) {
+            cursor.close();
+        }
+        rids = null;
+        return true;
+    }
+
+    public Object clone() {
+        IndexScan newscan = new IndexScan(tabname, (Condition) con.clone(), optype);
+        newscan.setSchema((Schema) schema.clone());
+        newscan.setKeyOrder(keyorder);
+        return newscan;
+    }
+}
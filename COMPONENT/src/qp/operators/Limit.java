@@ -0,0 +1,109 @@
+/**
+ * To return only some rows of the result
+ **/
+
+package qp.operators;
+
+import qp.utils.Batch;
+import qp.utils.Schema;
+
+public class Limit extends Operator {
+
+    Operator base;          // Base operator
+    int limit;              // Maximum number of tuples returned
+    int offset;             // Number of tuples skipped before the first one returned
+    int batchsize;          // Number of tuples per out batch
+
+    Batch inbatch;          // Buffer for input
+    int curs;               // Cursor of the next tuple in inbatch
+    int skipped;            // Number of tuples skipped so far
+    int returned;           // Number of tuples returned so far
+    boolean baseclosed;     // Whether the base operator has been closed
+
+    public Limit(Operator base, int limit, int offset) {
+        super(OpType.LIMIT);
+        this.base = base;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public Operator getBase() {
+        return base;
+    }
+
+    public void setBase(Operator base) {
+        this.base = base;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public boolean open() {
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+        inbatch = null;
+        curs = 0;
+        skipped = 0;
+        returned = 0;
+        baseclosed = false;
+        return base.open();
+    }
+
+    /**
+     * Returns the next page of the tuples within the limit. Once the last of them
+     * * has been read the base operator is closed at once, so that the operators
+     * * below (and the scans at the leaves) stop reading their inputs.
+     **/
+    public Batch next() {
+        if (baseclosed) {
+            return null;
+        }
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull() && returned < limit) {
+            if (inbatch == null || curs >= inbatch.size()) {
+                inbatch = base.next();
+                curs = 0;
+                if (inbatch == null) {
+                    break;
+                }
+            }
+            if (skipped < offset) {
+                int skip = Math.min(offset - skipped, inbatch.size() - curs);
+                skipped += skip;
+                curs += skip;
+                continue;
+            }
+            outbatch.add(inbatch.get(curs++));
+            returned++;
+        }
+        if (returned >= limit || inbatch == null) {
+            closeBase();
+        }
+        return outbatch.isEmpty() ? null : outbatch;
+    }
+
+    private void closeBase() {
+        if (!baseclosed) {
+            baseclosed = true;
+            inbatch = null;
+            base.close();
+        }
+    }
+
+    public boolean close() {
+        closeBase();
+        return true;
+    }
+
+    public Object clone() {
+        Operator newbase = (Operator) base.clone();
+        Limit newlimit = new Limit(newbase, limit, offset);
+        newlimit.setSchema((Schema) newbase.getSchema().clone());
+        return newlimit;
+    }
+}
@@ -14,4 +14,8 @@ public class OpType {
     public static final int DISTINCT = 5;
     public static final int GROUPBY = 6;
     public static final int CROSSPRODUCT = 7;
+    public static final int EXCHANGE = 8;
+    public static final int LIMIT = 9;
+    public static final int TOPN = 10;
+    public static final int INDEXSCAN = 11;
 }
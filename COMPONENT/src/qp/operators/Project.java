@@ -6,6 +6,7 @@ package qp.operators;
 
 import qp.utils.Attribute;
 import qp.utils.Batch;
+import qp.utils.ColumnBatch;
 import qp.utils.Schema;
 import qp.utils.Tuple;
 
@@ -29,6 +30,7 @@ public class Project extends Operator {
      * * that are to be projected
      **/
     int[] attrIndex;
+    int[] layout;  // Layout of the output tuples
 
     public Project(Operator base, ArrayList<Attribute> as, int type) {
         super(type);
@@ -77,6 +79,7 @@ public class Project extends Operator {
             int index = baseSchema.indexOf(attr.getBaseAttribute());
             attrIndex[i] = index;
         }
+        layout = Tuple.layoutOf(schema);
         return true;
     }
 
@@ -92,16 +95,16 @@ public class Project extends Operator {
             return null;
         }
 
+        /** The columns of a column batch are picked by reference **/
+        if (inbatch instanceof ColumnBatch && !((ColumnBatch) inbatch).isMaterialized()) {
+            return ((ColumnBatch) inbatch).project(attrIndex, layout);
+        }
+
         for (int i = 0; i < inbatch.size(); i++) {
             Tuple basetuple = inbatch.get(i);
             //Debug.PPrint(basetuple);
             //System.out.println();
-            ArrayList<Object> present = new ArrayList<>();
-            for (int j = 0; j < attrset.size(); j++) {
-                Object data = basetuple.dataAt(attrIndex[j]);
-                present.add(data);
-            }
-            Tuple outtuple = new Tuple(present);
+            Tuple outtuple = basetuple.project(attrIndex, layout);
             outbatch.add(outtuple);
         }
         return outbatch;
@@ -0,0 +1,101 @@
+/**
+ * Merge of the sorted runs of the external merge sorts
+ **/
+
+package qp.operators;
+
+import qp.utils.Batch;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+import qp.utils.TupleReader;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * RunMerger - merges sorted run files (of Sort, Distinct) one tuple at a time.
+ * * One page of each run is kept in a priority queue, and the next page of a run
+ * * is read once all the tuples of its current page have been returned.
+ * * The runs are slotted page files written by TupleWriter, compressed or not.
+ * * A run file is deleted as soon as it has been read to the end, or when the merger is closed.
+ **/
+class RunMerger {
+
+    String[] fnames;                    // Files of the runs
+    TupleReader[] readers;              // Reader of each run, null once the run is done
+    int[] left;                         // Tuples of the current page of each run still in the queue
+    PriorityQueue<TupleWithId> pq;      // Tuples of the current pages, smallest first
+    ToLongFunction<Tuple> keyof;        // Normalized key of a tuple, stored in TupleWithId.key
+    String owner;                       // Name of the operator, for the error messages
+
+    RunMerger(String[] fnames, Schema schema, Comparator<TupleWithId> cmp, ToLongFunction<Tuple> keyof, String owner) {
+        this.fnames = fnames;
+        this.keyof = keyof;
+        this.owner = owner;
+        readers = new TupleReader[fnames.length];
+        left = new int[fnames.length];
+        pq = new PriorityQueue<>(Math.max(1, fnames.length), cmp);
+        int batchsize = Math.max(1, Batch.getPageSize() / schema.getTupleSize());
+        for (int i = 0; i < fnames.length; i++) {
+            readers[i] = new TupleReader(fnames[i], batchsize, schema);
+            if (!readers[i].open()) {
+                System.err.println(owner + ": error in reading temporary file");
+                System.exit(1);
+            }
+            readPage(i);
+        }
+    }
+
+    /**
+     * Next tuple of the merge, null once all the runs are done
+     **/
+    Tuple next() {
+        TupleWithId tuple = pq.poll();
+        if (tuple == null) {
+            return null;
+        }
+        int runid = tuple.runid;
+        if (--left[runid] == 0) {
+            readPage(runid);
+        }
+        return tuple.tuple;
+    }
+
+    // loads the next non empty page of the run into the queue, or finishes the run
+    private void readPage(int runid) {
+        if (readers[runid] == null) {
+            return;
+        }
+        Batch batch = readers[runid].nextBatch();
+        if (batch == null) {
+            finish(runid);
+            return;
+        }
+        for (int j = 0; j < batch.size(); j++) {
+            Tuple t = batch.get(j);
+            pq.add(new TupleWithId(t, runid, j, keyof == null ? 0 : keyof.applyAsLong(t)));
+        }
+        left[runid] = batch.size();
+    }
+
+    // closes and deletes the file of the run
+    private void finish(int runid) {
+        readers[runid].close();
+        readers[runid] = null;
+        new File(fnames[runid]).delete();
+    }
+
+    /**
+     * Closes and deletes the runs that have not been read to the end
+     **/
+    void close() {
+        for (int i = 0; i < readers.length; i++) {
+            if (readers[i] != null) {
+                finish(i);
+            }
+        }
+        pq.clear();
+    }
+}
@@ -4,26 +4,42 @@
 
 package qp.operators;
 
+import qp.optimizer.BufferManager;
 import qp.utils.Batch;
+import qp.utils.BloomFilter;
+import qp.utils.ColumnBatch;
+import qp.utils.Condition;
+import qp.utils.Dictionary;
 import qp.utils.Schema;
 import qp.utils.Tuple;
+import qp.utils.TupleReader;
+import qp.utils.ZoneMap;
 
-import java.io.EOFException;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.util.ArrayList;
 
 /**
  * Scan operator - read data from a file
  */
 public class Scan extends Operator {
 
+    static boolean memoryMapped = false;  // Whether table files are read through a memory mapping
+    static boolean vectorized = false;    // Whether base tables are returned as column batches
+    static int skippedPages = 0;          // Pages skipped through the zone maps by all the scans so far
+
     String filename;       // Corresponding file name
     String tabname;        // Table name
     int batchsize;         // Number of tuples per out batch;
-    ObjectInputStream in;  // Input file being scanned
+    int[] layout;          // Layout of the tuples (vectorized mode)
+    TupleReader reader;    // Reads the slotted pages of the table or partition file
     boolean eos;           // To indicate whether end of stream reached or not
     boolean ispartition;
+    int part = 0;          // Only every numparts-th page starting from page part is read
+    int numparts = 1;      // Number of scans sharing the table (see Exchange)
+    BloomFilter filter;    // Keys of the build input of a hash join above, null if none
+    int[] filterkeys;      // Indices of the attributes hashed for the filter
+    int filterseed;        // Seed of the hash of the filter
+    ArrayList<Condition> conditions = new ArrayList<>();  // Select conditions above the scan, checked on the zone map
+    int skipped;           // Pages skipped by the reader that have been added to the total
 
     /**
      * Constructor - just save filename
@@ -46,6 +62,67 @@ public class Scan extends Operator {
         return tabname;
     }
 
+    /**
+     * Select whether base tables are scanned through a memory mapping of the file
+     * * instead of an input stream. Files that are too large to map are streamed.
+     **/
+    public static void setMemoryMapped(boolean flag) {
+        memoryMapped = flag;
+    }
+
+    public static boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Select whether base tables are returned as column batches (see ColumnBatch).
+     * * Vectorized operators work on the column vectors directly,
+     * * the other operators see the batches through the row API.
+     **/
+    public static void setVectorized(boolean flag) {
+        vectorized = flag;
+    }
+
+    public static boolean isVectorized() {
+        return vectorized;
+    }
+
+    /**
+     * Reads only the pages with page number % numparts == part,
+     * * so numparts copies of the scan read disjoint parts of the table
+     **/
+    public void setPartition(int part, int numparts) {
+        this.part = part;
+        this.numparts = numparts;
+    }
+
+    /**
+     * Only the tuples whose key (attributes at the given indices, see Tuple.hashOf)
+     * * might be in the filter are returned. Set by a hash join before it opens its right input.
+     **/
+    public void setJoinFilter(BloomFilter filter, int[] keys, int seed) {
+        this.filter = filter;
+        this.filterkeys = keys;
+        this.filterseed = seed;
+    }
+
+    /**
+     * A select above the scan passes its condition down, so that the pages whose
+     * * zone map shows that no tuple satisfies it are skipped. The select still checks it.
+     **/
+    public void pushCondition(Condition con) {
+        conditions.add(con);
+    }
+
+    /** Number of pages skipped through the zone maps by all the scans executed so far **/
+    public static synchronized int getTotalSkippedPages() {
+        return skippedPages;
+    }
+
+    private static synchronized void recordSkipped(int pages) {
+        skippedPages += pages;
+    }
+
     /**
      * Open file prepare a stream pointer to read input file
      */
@@ -54,65 +131,81 @@ public class Scan extends Operator {
         int tuplesize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tuplesize;
         eos = false;
-        try {
-            in = new ObjectInputStream(new FileInputStream(filename));
-        } catch (Exception e) {
-            System.err.println(" Error reading " + filename);
-            return false;
+        layout = Tuple.layoutOf(schema);
+        reader = new TupleReader(filename, batchsize, schema);
+        if (!ispartition) {
+            if (!TupleReader.isPageFile(filename)) {
+                System.err.println("Scan: " + filename + " is not in slotted page format, convert it with ConvertTblFormat");
+                return false;
+            }
+            reader.setMemoryMapped(memoryMapped);
+            /** The columns stored as codes that are not coded in the schema are decoded **/
+            reader.setDictionaries(Dictionary.decoders(schema));
+        }
+        /** Partition files are only read through the buffer pool, base tables unless they are mapped **/
+        reader.setBufferPool(BufferManager.getBufferPool());
+        reader.setPartition(part, numparts);
+        setZoneFilter();
+        skipped = 0;
+        return reader.open();
+    }
+
+    // sets a page filter on the reader from the zone map of the table and the pushed conditions
+    private void setZoneFilter() {
+        if (ispartition || conditions.isEmpty()) {
+            return;
+        }
+        ZoneMap zonemap = ZoneMap.read(filename, Dictionary.storedSchema(schema));
+        if (zonemap == null) {
+            return;
+        }
+        ArrayList<ZoneMap.Range> ranges = new ArrayList<>();
+        for (Condition con : conditions) {
+            ZoneMap.Range range = zonemap.compile(con, schema);
+            if (range != null) {
+                ranges.add(range);
+            }
+        }
+        if (!ranges.isEmpty()) {
+            reader.setPageFilter(page -> zonemap.mightMatch(page, ranges));
         }
-        return true;
     }
 
     /**
      * Next operator - get a tuple from the file
      **/
     public Batch next() {
-        if (ispartition) {
-            if (eos) {
-                close();
-                return null;
-            }
-            Batch batch = new Batch(batchsize);
-            try {
-                batch = (Batch) in.readObject();
-            } catch (EOFException e) {
+        /** The file reached its end and no more to read **/
+        if (eos) {
+            close();
+            return null;
+        }
+        if (vectorized) {
+            ColumnBatch columns = new ColumnBatch(batchsize, layout);
+            if (reader.readInto(columns) < batchsize) {
                 eos = true;
-                return batch;
-            } catch (ClassNotFoundException c) {
-                System.err.println("Scan:Class not found for reading file  " + filename);
-                System.exit(1);
-            } catch (IOException io) {
-                System.err.println("Scan:Error reading " + filename);
-                System.exit(1);
             }
-            return batch;
-        } else {
-            /** The file reached its end and no more to read **/
-            if (eos) {
-                close();
-                return null;
+            if (filter != null) {
+                filter.filter(columns, filterkeys, filterseed);
             }
-            Batch tuples = new Batch(batchsize);
-            while (!tuples.isFull()) {
-                try {
-                    Tuple data = (Tuple) in.readObject();
-                    tuples.add(data);
-                } catch (ClassNotFoundException cnf) {
-                    System.err.println("Scan:Class not found for reading file  " + filename);
-                    System.exit(1);
-                } catch (EOFException EOF) {
-                    /** At this point incomplete page is sent and at next call it considered
-                     ** as end of file
-                     **/
-                    eos = true;
-                    return tuples;
-                } catch (IOException e) {
-                    System.err.println("Scan:Error reading " + filename);
-                    System.exit(1);
-                }
+            return columns;
+        }
+        Batch tuples = new Batch(batchsize);
+        while (!tuples.isFull()) {
+            Tuple data = reader.next();
+            if (data == null) {
+                /** At this point incomplete page is sent and at next call it considered
+                 ** as end of file
+                 **/
+                eos = true;
+                return tuples;
+            }
+            if (filter != null && !filter.mightContain(data.hashOf(filterkeys, filterseed))) {
+                continue;
             }
-            return tuples;
+            tuples.add(data);
         }
+        return tuples;
     }
 
     /**
@@ -120,19 +213,20 @@ public class Scan extends Operator {
      * * is already reached
      **/
     public boolean close() {
-        try {
-            in.close();
-        } catch (IOException e) {
-            System.err.println("Scan: Error closing " + filename);
-            return false;
-        }
-        return true;
+        /** The scan can be closed more than once, only new skipped pages are added **/
+        recordSkipped(reader.getNumSkipped() - skipped);
+        skipped = reader.getNumSkipped();
+        return reader.close();
     }
 
     public Object clone() {
         String newtab = tabname;
         Scan newscan = new Scan(newtab, optype);
         newscan.setSchema((Schema) schema.clone());
+        newscan.setJoinFilter(filter, filterkeys, filterseed);
+        for (Condition con : conditions) {
+            newscan.pushCondition(con);
+        }
         return newscan;
     }
 
@@ -6,14 +6,22 @@ package qp.operators;
 
 import qp.utils.Attribute;
 import qp.utils.Batch;
-import qp.utils.Schema;
+import qp.utils.NormalizedKey;
 import qp.utils.Tuple;
+import qp.utils.TupleWriter;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Sort extends Operator {
 
+    public static final int LOAD_SORT = 0;               // Runs of numbuff pages sorted in memory
+    public static final int REPLACEMENT_SELECTION = 1;   // Runs grown through a heap, about twice as long
+
+    static int runGeneration = REPLACEMENT_SELECTION;    // How the sorted runs are generated
+    static int sortRuns = 0;                             // Sorted runs generated by all the sorts so far
+    static int sortPasses = 0;                           // Passes made by all the sorts so far
+
     Operator base;                  // Base Operator
     int batchsize;                  // Number of tuples per out batch
     int numbuff;                    // Number of buffers available
@@ -22,7 +30,12 @@ public class Sort extends Operator {
 
     ArrayList<Attribute> attrset;   // Set of attributes to project
     ArrayList<Integer> attrIndex;   // Indexes of atttributes to sort
-    ObjectInputStream insorted;     // Input stream for sorted results
+    NormalizedKey normkey;          // Encodes the attributes to sort into a long
+    RunMerger merger;               // Merges the sorted runs left after open()
+    Tuple[] sorted;                 // Whole input sorted in memory, null if it was written to runs
+    int sortedcurs;                 // Next tuple of sorted to output
+    ArrayDeque<Batch> pending;      // Pages read from the base operator before the runs are generated
+    boolean inputdone;              // Whether the base operator has returned all its pages
 
     boolean eos = false;            // Whether the end of stream is reached
     boolean isAscending;            // Whether to sort ascending or descending
@@ -36,6 +49,52 @@ public class Sort extends Operator {
         this.isAscending = isAscending;
     }
 
+    /**
+     * Selects how the sorted runs are generated, LOAD_SORT or REPLACEMENT_SELECTION
+     **/
+    public static void setRunGeneration(int strategy) {
+        runGeneration = strategy;
+    }
+
+    public static int getRunGeneration() {
+        return runGeneration;
+    }
+
+    /**
+     * Expected number of sorted runs of an input of the given number of pages.
+     * * Replacement selection keeps numbuff - 2 pages in its heap and produces runs
+     * * twice as long as the heap on random input.
+     **/
+    public static long expectedNumRuns(long pages, long numbuff) {
+        if (runGeneration == REPLACEMENT_SELECTION) {
+            return Math.max(1, (long) Math.ceil((double) pages / (2 * Math.max(1, numbuff - 2))));
+        }
+        return Math.max(1, (long) Math.ceil((double) pages / numbuff));
+    }
+
+    /** Number of sorted runs generated by all the sorts executed so far **/
+    public static synchronized int getTotalNumRuns() {
+        return sortRuns;
+    }
+
+    /** Number of passes, including run generation, made by all the sorts executed so far **/
+    public static synchronized int getTotalNumPasses() {
+        return sortPasses;
+    }
+
+    private static synchronized void record(int numrun, int numpass) {
+        sortRuns += numrun;
+        sortPasses += numpass;
+    }
+
+    public int getNumRuns() {
+        return totalnumrun;
+    }
+
+    public int getNumPasses() {
+        return totalnumpass;
+    }
+
     // compares tuples t1 and t2 based on the attributes to be sorted 
     private int compareTuples(Tuple t1, Tuple t2) {
         for (int index : attrIndex) {
@@ -47,200 +106,201 @@ public class Sort extends Operator {
         return 0;
     }
 
-    // generate sorted runs from the base operator and write each run to a file
-    private void generateSortedRuns() {
-        Batch batch = base.next();
-        while (batch != null) {
-            PriorityQueue<Tuple> tuples = new PriorityQueue<>(batchsize, this::compareTuples);
-            for (int i = 0; i < numbuff && batch != null; i++) {
-                for (int j = 0; j < batch.size(); j++) {
-                    tuples.add(batch.get(j));
-                }
-                batch = base.next();
-            }
+    // compares tuples by their normalized keys, and on the attributes to be sorted if the keys tie
+    private int compareKeyed(TupleWithId t1, TupleWithId t2) {
+        int res = Long.compare(t1.key, t2.key);
+        if (res != 0 || normkey.isExact()) {
+            return res;
+        }
+        return compareTuples(t1.tuple, t2.tuple);
+    }
 
-            String fname = "SortedRun-" + 0 + "-" + totalnumrun + "-" + this.hashCode();
-            try {
-                ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(fname));
-                Batch outbatch = new Batch(batchsize);
-                while (!tuples.isEmpty()) {
-                    Tuple tuple = tuples.poll();
-                    outbatch.add(tuple);
-                    if (outbatch.isFull()) {
-                        out.writeObject(outbatch);
-                        outbatch = new Batch(batchsize);
+    // generate sorted runs by replacement selection: the heap always holds the tuples that can still
+    // go into the current run, and the tuples smaller than the last one written wait for the next run
+    private void generateReplacementRuns(int buffers, AtomicInteger runs) {
+        int capacity = Math.max(1, buffers - 2) * batchsize;
+        PriorityQueue<TupleWithId> heap = new PriorityQueue<>(capacity, this::compareKeyed);
+        ArrayList<TupleWithId> nextrun = new ArrayList<>();
+        Input input = new Input();
+        Tuple tuple;
+        while (heap.size() < capacity && (tuple = input.next()) != null) {
+            heap.add(new TupleWithId(tuple, normkey.of(tuple)));
+        }
+        while (!heap.isEmpty()) {
+            String fname = "SortedRun-" + 0 + "-" + runs.getAndIncrement() + "-" + this.hashCode();
+            TupleWriter out = openRun(fname);
+            while (!heap.isEmpty()) {
+                TupleWithId last = heap.poll();
+                out.next(last.tuple);
+                if ((tuple = input.next()) != null) {
+                    TupleWithId keyed = new TupleWithId(tuple, normkey.of(tuple));
+                    if (compareKeyed(keyed, last) >= 0) {
+                        heap.add(keyed);
+                    } else {
+                        nextrun.add(keyed);
                     }
                 }
-                out.writeObject(outbatch);
-                out.close();
-            } catch (IOException e) {
-                System.err.println("Sort: error writing to temporary file");
-                System.exit(1);
             }
-            totalnumrun++;
+            out.close();
+            heap.addAll(nextrun);
+            nextrun.clear();
         }
     }
 
-    // merge sorted runs iteratively until one sorted run is produced
-    private int mergeSortedRuns(int numpass, int numrun) {
-        if (numrun == 1) {
-            totalnumpass = numpass;
-            try {
-                String fname = "SortedRun-" + (numpass - 1) + "-" + (numrun - 1) + "-" + this.hashCode();
-                insorted = new ObjectInputStream(new FileInputStream(fname));
-            } catch (IOException e) {
-                System.err.println("Sort: error in reading temporary file");
+    // generate sorted runs of the given number of pages from the base operator and write each run to a file
+    // the tuples of a run are sorted by radix sort on their normalized keys
+    private void generateSortedRuns(int buffers, AtomicInteger runs) {
+        int capacity = buffers * batchsize;
+        long[] keys = new long[capacity];
+        Tuple[] tuples = new Tuple[capacity];
+        Batch batch;
+        while ((batch = nextPage()) != null) {
+            int n = 0;
+            for (int i = 1; batch != null; i++) {
+                for (int j = 0; j < batch.size(); j++) {
+                    if (n == tuples.length) {
+                        keys = Arrays.copyOf(keys, 2 * n);
+                        tuples = Arrays.copyOf(tuples, 2 * n);
+                    }
+                    tuples[n] = batch.get(j);
+                    keys[n] = normkey.of(tuples[n]);
+                    n++;
+                }
+                batch = i < buffers ? nextPage() : null;
             }
-            return numrun;
-        }
+            normkey.sort(keys, tuples, n, this::compareTuples);
 
-        int numoutrun = 0;
-        int start = 0;
-        while (start < numrun) {
-            int end = start + numbuff - 1 < numrun ? start + numbuff - 1 : numrun;
-            mergeSortedRunsRange(start, end, numpass, numoutrun);
-            numoutrun++;
-            start += numbuff - 1;
+            String fname = "SortedRun-" + 0 + "-" + runs.getAndIncrement() + "-" + this.hashCode();
+            TupleWriter out = openRun(fname);
+            for (int i = 0; i < n; i++) {
+                out.next(tuples[i]);
+                tuples[i] = null;
+            }
+            out.close();
         }
-        return mergeSortedRuns(numpass + 1, numoutrun);
     }
 
-    // merge sorted runs between start (inclusive) and end (exclusive) to produce one sorted run and write to file
-    // note: end - start <= numbuff
-    private void mergeSortedRunsRange(int start, int end, int numpass, int numrun) {
-        ObjectInputStream[] instream = new ObjectInputStream[end - start];
-        PriorityQueue<TupleWithId> pq = new PriorityQueue<>(batchsize, (t1, t2) -> compareTuples(t1.tuple, t2.tuple));
-        int[] curs = new int[end - start];
-        boolean[] done = new boolean[end - start];
-
-        String ofname = "SortedRun-" + numpass + "-" + numrun + "-" + this.hashCode();
-        ObjectOutputStream out = null;
-        try {
-            out = new ObjectOutputStream(new FileOutputStream(ofname));
-        } catch (IOException io) {
+    // opens the file of a sorted run, written as slotted pages that are compressed if the page codec is enabled
+    private TupleWriter openRun(String fname) {
+        TupleWriter out = new TupleWriter(fname, schema);
+        if (!out.open()) {
             System.err.println("Sort: error writing to temporary file");
             System.exit(1);
         }
+        return out;
+    }
 
-        // read sorted run into buffers
-        for (int i = 0; i < end - start; i++) {
-            String fname = "SortedRun-" + (numpass - 1) + "-" + (start + i) + "-" + this.hashCode();
-            try {
-                instream[i] = new ObjectInputStream(new FileInputStream(fname));
-            } catch (IOException io) {
-                System.err.println("Sort: error in reading temporary file");
-                System.exit(1);
-            }
-            
-            Batch batch = new Batch(batchsize);
-            try {
-                batch = (Batch) instream[i].readObject();
-            } catch (EOFException e) {
-                try {
-                    instream[i].close();
-                    String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + i) + "-" + this.hashCode();
-                    File f = new File(dfname);
-                    f.delete();
-                } catch (IOException io) {
-                    System.err.println("Sort: Error in reading temporary file");
-                }
-            } catch (ClassNotFoundException c) {
-                System.err.println("Sort: Error in deserialising temporary file ");
-                System.exit(1);
-            } catch (IOException io) {
-                System.err.println("Sort: Error in reading temporary file");
-                System.exit(1);
-            }
-            if (batch != null && !batch.isEmpty()) {
-                for (Tuple t : batch.getAllTuples()) {
-                    pq.add(new TupleWithId(t, i, curs[i]));
-                    curs[i]++;
-                }
+    // generate the sorted runs on numthreads threads, each with its share of the buffers
+    // and reading its own pages of the base operator
+    private void generateRuns(int numthreads) {
+        AtomicInteger runs = new AtomicInteger();
+        int share = numbuff / numthreads;
+        SortWorkers.run(numthreads, numthreads, t -> {
+            if (runGeneration == REPLACEMENT_SELECTION) {
+                generateReplacementRuns(share, runs);
             } else {
-                try {
-                    instream[i].close();
-                    String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + i) + "-" + this.hashCode();
-                    File f = new File(dfname);
-                    f.delete();
-                } catch (IOException io) {
-                    System.err.println("Sort: Error in reading temporary file");
-                }
+                generateSortedRuns(share, runs);
             }
+        });
+        totalnumrun = runs.get();
+        if (totalnumrun == 0) {
+            // an empty input still gives one (empty) run to merge
+            openRun("SortedRun-0-0-" + this.hashCode()).close();
+            totalnumrun++;
         }
+    }
 
-        // add next tuple to outbatch
-        Batch outbatch = new Batch(batchsize);
-        while (!pq.isEmpty()) {
-            TupleWithId tuple = pq.poll();
-            outbatch.add(tuple.tuple);
-            if (outbatch.isFull()) {
-                try {
-                    out.writeObject(outbatch);
-                } catch (IOException io) {
-                    System.err.println("Sort: error writing to temporary file");
-                    System.exit(1);
-                }
-                outbatch = new Batch(batchsize);
+    // reads the input as long as it fits in numbuff - 1 pages and sorts it in memory without writing any run
+    // returns false if the input is larger, its pages read so far are then returned first by nextPage()
+    private boolean sortInMemory() {
+        ArrayList<Batch> pages = new ArrayList<>();
+        int n = 0;
+        Batch batch;
+        while ((batch = nextPage()) != null) {
+            pages.add(batch);
+            n += batch.size();
+            if (pages.size() >= numbuff) {
+                pending.addAll(pages);
+                return false;
             }
-
-            int runid = tuple.runid;
-            int nexttupleid = tuple.tupleid + 1;
-
-            // read next page for run into buffer if there are no more tuples for that sorted run
-            if (!done[runid] && nexttupleid % batchsize == 0) {
-                Batch batch = new Batch(batchsize);
-                try {
-                    batch = (Batch) instream[runid].readObject();
-                } catch (EOFException e) {
-                    try {
-                        instream[runid].close();
-                        done[runid] = true;
-                        String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + runid) + "-" + this.hashCode();
-                        File f = new File(dfname);
-                        f.delete();
-                    } catch (IOException io) {
-                        System.err.println("Sort: Error in reading temporary file");
-                    }
-                } catch (ClassNotFoundException c) {
-                    System.err.println("Sort: Error in deserialising temporary file ");
-                    System.exit(1);
-                } catch (IOException io) {
-                    System.err.println("Sort: Error in reading temporary file");
-                    System.exit(1);
-                }
-                if (batch != null && !batch.isEmpty()) {
-                    for (Tuple t : batch.getAllTuples()) {
-                        pq.add(new TupleWithId(t, runid, curs[runid]));
-                        curs[runid]++;
-                    }
-                } else {
-                    try {
-                        instream[runid].close();
-                        done[runid] = true;
-                        String dfname = "SortedRun-" + (numpass - 1) + "-" + (start + runid) + "-" + this.hashCode();
-                        File f = new File(dfname);
-                        f.delete();
-                    } catch (IOException io) {
-                        System.err.println("Sort: Error in reading temporary file");
-                    }
-                }
+        }
+        long[] keys = new long[n];
+        sorted = new Tuple[n];
+        int i = 0;
+        for (Batch page : pages) {
+            for (int j = 0; j < page.size(); j++) {
+                sorted[i] = page.get(j);
+                keys[i] = normkey.of(sorted[i]);
+                i++;
             }
         }
+        normkey.sort(keys, sorted, n, this::compareTuples);
+        sortedcurs = 0;
+        return true;
+    }
 
-        if (!outbatch.isEmpty()) {
-            try {
-                out.writeObject(outbatch);
-            } catch (IOException io) {
-                System.err.println("Sort: error writing to temporary file");
-                System.exit(1);
+    // returns the next page of the base operator, null at the end; the threads generating runs take turns
+    private Batch nextPage() {
+        synchronized (base) {
+            if (!pending.isEmpty()) {
+                return pending.poll();
+            }
+            if (inputdone) {
+                return null;
+            }
+            Batch batch = base.next();
+            if (batch == null) {
+                inputdone = true;
             }
+            return batch;
         }
+    }
 
-        try {
-            out.close();
-        } catch (IOException io) {
-            System.out.println("NestedJoin: Error in reading temporary file");
+    // merge sorted runs iteratively until at most numbuff - 1 runs are left, which next() merges on the fly
+    // the groups of runs of a pass are merged on numthreads threads, each with its share of the buffers
+    private int mergeSortedRuns(int numpass, int numrun, int numthreads) {
+        int fanin = numbuff - 1;
+        if (numrun <= fanin || numrun == 1) {
+            totalnumpass = numrun == 1 ? numpass : numpass + 1;
+            merger = new RunMerger(runNames(numpass - 1, 0, numrun), schema, this::compareKeyed, normkey::of, "Sort");
+            return numrun;
         }
+
+        int threads = 1;
+        if (numthreads > 1) {
+            threads = numthreads;
+            fanin = Math.max(2, numbuff / numthreads - 1);
+        }
+        int numoutrun = (numrun + fanin - 1) / fanin;
+        int groupsize = fanin;
+        SortWorkers.run(threads, numoutrun, g -> {
+            int start = g * groupsize;
+            int end = Math.min(numrun, start + groupsize);
+            mergeSortedRunsRange(start, end, numpass, g);
+        });
+        return mergeSortedRuns(numpass + 1, numoutrun, numthreads);
+    }
+
+    // names of the files of the runs between start (inclusive) and end (exclusive) written by a pass
+    private String[] runNames(int pass, int start, int end) {
+        String[] names = new String[end - start];
+        for (int i = start; i < end; i++) {
+            names[i - start] = "SortedRun-" + pass + "-" + i + "-" + this.hashCode();
+        }
+        return names;
+    }
+
+    // merge sorted runs between start (inclusive) and end (exclusive) to produce one sorted run and write to file
+    // note: end - start <= numbuff
+    private void mergeSortedRunsRange(int start, int end, int numpass, int numrun) {
+        RunMerger runs = new RunMerger(runNames(numpass - 1, start, end), schema, this::compareKeyed, normkey::of, "Sort");
+        String ofname = "SortedRun-" + numpass + "-" + numrun + "-" + this.hashCode();
+        TupleWriter out = openRun(ofname);
+        Tuple tuple;
+        while ((tuple = runs.next()) != null) {
+            out.next(tuple);
+        }
+        out.close();
     }
 
     /**
@@ -254,23 +314,30 @@ public class Sort extends Operator {
 
         if (!base.open()) return false;
         
-        Schema baseSchema = base.getSchema();
         attrIndex = new ArrayList<>(attrset.size());
         for (int i = 0; i < attrset.size(); i++) {
             Attribute attr = attrset.get(i);
-
-            if (attr.getAggType() != Attribute.NONE) {
-                System.err.println("Aggragation is not implemented.");
+            /** Aggregates can only come from a GroupBy below **/
+            int index = schema.indexOf(attr);
+            if (index == -1 && attr.getAggType() != Attribute.NONE) {
+                System.err.println("Aggregation is not implemented.");
                 System.exit(1);
             }
-
-            int index = baseSchema.indexOf(attr.getBaseAttribute());
-            attrIndex.add(schema.indexOf(attr));
+            attrIndex.add(index);
         }
+        normkey = new NormalizedKey(Tuple.layoutOf(schema), attrIndex, isAscending);
 
         totalnumrun = 0;
-        generateSortedRuns();
-        mergeSortedRuns(1, totalnumrun);
+        totalnumpass = 0;
+        inputdone = false;
+        pending = new ArrayDeque<>();
+        sorted = null;
+        if (!sortInMemory()) {
+            int numthreads = SortWorkers.numThreads(numbuff);
+            generateRuns(numthreads);
+            mergeSortedRuns(1, totalnumrun, numthreads);
+            record(totalnumrun, totalnumpass);
+        }
 
         if (!base.close()) return false;
 
@@ -278,7 +345,7 @@ public class Sort extends Operator {
     }
 
     /**
-     * Returns a page of output tuples from the sorted run 
+     * Returns a page of output tuples, from the input sorted in memory or merged from the runs left after open()
      **/
     public Batch next() {
         if (eos) {
@@ -287,45 +354,53 @@ public class Sort extends Operator {
         }
 
         Batch outbatch = new Batch(batchsize);
-        try {
-            outbatch = (Batch) insorted.readObject();
-        } catch (EOFException e) {
-            eos = true;
-            try {
-                insorted.close();
-                String dfname = "SortedRun-" + (totalnumpass - 1) + "-" + 0 + "-" + this.hashCode();
-                File f = new File(dfname);
-                f.delete();
-            } catch (IOException io) {
-                System.err.println("Sort: Error in reading temporary file");
+        if (sorted != null) {
+            while (!outbatch.isFull() && sortedcurs < sorted.length) {
+                outbatch.add(sorted[sortedcurs++]);
+            }
+        } else {
+            Tuple tuple;
+            while (!outbatch.isFull() && (tuple = merger.next()) != null) {
+                outbatch.add(tuple);
             }
-            return outbatch;
-        } catch (ClassNotFoundException c) {
-            System.err.println("Sort: Error in deserialising temporary file ");
-            System.exit(1);
-        } catch (IOException io) {
-            System.err.println("Sort: Error in reading temporary file");
-            System.exit(1);
+        }
+        if (outbatch.isEmpty()) {
+            eos = true;
+            close();
+            return null;
         }
         return outbatch;
     }
 
     /**
-     * Close the operator
+     * Close the operator, deleting the runs that have not been read to the end
      */
     public boolean close() {
+        sorted = null;
+        if (merger != null) {
+            merger.close();
+            merger = null;
+        }
         return true;
     }
-}
 
-class TupleWithId {
-    Tuple tuple;
-    int runid;
-    int tupleid;
+    /**
+     * Tuples of the pages of the base operator read by one thread
+     **/
+    class Input {
+        Batch page;     // Page being read, null at the end
+        int curs;       // Next tuple of the page
+
+        Input() {
+            page = nextPage();
+        }
 
-    public TupleWithId(Tuple tuple, int runid, int tupleid) {
-        this.tuple = tuple;
-        this.runid = runid;
-        this.tupleid = tupleid;
+        Tuple next() {
+            while (page != null && curs >= page.size()) {
+                page = nextPage();
+                curs = 0;
+            }
+            return page == null ? null : page.get(curs++);
+        }
     }
 }
@@ -14,6 +14,7 @@ import java.util.*;
 
 public class SortMergeJoin extends Join {
     int batchsize;                                          // Number of tuples per out batch
+    int[] layout;                                           // Layout of the output tuples
     ArrayList<Attribute> leftattribute;                     // Join attributes in left table
     ArrayList<Attribute> rightattribute;                    // Join attributes in right table
     ArrayList<Integer> leftindex;                           // Indices of the join attributes in left table
@@ -54,6 +55,7 @@ public class SortMergeJoin extends Join {
         /** select number of tuples per batch **/
         int tupleSize = schema.getTupleSize();
         batchsize = Batch.getPageSize() / tupleSize;
+        layout = Tuple.layoutOf(schema);
 
         /** find indices attributes of join conditions **/
         leftindex = new ArrayList<>();
@@ -179,7 +181,7 @@ public class SortMergeJoin extends Join {
                     Tuple ltuple = leftpartition.get(i);
                     Tuple rtuple = rightpartition.get(j);
                     if (ltuple.checkJoin(rtuple, leftindex, rightindex)) {
-                        Tuple outtuple = ltuple.joinWith(rtuple);
+                        Tuple outtuple = ltuple.joinWith(rtuple, layout);
                         outbatch.add(outtuple);
                     }
                     if (outbatch.isFull()) {
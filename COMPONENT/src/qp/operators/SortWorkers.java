@@ -0,0 +1,69 @@
+/**
+ * Worker threads of the external merge sorts
+ **/
+
+package qp.operators;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * SortWorkers - runs the independent steps of an external merge sort (Sort, Distinct)
+ * * on several threads. The number of threads is the one set with -parallel (see Exchange),
+ * * limited so that each thread gets at least MIN_BUFFERS buffers: the buffers of the
+ * * operator are split evenly between the threads and the total stays the same.
+ **/
+class SortWorkers {
+
+    static final int MIN_BUFFERS = 16;  // Fewer buffers per thread would make the runs too short to pay off
+
+    /**
+     * Number of threads a sort with the given number of buffers uses
+     **/
+    static int numThreads(int numbuff) {
+        return Math.max(1, Math.min(Exchange.getNumWorkers(), numbuff / MIN_BUFFERS));
+    }
+
+    /**
+     * Calls task for 0 to numtasks - 1 on at most numthreads threads and returns once all are done.
+     * * The tasks are taken in order, a single thread runs them in the calling thread.
+     **/
+    static void run(int numthreads, int numtasks, IntConsumer task) {
+        int n = Math.min(numthreads, numtasks);
+        if (n <= 1) {
+            for (int i = 0; i < numtasks; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        AtomicInteger nexttask = new AtomicInteger();
+        Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[n];
+        for (int t = 0; t < n; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    int i;
+                    while (failure[0] == null && (i = nexttask.getAndIncrement()) < numtasks) {
+                        task.accept(i);
+                    }
+                } catch (RuntimeException | Error e) {
+                    failure[0] = e;
+                }
+            }, "sort-worker-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                System.err.println("Sort: interrupted while waiting for the workers");
+                System.exit(1);
+            }
+        }
+        if (failure[0] != null) {
+            System.err.println("Sort: error in a worker: " + failure[0]);
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/**
+ * To order the result and return only its first rows
+ **/
+
+package qp.operators;
+
+import qp.utils.Attribute;
+import qp.utils.Batch;
+import qp.utils.NormalizedKey;
+import qp.utils.Schema;
+import qp.utils.Tuple;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * TopN - ORDER BY with a LIMIT. When the limit plus the offset tuples fit in the buffers
+ * * (one is kept for the input page) the base is read once into a bounded heap whose top is
+ * * the largest tuple kept, and a tuple that is not smaller than the top is dropped at once.
+ * * Otherwise the base is sorted with Sort and a Limit stops reading the sorted run
+ * * (and deletes it) as soon as the last tuple is returned.
+ **/
+public class TopN extends Operator {
+
+    private Operator base;                      // Base operator
+    private ArrayList<Attribute> compareAttri;  // Set of attributes to order by
+    private boolean isAscending;                // Sort ascending or descending
+    private int limit;                          // Maximum number of tuples returned
+    private int offset;                         // Number of tuples skipped before the first one returned
+    private int numBuff;                        // Number of buffers available
+    private int batchsize;                      // Number of tuples per out batch
+
+    ArrayList<Integer> attrIndex;               // Indexes of the attributes to order by
+    NormalizedKey normkey;                      // Encodes the attributes to order by into a long
+    Tuple[] result;                             // Tuples kept by the heap, in order
+    int curs;                                   // Next tuple of result to return
+    Operator sorted;                            // Limit over a Sort when the tuples do not fit in memory
+
+    public TopN(Operator base, ArrayList<Attribute> compareAttri, boolean isAscending, int limit, int offset) {
+        super(OpType.TOPN);
+        this.base = base;
+        this.compareAttri = compareAttri;
+        this.isAscending = isAscending;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public Operator getBase() {
+        return base;
+    }
+
+    public void setBase(Operator base) {
+        this.base = base;
+    }
+
+    public boolean getOrderType() {
+        return isAscending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setNumBuff(int num) {
+        this.numBuff = num;
+    }
+
+    /**
+     * Whether the tuples kept by the heap fit in the given buffers
+     **/
+    public static boolean fitsInMemory(long limit, long offset, long numbuff, long batchsize) {
+        return limit + offset <= Math.max(1, numbuff - 1) * batchsize;
+    }
+
+    public boolean open() {
+        int tuplesize = schema.getTupleSize();
+        batchsize = Batch.getPageSize() / tuplesize;
+        result = new Tuple[0];
+        curs = 0;
+        sorted = null;
+        if (limit == 0) {
+            return true;
+        }
+
+        if (!fitsInMemory(limit, offset, numBuff, batchsize)) {
+            Sort sort = new Sort(base, compareAttri, numBuff, isAscending);
+            sorted = new Limit(sort, limit, offset);
+            sorted.setSchema(schema);
+            return sorted.open();
+        }
+
+        if (!base.open()) return false;
+        attrIndex = new ArrayList<>(compareAttri.size());
+        for (Attribute attr : compareAttri) {
+            /** Aggregates can only come from a GroupBy below **/
+            int index = schema.indexOf(attr);
+            if (index == -1 && attr.getAggType() != Attribute.NONE) {
+                System.err.println("Aggregation is not implemented.");
+                System.exit(1);
+            }
+            attrIndex.add(index);
+        }
+        normkey = new NormalizedKey(Tuple.layoutOf(schema), attrIndex, isAscending);
+
+        int capacity = limit + offset;
+        PriorityQueue<TupleWithId> heap = new PriorityQueue<>(capacity, (t1, t2) -> compareKeyed(t2.tuple, t2.key, t1));
+        Batch inbatch;
+        while ((inbatch = base.next()) != null) {
+            for (int i = 0; i < inbatch.size(); i++) {
+                Tuple tuple = inbatch.get(i);
+                long key = normkey.of(tuple);
+                if (heap.size() < capacity) {
+                    heap.add(new TupleWithId(tuple, key));
+                } else if (compareKeyed(tuple, key, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(new TupleWithId(tuple, key));
+                }
+            }
+        }
+        if (!base.close()) return false;
+
+        result = new Tuple[heap.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = heap.poll().tuple;
+        }
+        curs = offset;
+        return true;
+    }
+
+    // compares tuples t1 and t2 based on the attributes to be sorted
+    private int compareTuples(Tuple t1, Tuple t2) {
+        for (int index : attrIndex) {
+            int res = Tuple.compareTuples(t1, t2, index, index);
+            if (res != 0) {
+                return isAscending ? res : res * -1;
+            }
+        }
+        return 0;
+    }
+
+    // compares a tuple with the given normalized key to a kept tuple, on the attributes if the keys tie
+    private int compareKeyed(Tuple tuple, long key, TupleWithId other) {
+        int res = Long.compare(key, other.key);
+        if (res != 0 || normkey.isExact()) {
+            return res;
+        }
+        return compareTuples(tuple, other.tuple);
+    }
+
+    public Batch next() {
+        if (sorted != null) {
+            return sorted.next();
+        }
+        if (curs >= result.length) {
+            return null;
+        }
+        Batch outbatch = new Batch(batchsize);
+        while (!outbatch.isFull() && curs < result.length) {
+            outbatch.add(result[curs++]);
+        }
+        return outbatch;
+    }
+
+    public boolean close() {
+        result = new Tuple[0];
+        if (sorted != null) {
+            return sorted.close();
+        }
+        return true;
+    }
+
+    public Object clone() {
+        Operator newbase = (Operator) base.clone();
+        ArrayList<Attribute> newattr = new ArrayList<>();
+        for (int i = 0; i < compareAttri.size(); ++i)
+            newattr.add((Attribute) compareAttri.get(i).clone());
+        TopN newtopn = new TopN(newbase, newattr, isAscending, limit, offset);
+        newtopn.setSchema((Schema) newbase.getSchema().clone());
+        return newtopn;
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * A tuple with the run and the position it comes from
+ **/
+
+package qp.operators;
+
+import qp.utils.Tuple;
+
+class TupleWithId {
+    Tuple tuple;
+    int runid;
+    int tupleid;
+    long key;       // Normalized sort key of the tuple (see NormalizedKey), used by Sort
+
+    public TupleWithId(Tuple tuple, int runid, int tupleid) {
+        this.tuple = tuple;
+        this.runid = runid;
+        this.tupleid = tupleid;
+    }
+
+    public TupleWithId(Tuple tuple, int runid, int tupleid, long key) {
+        this(tuple, runid, tupleid);
+        this.key = key;
+    }
+
+    public TupleWithId(Tuple tuple, long key) {
+        this(tuple, 0, 0, key);
+    }
+}
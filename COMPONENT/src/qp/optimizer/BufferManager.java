@@ -1,16 +1,30 @@
 /**
  * simple buffer manager that distributes the buffers equally among all the join operators
+ * and owns the buffer pool through which the operators read and write their pages
  **/
 
 package qp.optimizer;
 
+import qp.operators.Exchange;
+import qp.utils.BufferPool;
+import qp.utils.ClockPolicy;
+import qp.utils.LRUKPolicy;
+import qp.utils.ReplacementPolicy;
+
 public class BufferManager {
 
+    public static final String CLOCK = "clock";
+    public static final String LRUK = "lruk";
+
     static int numBuffer;
     static int numJoin;
 
     static int buffPerJoin;
 
+    static int poolSize = BufferPool.DEFAULT_NUM_FRAMES;  // Number of frames of the buffer pool
+    static String policy = CLOCK;                          // Replacement policy of the buffer pool
+    static BufferPool pool;                                // Created on first use
+
     public BufferManager(int numBuffer, int numJoin) {
         this.numBuffer = numBuffer;
         this.numJoin = numJoin;
@@ -25,4 +39,49 @@ public class BufferManager {
         return numBuffer;
     }
 
+    /**
+     * Sets the number of frames of the buffer pool, must be called before the pool is used
+     **/
+    public static void setPoolSize(int frames) {
+        poolSize = frames;
+        pool = null;
+    }
+
+    /**
+     * Sets the replacement policy of the buffer pool (CLOCK or LRUK),
+     * * must be called before the pool is used
+     **/
+    public static boolean setReplacementPolicy(String name) {
+        if (!name.equals(CLOCK) && !name.equals(LRUK)) {
+            return false;
+        }
+        policy = name;
+        pool = null;
+        return true;
+    }
+
+    /**
+     * Number of pages pinned by the workers of the exchanges, on top of the buffers of the joins:
+     * * each input of a join may be scanned by an exchange whose workers each keep one page pinned
+     **/
+    public static int getExchangePins() {
+        if (numJoin == 0 || Exchange.getNumWorkers() <= 1) {
+            return 0;
+        }
+        return (numJoin + 1) * Exchange.getNumWorkers();
+    }
+
+    /**
+     * The buffer pool shared by all the operators of the query
+     * * It has at least as many frames as buffers plus the pages pinned by the exchange workers,
+     * * as an operator may pin one page per buffer
+     **/
+    public static synchronized BufferPool getBufferPool() {
+        if (pool == null) {
+            ReplacementPolicy replacement = policy.equals(LRUK) ? new LRUKPolicy() : new ClockPolicy();
+            pool = new BufferPool(Math.max(poolSize, numBuffer + getExchangePins()), replacement);
+        }
+        return pool;
+    }
+
 }
@@ -7,6 +7,7 @@ package qp.optimizer;
 
 import qp.operators.*;
 import qp.utils.Attribute;
+import qp.utils.BPlusTree;
 import qp.utils.Batch;
 import qp.utils.Condition;
 import qp.utils.Schema;
@@ -14,6 +15,7 @@ import qp.utils.Schema;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 
@@ -76,14 +78,22 @@ public class PlanCost {
             return getStatistics((Project) node);
         } else if (node.getOpType() == OpType.SCAN) {
             return getStatistics((Scan) node);
+        } else if (node.getOpType() == OpType.INDEXSCAN) {
+            return getStatistics((IndexScan) node);
         } else if (node.getOpType() == OpType.DISTINCT) {
             return getStatistics((Distinct) node);
         } else if (node.getOpType() == OpType.SORT) {
             return getStatistics((OrderBy) node);
+        } else if (node.getOpType() == OpType.TOPN) {
+            return getStatistics((TopN) node);
+        } else if (node.getOpType() == OpType.LIMIT) {
+            return getStatistics((Limit) node);
         } else if (node.getOpType() == OpType.GROUPBY) {
             return getStatistics((GroupBy) node);
         } else if (node.getOpType() == OpType.CROSSPRODUCT) {
             return getStatistics((CrossProduct) node);
+        } else if (node.getOpType() == OpType.EXCHANGE) {
+            return getStatistics((Exchange) node);
         }
         System.out.println("operator is not supported");
         isFeasible = false;
@@ -98,11 +108,20 @@ public class PlanCost {
         return calculateCost(node.getBase());
     }
 
+    /**
+     * The workers of an exchange read the same pages as the base would,
+     * * so the exchange changes neither the statistics nor the cost
+     **/
+    protected long getStatistics(Exchange node) {
+        return calculateCost(node.getBase());
+    }
+
     /**
      * Calculates the statistics and cost of join operation
      **/
     protected long getStatistics(Join node) {
         long lefttuples = calculateCost(node.getLeft());
+        long rightcost = cost;
         long righttuples = calculateCost(node.getRight());
 
         if (!isFeasible) {
@@ -155,12 +174,25 @@ public class PlanCost {
                 joincost = leftpages + (long) Math.ceil((double) leftpages / (double) (numbuff - 2)) * rightpages;
                 break;
             case JoinType.SORTMERGE:
-                long sortleft = 2 * leftpages * (1 + (long) Math.ceil(Math.log(Math.ceil((double) leftpages / numbuff)) / Math.log(numbuff - 1)));
-                long sortright = 2 * rightpages * (1 + (long) Math.ceil(Math.log(Math.ceil((double) rightpages / numbuff)) / Math.log(numbuff - 1)));
-                joincost = sortleft + sortright + leftpages + rightpages;
+                joincost = sortCost(leftpages, numbuff) + sortCost(rightpages, numbuff) + leftpages + rightpages;
                 break;
             case JoinType.HASHJOIN:
-                joincost = 3 * (leftpages + rightpages);
+                /** Only the partitions that are not kept in memory are written and read again **/
+                int numparts = HashJoin.numPartitions(leftpages, (int) numbuff);
+                long spilled = numparts < numbuff - 1 ? numparts - 1 : numparts;
+                joincost = leftpages + rightpages + 2 * (leftpages + rightpages) * spilled / numparts;
+                break;
+            case JoinType.INDEXNESTED:
+                /** The right table is not scanned and the left input is not materialized:
+                 ** each left tuple descends the index and reads one page per matching record **/
+                BPlusTree index = IndexNestedJoin.probedIndex(node);
+                if (index == null) {
+                    isFeasible = false;
+                    return 0;
+                }
+                cost = rightcost;
+                long probecost = index.getHeight() + (long) Math.ceil(index.getEntriesPerKey());
+                joincost = lefttuples * probecost;
                 break;
             default:
                 System.out.println("join type is not supported");
@@ -205,19 +237,86 @@ public class PlanCost {
         return outtuples;
     }
 
+    /**
+     * Distinct removes the duplicates with the cheaper of its two strategies
+     **/
     protected long getStatistics(Distinct node) {
-        Schema schema = node.getSchema();
+        long numtuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return Long.MAX_VALUE;
+        }
+        long numdistinct = numGroups(node.getBase().getSchema(), node.getSchema().getAttList(), numtuples);
+        cost = cost + Math.min(distinctSortCost(node, numtuples), distinctHashCost(node, numtuples, numdistinct));
+        return numdistinct;
+    }
 
-        /** Number of tuples per page**/
-        long tuplesize = schema.getTupleSize();
-        long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
+    /**
+     * The strategy, Distinct.SORT_BASED or Distinct.HASH_BASED, with which the
+     * * distinct of the plan costs less
+     **/
+    public int chooseStrategy(Distinct node) {
+        cost = 0;
+        isFeasible = true;
+        long numtuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return Distinct.SORT_BASED;
+        }
+        long numdistinct = numGroups(node.getBase().getSchema(), node.getSchema().getAttList(), numtuples);
+        if (distinctHashCost(node, numtuples, numdistinct) < distinctSortCost(node, numtuples)) {
+            return Distinct.HASH_BASED;
+        }
+        return Distinct.SORT_BASED;
+    }
+
+    /**
+     * Estimated number of pages of the distinct tuples of the base of the distinct,
+     * * in pages of the base as they are kept by the hash strategy, 0 if the plan is not feasible
+     **/
+    public long distinctPages(Distinct node) {
+        cost = 0;
+        isFeasible = true;
         long numtuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return 0;
+        }
+        long numdistinct = numGroups(node.getBase().getSchema(), node.getSchema().getAttList(), numtuples);
+        return distinctPages(node, numdistinct);
+    }
+
+    private static long distinctPages(Distinct node, long numdistinct) {
+        long inpagesize = Math.max(Batch.getPageSize() / node.getBase().getSchema().getTupleSize(), 1);
+        return (long) Math.ceil((double) numdistinct / (double) inpagesize);
+    }
+
+    /**
+     * Multi-way merge sort cost. Cost may be lesser depending on the number of duplicates.
+     * * The merge needs at least two input buffers, and its last pass only reads the runs.
+     **/
+    private long distinctSortCost(Distinct node, long numtuples) {
+        if (BufferManager.getBuffers() < 3) {
+            return Long.MAX_VALUE;
+        }
+        long tuplesize = node.getSchema().getTupleSize();
+        long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
         long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
-        long numbuff = BufferManager.numBuffer;
-        // Multi-way merge sort cost. Cost may be lesser depending on the number of duplicates
-        long sort = 2 * numpages * (1 + (long) Math.ceil(Math.log(Math.ceil((double) numpages / numbuff)) / Math.log(numbuff - 1)));
-        cost = cost + sort;
-        return numtuples;
+        long numbuff = BufferManager.getBuffers();
+        long mergepasses = (long) Math.ceil(Math.log(Math.ceil((double) numpages / numbuff)) / Math.log(numbuff - 1));
+        return 2 * numpages * (1 + mergepasses) - (mergepasses > 0 ? numpages : 0);
+    }
+
+    /**
+     * The hash table keeps the distinct tuples that fit in the buffers left by the partitions,
+     * * the tuples of the others are written to partitions and read back once
+     **/
+    private long distinctHashCost(Distinct node, long numtuples, long numdistinct) {
+        Schema baseschema = node.getBase().getSchema();
+        long inpagesize = Math.max(Batch.getPageSize() / baseschema.getTupleSize(), 1);
+        long maxdistinct = Distinct.hashCapacity(distinctPages(node, numdistinct), BufferManager.getBuffers(), inpagesize);
+        if (numdistinct <= maxdistinct) {
+            return 0;
+        }
+        long inpages = (long) Math.ceil((double) numtuples / (double) inpagesize);
+        return 2 * inpages * (numdistinct - maxdistinct) / numdistinct;
     }
 
     protected long getStatistics(OrderBy node) {
@@ -225,19 +324,84 @@ public class PlanCost {
         long base = calculateCost(node.getBase());
         long tupleSize = node.getSchema().getTupleSize();
         long pages = (long) Math.ceil(((double) base) / (double) (Math.max(1, Batch.getPageSize() / tupleSize)));
-        long sort = 2 * pages * (1 + (long) Math.ceil(Math.log(Math.ceil((double) pages / numbuff)) / Math.log(numbuff - 1)));
-        cost = cost + sort;
+        cost = cost + sortCost(pages, numbuff);
         return base;
     }
 
+    /**
+     * TopN keeps its tuples in a heap when they fit in the buffers and costs nothing
+     * * more than its input, otherwise it sorts the whole input like OrderBy
+     **/
+    protected long getStatistics(TopN node) {
+        long numbuff = BufferManager.getBuffers();
+        long base = calculateCost(node.getBase());
+        long tupleSize = node.getSchema().getTupleSize();
+        long capacity = Math.max(1, Batch.getPageSize() / tupleSize);
+        if (!TopN.fitsInMemory(node.getLimit(), node.getOffset(), numbuff, capacity)) {
+            long pages = (long) Math.ceil(((double) base) / (double) capacity);
+            cost = cost + sortCost(pages, numbuff);
+        }
+        return Math.min(Math.max(0, base - node.getOffset()), node.getLimit());
+    }
+
+    /**
+     * Limit is done on the fly. It stops its input early, which the cost of the
+     * * input does not account for.
+     **/
+    protected long getStatistics(Limit node) {
+        long base = calculateCost(node.getBase());
+        return Math.min(Math.max(0, base - node.getOffset()), node.getLimit());
+    }
+
+    /**
+     * Cost of an external merge sort of the given number of pages with Sort:
+     * * every pass reads and writes all the pages, the first one generates the runs
+     * * (see Sort.expectedNumRuns) and each other one merges numbuff - 1 runs into one.
+     * * The last merge is done while the output is read, so it does not write the pages.
+     **/
+    private static long sortCost(long pages, long numbuff) {
+        long numruns = Sort.expectedNumRuns(pages, numbuff);
+        long mergepasses = (long) Math.ceil(Math.log(numruns) / Math.log(numbuff - 1));
+        return 2 * pages * (1 + mergepasses) - (mergepasses > 0 ? pages : 0);
+    }
+
+    /**
+     * The groups are aggregated in one pass if they fit in the buffers,
+     * * otherwise the tuples of the groups that do not fit are written to
+     * * partitions and read back once
+     **/
     protected long getStatistics(GroupBy node) {
-        long numtuples = calculateCost(node.getBase());
+        long intuples = calculateCost(node.getBase());
+        if (!isFeasible) {
+            return Long.MAX_VALUE;
+        }
+        Schema baseschema = node.getBase().getSchema();
+        long numgroups = numGroups(baseschema, node.getGroupByList(), intuples);
+
         long pagesize = Math.max(Batch.getPageSize() / node.getSchema().getTupleSize(), 1);
-        long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
-        long numbuff = BufferManager.getBuffers();
-        long sort = 2 * numpages * (1 + (long) Math.ceil(Math.log(Math.ceil((double) numpages / numbuff)) / Math.log(numbuff - 1)));
-        cost = cost + sort;
-        return numtuples;
+        long maxgroups = Math.max(BufferManager.getBuffers() - 1, 1) * pagesize;
+        if (numgroups > maxgroups) {
+            long inpagesize = Math.max(Batch.getPageSize() / baseschema.getTupleSize(), 1);
+            long inpages = (long) Math.ceil((double) intuples / (double) inpagesize);
+            cost = cost + 2 * inpages * (numgroups - maxgroups) / numgroups;
+        }
+        return numgroups;
+    }
+
+    /**
+     * The number of groups of the given attributes is at most the product of their numbers of distinct values
+     **/
+    private long numGroups(Schema baseschema, ArrayList<Attribute> attrs, long intuples) {
+        long numgroups = Math.min(intuples, 1);
+        for (Attribute attr : attrs) {
+            int index = baseschema.indexOf(attr);
+            Long distinct = index == -1 ? null : ht.get(baseschema.getAttribute(index));
+            if (distinct == null || numgroups * distinct >= intuples) {
+                return intuples;
+            }
+            numgroups = numgroups * distinct;
+        }
+        return numgroups;
     }
 
     /**
@@ -294,9 +458,54 @@ public class PlanCost {
      * * number of distinct values of each attribute
      **/
     protected long getStatistics(Scan node) {
-        String tablename = node.getTabName();
-        String filename = tablename + ".stat";
         Schema schema = node.getSchema();
+        long numtuples = readStatistics(node.getTabName(), schema);
+
+        /** Number of tuples per page**/
+        long tuplesize = schema.getTupleSize();
+        long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
+        long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
+
+        cost = cost + numpages;
+        return numtuples;
+    }
+
+    /**
+     * An index scan descends the index once and reads the leaves of the range.
+     * * In key order it reads one page per record, otherwise the records are
+     * * fetched in the order of the file and each page of the table is read once.
+     **/
+    protected long getStatistics(IndexScan node) {
+        Schema schema = node.getSchema();
+        long numtuples = readStatistics(node.getTabName(), schema);
+        long tuplesize = schema.getTupleSize();
+        long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
+        long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
+
+        BPlusTree index = IndexScan.indexFor(node.getTabName(), node.getCondition(), schema);
+        if (index == null) {
+            isFeasible = false;
+            return 0;
+        }
+        double selectivity = IndexScan.selectivity(index, node.getCondition());
+        long outtuples = (long) Math.ceil(selectivity * numtuples);
+        long leaves = (long) Math.ceil(selectivity * index.getNumLeaves());
+        long fetched = node.isKeyOrder() ? outtuples : Math.min(outtuples, numpages);
+        cost = cost + index.getHeight() - 1 + leaves + fetched;
+
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            Attribute attri = schema.getAttribute(i);
+            ht.put(attri, Math.min(ht.get(attri), outtuples));
+        }
+        return outtuples;
+    }
+
+    /**
+     * Reads the statistics file of the table, puts the number of distinct values
+     * * of each attribute into the hashtable and returns the number of tuples
+     **/
+    private long readStatistics(String tablename, Schema schema) {
+        String filename = tablename + ".stat";
         int numAttr = schema.getNumCols();
         BufferedReader in = null;
         try {
@@ -339,13 +548,6 @@ public class PlanCost {
             ht.put(attr, distinctValues);
         }
 
-        /** Number of tuples per page**/
-        long tuplesize = schema.getTupleSize();
-        long pagesize = Math.max(Batch.getPageSize() / tuplesize, 1);
-        long numpages = (long) Math.ceil((double) numtuples / (double) pagesize);
-
-        cost = cost + numpages;
-
         try {
             in.close();
         } catch (IOException io) {
@@ -60,7 +60,12 @@ public class RandomInitialPlan {
             createCrossProductOp();
         }
 
-        createProjectOp();
+        /** The aggregation also projects the attributes of the select list **/
+        if (!groupbylist.isEmpty() || GroupBy.hasAggregate(projectlist)) {
+            createGroupByOp();
+        } else {
+            createProjectOp();
+        }
 
         if (sqlquery.isDistinct()) {
             createDistinctOp();
@@ -68,10 +73,8 @@ public class RandomInitialPlan {
 
         if (!orderbylist.isEmpty()) {
             createOrderByOp();
-        }
-
-        if (!groupbylist.isEmpty()) {
-            createGroupByOp();
+        } else if (sqlquery.hasLimit()) {
+            createLimitOp();
         }
 
         return root;
@@ -96,7 +99,7 @@ public class RandomInitialPlan {
             try {
                 ObjectInputStream _if = new ObjectInputStream(new FileInputStream(filename));
                 Schema schm = (Schema) _if.readObject();
-                op1.setSchema(schm);
+                op1.setSchema(Dictionary.codedSchema(tabname, schm, comparedAttributes()));
                 _if.close();
             } catch (Exception e) {
                 System.err.println("RandomInitialPlan:Error reading Schema of the table " + filename);
@@ -118,15 +121,35 @@ public class RandomInitialPlan {
 
     }
 
+    /**
+     * Attributes compared with another attribute, their dictionary codes cannot be compared
+     **/
+    private ArrayList<Attribute> comparedAttributes() {
+        ArrayList<Attribute> compared = new ArrayList<>();
+        ArrayList<Condition> conditions = new ArrayList<>(selectionlist);
+        conditions.addAll(joinlist);
+        for (Condition cn : conditions) {
+            if (cn.getRhs() instanceof Attribute) {
+                compared.add(cn.getLhs());
+                compared.add((Attribute) cn.getRhs());
+            }
+        }
+        return compared;
+    }
+
     /**
      * Create Selection Operators for each of the
      * * selection condition mentioned in Condition list
      **/
     public void createSelectOp() {
-        Select op1 = null;
+        Operator op1 = null;
+        ArrayList<Condition> indexed = createIndexScanOp();
+        if (!indexed.isEmpty()) {
+            op1 = tab_op_hash.get(indexed.get(indexed.size() - 1).getLhs().getTabName());
+        }
         for (int j = 0; j < selectionlist.size(); ++j) {
             Condition cn = selectionlist.get(j);
-            if (cn.getOpType() == Condition.SELECT) {
+            if (cn.getOpType() == Condition.SELECT && !indexed.contains(cn)) {
                 String tabname = cn.getLhs().getTabName();
                 Operator tempop = (Operator) tab_op_hash.get(tabname);
                 op1 = new Select(tempop, cn, OpType.SELECT);
@@ -143,6 +166,44 @@ public class RandomInitialPlan {
             root = op1;
     }
 
+    /**
+     * Replaces the scan of each table by an index scan for its most selective condition
+     * * on an indexed column, if its estimated selectivity is below IndexScan.getThreshold().
+     * * Returns the conditions done by the index scans.
+     **/
+    private ArrayList<Condition> createIndexScanOp() {
+        ArrayList<Condition> indexed = new ArrayList<>();
+        for (String tabname : fromlist) {
+            Operator scan = tab_op_hash.get(tabname);
+            Condition best = null;
+            double bestsel = IndexScan.getThreshold();
+            for (Condition cn : selectionlist) {
+                if (cn.getOpType() != Condition.SELECT || !cn.getLhs().getTabName().equals(tabname)) {
+                    continue;
+                }
+                BPlusTree index = IndexScan.indexFor(tabname, cn, scan.getSchema());
+                if (index != null) {
+                    double sel = IndexScan.selectivity(index, cn);
+                    if (sel < bestsel) {
+                        best = cn;
+                        bestsel = sel;
+                    }
+                }
+            }
+            if (best == null) {
+                continue;
+            }
+            IndexScan op1 = new IndexScan(tabname, best, OpType.INDEXSCAN);
+            op1.setSchema(scan.getSchema());
+            /** Records in key order leave a single sorted run to an order by on the column **/
+            op1.setKeyOrder(fromlist.size() == 1 && !orderbylist.isEmpty() && sqlquery.isAscending()
+                    && orderbylist.get(0).equals(best.getLhs()));
+            modifyHashtable(scan, op1);
+            indexed.add(best);
+        }
+        return indexed;
+    }
+
     /**
      * create join operators
      **/
@@ -172,6 +233,9 @@ public class RandomInitialPlan {
             /** randomly select a join type**/
             int numJMeth = JoinType.numJoinTypes();
             int joinMeth = RandNumb.randInt(0, numJMeth - 1);
+            while (joinMeth == JoinType.INDEXNESTED && IndexNestedJoin.probedCondition(jn) < 0) {
+                joinMeth = RandNumb.randInt(0, numJMeth - 1);
+            }
             jn.setJoinType(joinMeth);
             modifyHashtable(left, jn);
             modifyHashtable(right, jn);
@@ -230,25 +294,39 @@ public class RandomInitialPlan {
         }
     }
 
+    /**
+     * With a limit clause only the first rows of the order are kept, with TopN
+     **/
     public void createOrderByOp() {
         Schema rootSchema = root.getSchema();
         ArrayList attributes = rootSchema.getAttList();
 
-        Operator base = new OrderBy(root, attributes, orderbylist, sqlquery.isAscending());
+        Operator base;
+        if (sqlquery.hasLimit()) {
+            base = new TopN(root, orderbylist, sqlquery.isAscending(), sqlquery.getLimit(), sqlquery.getOffset());
+        } else {
+            base = new OrderBy(root, attributes, orderbylist, sqlquery.isAscending());
+        }
         root = base;
         root.setSchema(rootSchema);
     }
 
+    public void createLimitOp() {
+        Schema rootSchema = root.getSchema();
+        root = new Limit(root, sqlquery.getLimit(), sqlquery.getOffset());
+        root.setSchema(rootSchema);
+    }
+
     public void createGroupByOp() {
         Operator base = root;
-        ArrayList attributes = root.getSchema().getAttList();
+        ArrayList<Attribute> attributes = projectlist;
+        if (attributes == null || attributes.isEmpty())
+            attributes = base.getSchema().getAttList();
         if (groupbylist == null)
             groupbylist = new ArrayList<Attribute>();
-        if (!groupbylist.isEmpty()) {
-            root = new GroupBy(base, attributes, groupbylist, OpType.GROUPBY);
-            Schema newSchema = base.getSchema().subSchema(groupbylist);
-            root.setSchema(newSchema);
-        }
+        root = new GroupBy(base, attributes, groupbylist, OpType.GROUPBY);
+        Schema newSchema = base.getSchema().subSchema(attributes);
+        root.setSchema(newSchema);
     }
 
     private void modifyHashtable(Operator old, Operator newop) {
@@ -6,6 +6,7 @@ package qp.optimizer;
 
 import qp.operators.*;
 import qp.utils.Attribute;
+import qp.utils.Batch;
 import qp.utils.Condition;
 import qp.utils.RandNumb;
 import qp.utils.SQLQuery;
@@ -44,10 +45,18 @@ public class RandomOptimizer {
      **/
     public static Operator makeExecPlan(Operator node) {
         if (node.getOpType() == OpType.JOIN) {
-            Operator left = makeExecPlan(((Join) node).getLeft());
-            Operator right = makeExecPlan(((Join) node).getRight());
+            Operator left = addExchange(makeExecPlan(((Join) node).getLeft()));
             int joinType = ((Join) node).getJoinType();
             int numbuff = BufferManager.getBuffersPerJoin();
+            /** The right table of an index join is only read through the index **/
+            if (joinType == JoinType.INDEXNESTED) {
+                IndexNestedJoin inj = new IndexNestedJoin((Join) node);
+                inj.setLeft(left);
+                inj.setRight(makeExecPlan(((Join) node).getRight()));
+                inj.setNumBuff(numbuff);
+                return inj;
+            }
+            Operator right = addExchange(makeExecPlan(((Join) node).getRight()));
             switch (joinType) {
                 case JoinType.NESTEDJOIN:
                     NestedJoin nj = new NestedJoin((Join) node);
@@ -72,6 +81,7 @@ public class RandomOptimizer {
                     hj.setLeft(left);
                     hj.setRight(right);
                     hj.setNumBuff(numbuff);
+                    hj.setBuildPages(estimatePages(left));
                     return hj;
                 default:
                     return node;
@@ -79,6 +89,14 @@ public class RandomOptimizer {
         } else if (node.getOpType() == OpType.SELECT) {
             Operator base = makeExecPlan(((Select) node).getBase());
             ((Select) node).setBase(base);
+            /** The scan below the selections skips the pages that cannot satisfy the condition **/
+            Operator scan = base;
+            while (scan.getOpType() == OpType.SELECT) {
+                scan = ((Select) scan).getBase();
+            }
+            if (scan.getOpType() == OpType.SCAN) {
+                ((Scan) scan).pushCondition(((Select) node).getCondition());
+            }
             return node;
         } else if (node.getOpType() == OpType.PROJECT) {
             Operator base = makeExecPlan(((Project) node).getBase());
@@ -90,6 +108,8 @@ public class RandomOptimizer {
             distinct.setNumBuff(numbuff);
             Operator base = makeExecPlan((distinct.getBase()));
             distinct.setBase(base);
+            distinct.setStrategy(new PlanCost().chooseStrategy(distinct));
+            distinct.setDistinctPages(new PlanCost().distinctPages(distinct));
             return node;
         } else if (node.getOpType() == OpType.SORT) {
             Operator base = makeExecPlan(((OrderBy) node).getBase());
@@ -97,6 +117,16 @@ public class RandomOptimizer {
             ((OrderBy)node).setNumBuff(numBuff);
             ((OrderBy)node).setBase(base);
             return node;
+        } else if (node.getOpType() == OpType.TOPN) {
+            Operator base = makeExecPlan(((TopN) node).getBase());
+            int numBuff = BufferManager.getBuffers();
+            ((TopN) node).setNumBuff(numBuff);
+            ((TopN) node).setBase(base);
+            return node;
+        } else if (node.getOpType() == OpType.LIMIT) {
+            Operator base = makeExecPlan(((Limit) node).getBase());
+            ((Limit) node).setBase(base);
+            return node;
         } else if (node.getOpType() == OpType.GROUPBY) {
             Operator base = makeExecPlan(((GroupBy) node).getBase());
             int numBuff = BufferManager.getBuffers();
@@ -104,8 +134,8 @@ public class RandomOptimizer {
             ((GroupBy)node).setBase(base);
             return node;
         } else if (node.getOpType() == OpType.CROSSPRODUCT) {
-            Operator left = makeExecPlan(((CrossProduct) node).getLeft());
-            Operator right = makeExecPlan(((CrossProduct) node).getRight());
+            Operator left = addExchange(makeExecPlan(((CrossProduct) node).getLeft()));
+            Operator right = addExchange(makeExecPlan(((CrossProduct) node).getRight()));
             int numbuff = BufferManager.getBuffersPerJoin();
             ((CrossProduct)node).setLeft(left);
             ((CrossProduct)node).setRight(right);
@@ -116,6 +146,31 @@ public class RandomOptimizer {
         }
     }
 
+    /**
+     * Number of pages of the output of the plan estimated by the cost model
+     **/
+    private static long estimatePages(Operator node) {
+        PlanCost pc = new PlanCost();
+        if (pc.getCost(node) == Long.MAX_VALUE) {
+            return 0;
+        }
+        long tuplesperpage = Math.max(1, Batch.getPageSize() / node.getSchema().getTupleSize());
+        return (long) Math.ceil((double) pc.getNumTuples() / (double) tuplesperpage);
+    }
+
+    /**
+     * Runs an input of a join on the worker threads of a gathering exchange
+     * * if parallelism is enabled and the input only scans, selects and projects base tables
+     **/
+    private static Operator addExchange(Operator node) {
+        if (Exchange.getNumWorkers() <= 1 || !Exchange.isPartitionable(node)) {
+            return node;
+        }
+        Exchange exchange = new Exchange(node, Exchange.getNumWorkers());
+        exchange.setSchema(node.getSchema());
+        return exchange;
+    }
+
     /**
      * Randomly selects a neighbour
      **/
@@ -248,7 +303,9 @@ public class RandomOptimizer {
             Join node = (Join) findNodeAt(root, joinNum);
             int prevJoinMeth = node.getJoinType();
             int joinMeth = RandNumb.randInt(0, numJMeth - 1);
-            while (joinMeth == prevJoinMeth) {
+            /** An index join is only picked when the right table has an index on a join attribute **/
+            while (joinMeth == prevJoinMeth
+                    || (joinMeth == JoinType.INDEXNESTED && IndexNestedJoin.probedCondition(node) < 0)) {
                 joinMeth = RandNumb.randInt(0, numJMeth - 1);
             }
             node.setJoinType(joinMeth);
@@ -409,6 +466,14 @@ public class RandomOptimizer {
             return findNodeAt(((Project) node).getBase(), joinNum);
         } else if (node.getOpType() == OpType.SORT) {
             return findNodeAt(((OrderBy)node).getBase(), joinNum);
+        } else if (node.getOpType() == OpType.DISTINCT) {
+            return findNodeAt(((Distinct) node).getBase(), joinNum);
+        } else if (node.getOpType() == OpType.TOPN) {
+            return findNodeAt(((TopN) node).getBase(), joinNum);
+        } else if (node.getOpType() == OpType.LIMIT) {
+            return findNodeAt(((Limit) node).getBase(), joinNum);
+        } else if (node.getOpType() == OpType.GROUPBY) {
+            return findNodeAt(((GroupBy) node).getBase(), joinNum);
         } else {
             return null;
         }
@@ -433,6 +498,18 @@ public class RandomOptimizer {
             modifySchema(base);
             ArrayList attrlist = ((Project) node).getProjAttr();
             node.setSchema(base.getSchema().subSchema(attrlist));
+        } else if (node.getOpType() == OpType.GROUPBY) {
+            Operator base = ((GroupBy) node).getBase();
+            modifySchema(base);
+            node.setSchema(base.getSchema().subSchema(((GroupBy) node).getAttr()));
+        } else if (node.getOpType() == OpType.DISTINCT) {
+            modifySchema(((Distinct) node).getBase());
+        } else if (node.getOpType() == OpType.SORT) {
+            modifySchema(((OrderBy) node).getBase());
+        } else if (node.getOpType() == OpType.TOPN) {
+            modifySchema(((TopN) node).getBase());
+        } else if (node.getOpType() == OpType.LIMIT) {
+            modifySchema(((Limit) node).getBase());
         }
     }
 }
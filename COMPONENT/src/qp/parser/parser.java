@@ -1,7 +1,7 @@
 
 //----------------------------------------------------
 // The following code was generated by CUP v0.10k
-// Sun Feb 21 15:56:34 SGT 2021
+// Sun Oct 18 05:26:47 UTC 2026
 //----------------------------------------------------
 
 package qp.parser;
@@ -11,7 +11,7 @@ import java_cup.runtime.*;
 import java.util.*;
 
 /** CUP v0.10k generated parser.
-  * @version Sun Feb 21 15:56:34 SGT 2021
+  * @version Sun Oct 18 05:26:47 UTC 2026
   */
 public class parser extends java_cup.runtime.lr_parser {
 
@@ -24,18 +24,20 @@ public class parser extends java_cup.runtime.lr_parser {
   /** Production table. */
   protected static final short _production_table[][] = 
     unpackFromStrings(new String[] {
-    "\000\046\000\002\003\003\000\002\002\004\000\002\003" +
-    "\005\000\002\003\006\000\002\003\010\000\002\004\010" +
-    "\000\002\004\010\000\002\004\006\000\002\004\006\000" +
-    "\002\004\011\000\002\004\011\000\002\004\007\000\002" +
-    "\004\007\000\002\005\005\000\002\005\003\000\002\007" +
-    "\005\000\002\007\003\000\002\010\005\000\002\010\003" +
-    "\000\002\011\005\000\002\011\005\000\002\011\004\000" +
-    "\002\011\004\000\002\006\005\000\002\006\006\000\002" +
-    "\006\006\000\002\006\006\000\002\006\006\000\002\006" +
-    "\006\000\002\006\004\000\002\012\003\000\002\012\003" +
-    "\000\002\012\003\000\002\012\003\000\002\012\003\000" +
-    "\002\012\003\000\002\013\003\000\002\013\003" });
+    "\000\052\000\002\003\003\000\002\002\004\000\002\003" +
+    "\005\000\002\003\007\000\002\003\005\000\002\004\003" +
+    "\000\002\004\005\000\002\004\006\000\002\004\010\000" +
+    "\002\005\010\000\002\005\010\000\002\005\006\000\002" +
+    "\005\006\000\002\005\011\000\002\005\011\000\002\005" +
+    "\007\000\002\005\007\000\002\006\005\000\002\006\003" +
+    "\000\002\010\005\000\002\010\003\000\002\011\005\000" +
+    "\002\011\003\000\002\012\005\000\002\012\005\000\002" +
+    "\012\004\000\002\012\004\000\002\007\005\000\002\007" +
+    "\006\000\002\007\006\000\002\007\006\000\002\007\006" +
+    "\000\002\007\006\000\002\007\004\000\002\013\003\000" +
+    "\002\013\003\000\002\013\003\000\002\013\003\000\002" +
+    "\013\003\000\002\013\003\000\002\014\003\000\002\014" +
+    "\003" });
 
   /** Access to production table. */
   public short[][] production_table() {return _production_table;}
@@ -43,92 +45,100 @@ public class parser extends java_cup.runtime.lr_parser {
   /** Parse-action table. */
   protected static final short[][] _action_table = 
     unpackFromStrings(new String[] {
-    "\000\122\000\004\020\006\001\002\000\010\002\001\023" +
-    "\114\024\113\001\002\000\004\002\112\001\002\000\022" +
-    "\004\016\011\014\025\013\026\020\027\007\030\012\031" +
-    "\010\032\015\001\002\000\004\006\107\001\002\000\004" +
-    "\006\104\001\002\000\016\002\ufff3\005\ufff3\021\ufff3\024" +
-    "\ufff3\033\ufff3\034\ufff3\001\002\000\004\006\101\001\002" +
-    "\000\004\006\076\001\002\000\004\021\072\001\002\000" +
-    "\020\004\016\011\060\025\013\026\020\027\007\030\012" +
-    "\031\010\001\002\000\006\003\055\010\056\001\002\000" +
-    "\006\005\024\021\025\001\002\000\004\006\021\001\002" +
-    "\000\016\004\016\025\013\026\020\027\007\030\012\031" +
-    "\010\001\002\000\004\007\023\001\002\000\040\002\uffe8" +
-    "\003\uffe8\005\uffe8\007\uffe8\012\uffe8\013\uffe8\014\uffe8\015" +
-    "\uffe8\016\uffe8\017\uffe8\021\uffe8\023\uffe8\024\uffe8\033\uffe8" +
-    "\034\uffe8\001\002\000\016\004\016\025\013\026\020\027" +
-    "\007\030\012\031\010\001\002\000\004\004\026\001\002" +
-    "\000\014\002\ufff1\005\ufff1\022\ufff1\023\ufff1\024\ufff1\001" +
-    "\002\000\014\002\ufffa\005\030\022\031\023\ufffa\024\ufffa" +
-    "\001\002\000\004\004\053\001\002\000\020\003\034\004" +
-    "\016\025\013\026\020\027\007\030\012\031\010\001\002" +
-    "\000\020\003\042\012\044\013\047\014\046\015\041\016" +
-    "\043\017\045\001\002\000\012\002\uffef\005\uffef\023\uffef" +
-    "\024\uffef\001\002\000\004\035\040\001\002\000\012\002" +
-    "\ufffc\005\036\023\ufffc\024\ufffc\001\002\000\020\003\034" +
-    "\004\016\025\013\026\020\027\007\030\012\031\010\001" +
-    "\002\000\012\002\ufff0\005\ufff0\023\ufff0\024\ufff0\001\002" +
-    "\000\012\002\uffeb\005\uffeb\023\uffeb\024\uffeb\001\002\000" +
-    "\020\004\uffe0\025\uffe0\026\uffe0\027\uffe0\030\uffe0\031\uffe0" +
-    "\035\uffe0\001\002\000\012\002\uffec\005\uffec\023\uffec\024" +
-    "\uffec\001\002\000\020\004\uffde\025\uffde\026\uffde\027\uffde" +
-    "\030\uffde\031\uffde\035\uffde\001\002\000\020\004\uffe3\025" +
-    "\uffe3\026\uffe3\027\uffe3\030\uffe3\031\uffe3\035\uffe3\001\002" +
-    "\000\020\004\uffdf\025\uffdf\026\uffdf\027\uffdf\030\uffdf\031" +
-    "\uffdf\035\uffdf\001\002\000\020\004\uffe1\025\uffe1\026\uffe1" +
-    "\027\uffe1\030\uffe1\031\uffe1\035\uffe1\001\002\000\020\004" +
-    "\uffe2\025\uffe2\026\uffe2\027\uffe2\030\uffe2\031\uffe2\035\uffe2" +
-    "\001\002\000\020\004\016\025\013\026\020\027\007\030" +
-    "\012\031\010\035\052\001\002\000\012\002\uffed\005\uffed" +
-    "\023\uffed\024\uffed\001\002\000\012\002\uffee\005\uffee\023" +
-    "\uffee\024\uffee\001\002\000\014\002\ufff2\005\ufff2\022\ufff2" +
-    "\023\ufff2\024\ufff2\001\002\000\016\002\ufff4\005\ufff4\021" +
-    "\ufff4\024\ufff4\033\ufff4\034\ufff4\001\002\000\040\002\uffe4" +
-    "\003\uffe4\005\uffe4\007\uffe4\012\uffe4\013\uffe4\014\uffe4\015" +
-    "\uffe4\016\uffe4\017\uffe4\021\uffe4\023\uffe4\024\uffe4\033\uffe4" +
-    "\034\uffe4\001\002\000\004\004\057\001\002\000\040\002" +
-    "\uffea\003\uffea\005\uffea\007\uffea\012\uffea\013\uffea\014\uffea" +
-    "\015\uffea\016\uffea\017\uffea\021\uffea\023\uffea\024\uffea\033" +
-    "\uffea\034\uffea\001\002\000\004\021\066\001\002\000\006" +
-    "\005\024\021\062\001\002\000\004\004\026\001\002\000" +
-    "\014\002\ufff6\005\030\022\064\023\ufff6\024\ufff6\001\002" +
-    "\000\020\003\034\004\016\025\013\026\020\027\007\030" +
-    "\012\031\010\001\002\000\012\002\ufff8\005\036\023\ufff8" +
-    "\024\ufff8\001\002\000\004\004\026\001\002\000\014\002" +
-    "\ufff5\005\030\022\070\023\ufff5\024\ufff5\001\002\000\020" +
-    "\003\034\004\016\025\013\026\020\027\007\030\012\031" +
-    "\010\001\002\000\012\002\ufff7\005\036\023\ufff7\024\ufff7" +
-    "\001\002\000\004\004\026\001\002\000\014\002\ufff9\005" +
-    "\030\022\074\023\ufff9\024\ufff9\001\002\000\020\003\034" +
-    "\004\016\025\013\026\020\027\007\030\012\031\010\001" +
-    "\002\000\012\002\ufffb\005\036\023\ufffb\024\ufffb\001\002" +
-    "\000\016\004\016\025\013\026\020\027\007\030\012\031" +
-    "\010\001\002\000\004\007\100\001\002\000\040\002\uffe9" +
-    "\003\uffe9\005\uffe9\007\uffe9\012\uffe9\013\uffe9\014\uffe9\015" +
-    "\uffe9\016\uffe9\017\uffe9\021\uffe9\023\uffe9\024\uffe9\033\uffe9" +
-    "\034\uffe9\001\002\000\016\004\016\025\013\026\020\027" +
-    "\007\030\012\031\010\001\002\000\004\007\103\001\002" +
-    "\000\040\002\uffe6\003\uffe6\005\uffe6\007\uffe6\012\uffe6\013" +
-    "\uffe6\014\uffe6\015\uffe6\016\uffe6\017\uffe6\021\uffe6\023\uffe6" +
-    "\024\uffe6\033\uffe6\034\uffe6\001\002\000\016\004\016\025" +
-    "\013\026\020\027\007\030\012\031\010\001\002\000\004" +
-    "\007\106\001\002\000\040\002\uffe5\003\uffe5\005\uffe5\007" +
-    "\uffe5\012\uffe5\013\uffe5\014\uffe5\015\uffe5\016\uffe5\017\uffe5" +
-    "\021\uffe5\023\uffe5\024\uffe5\033\uffe5\034\uffe5\001\002\000" +
-    "\016\004\016\025\013\026\020\027\007\030\012\031\010" +
-    "\001\002\000\004\007\111\001\002\000\040\002\uffe7\003" +
-    "\uffe7\005\uffe7\007\uffe7\012\uffe7\013\uffe7\014\uffe7\015\uffe7" +
-    "\016\uffe7\017\uffe7\021\uffe7\023\uffe7\024\uffe7\033\uffe7\034" +
-    "\uffe7\001\002\000\004\002\000\001\002\000\016\004\016" +
-    "\025\013\026\020\027\007\030\012\031\010\001\002\000" +
-    "\016\004\016\025\013\026\020\027\007\030\012\031\010" +
-    "\001\002\000\010\002\uffff\005\024\024\116\001\002\000" +
-    "\016\004\016\025\013\026\020\027\007\030\012\031\010" +
-    "\001\002\000\010\005\024\033\121\034\122\001\002\000" +
-    "\004\002\ufffd\001\002\000\004\002\uffdd\001\002\000\004" +
-    "\002\uffdc\001\002\000\010\005\024\033\121\034\122\001" +
-    "\002\000\004\002\ufffe\001\002" });
+    "\000\130\000\004\020\007\001\002\000\012\002\ufffc\023" +
+    "\122\024\121\035\ufffc\001\002\000\004\002\120\001\002" +
+    "\000\006\002\001\035\113\001\002\000\022\004\017\011" +
+    "\015\025\014\026\021\027\011\030\013\031\010\032\016" +
+    "\001\002\000\004\006\110\001\002\000\004\006\105\001" +
+    "\002\000\020\002\uffef\005\uffef\021\uffef\024\uffef\033\uffef" +
+    "\034\uffef\035\uffef\001\002\000\004\006\102\001\002\000" +
+    "\004\006\077\001\002\000\004\021\073\001\002\000\020" +
+    "\004\017\011\061\025\014\026\021\027\011\030\013\031" +
+    "\010\001\002\000\006\003\056\010\057\001\002\000\006" +
+    "\005\025\021\026\001\002\000\004\006\022\001\002\000" +
+    "\016\004\017\025\014\026\021\027\011\030\013\031\010" +
+    "\001\002\000\004\007\024\001\002\000\042\002\uffe4\003" +
+    "\uffe4\005\uffe4\007\uffe4\012\uffe4\013\uffe4\014\uffe4\015\uffe4" +
+    "\016\uffe4\017\uffe4\021\uffe4\023\uffe4\024\uffe4\033\uffe4\034" +
+    "\uffe4\035\uffe4\001\002\000\016\004\017\025\014\026\021" +
+    "\027\011\030\013\031\010\001\002\000\004\004\027\001" +
+    "\002\000\016\002\uffed\005\uffed\022\uffed\023\uffed\024\uffed" +
+    "\035\uffed\001\002\000\016\002\ufff6\005\031\022\032\023" +
+    "\ufff6\024\ufff6\035\ufff6\001\002\000\004\004\054\001\002" +
+    "\000\020\003\035\004\017\025\014\026\021\027\011\030" +
+    "\013\031\010\001\002\000\020\003\043\012\045\013\047" +
+    "\014\050\015\042\016\044\017\046\001\002\000\014\002" +
+    "\uffeb\005\uffeb\023\uffeb\024\uffeb\035\uffeb\001\002\000\004" +
+    "\037\041\001\002\000\014\002\ufff8\005\037\023\ufff8\024" +
+    "\ufff8\035\ufff8\001\002\000\020\003\035\004\017\025\014" +
+    "\026\021\027\011\030\013\031\010\001\002\000\014\002" +
+    "\uffec\005\uffec\023\uffec\024\uffec\035\uffec\001\002\000\014" +
+    "\002\uffe7\005\uffe7\023\uffe7\024\uffe7\035\uffe7\001\002\000" +
+    "\020\004\uffdc\025\uffdc\026\uffdc\027\uffdc\030\uffdc\031\uffdc" +
+    "\037\uffdc\001\002\000\014\002\uffe8\005\uffe8\023\uffe8\024" +
+    "\uffe8\035\uffe8\001\002\000\020\004\uffda\025\uffda\026\uffda" +
+    "\027\uffda\030\uffda\031\uffda\037\uffda\001\002\000\020\004" +
+    "\uffdf\025\uffdf\026\uffdf\027\uffdf\030\uffdf\031\uffdf\037\uffdf" +
+    "\001\002\000\020\004\uffdb\025\uffdb\026\uffdb\027\uffdb\030" +
+    "\uffdb\031\uffdb\037\uffdb\001\002\000\020\004\uffde\025\uffde" +
+    "\026\uffde\027\uffde\030\uffde\031\uffde\037\uffde\001\002\000" +
+    "\020\004\uffdd\025\uffdd\026\uffdd\027\uffdd\030\uffdd\031\uffdd" +
+    "\037\uffdd\001\002\000\020\004\017\025\014\026\021\027" +
+    "\011\030\013\031\010\037\053\001\002\000\014\002\uffe9" +
+    "\005\uffe9\023\uffe9\024\uffe9\035\uffe9\001\002\000\014\002" +
+    "\uffea\005\uffea\023\uffea\024\uffea\035\uffea\001\002\000\016" +
+    "\002\uffee\005\uffee\022\uffee\023\uffee\024\uffee\035\uffee\001" +
+    "\002\000\020\002\ufff0\005\ufff0\021\ufff0\024\ufff0\033\ufff0" +
+    "\034\ufff0\035\ufff0\001\002\000\042\002\uffe0\003\uffe0\005" +
+    "\uffe0\007\uffe0\012\uffe0\013\uffe0\014\uffe0\015\uffe0\016\uffe0" +
+    "\017\uffe0\021\uffe0\023\uffe0\024\uffe0\033\uffe0\034\uffe0\035" +
+    "\uffe0\001\002\000\004\004\060\001\002\000\042\002\uffe6" +
+    "\003\uffe6\005\uffe6\007\uffe6\012\uffe6\013\uffe6\014\uffe6\015" +
+    "\uffe6\016\uffe6\017\uffe6\021\uffe6\023\uffe6\024\uffe6\033\uffe6" +
+    "\034\uffe6\035\uffe6\001\002\000\004\021\067\001\002\000" +
+    "\006\005\025\021\063\001\002\000\004\004\027\001\002" +
+    "\000\016\002\ufff2\005\031\022\065\023\ufff2\024\ufff2\035" +
+    "\ufff2\001\002\000\020\003\035\004\017\025\014\026\021" +
+    "\027\011\030\013\031\010\001\002\000\014\002\ufff4\005" +
+    "\037\023\ufff4\024\ufff4\035\ufff4\001\002\000\004\004\027" +
+    "\001\002\000\016\002\ufff1\005\031\022\071\023\ufff1\024" +
+    "\ufff1\035\ufff1\001\002\000\020\003\035\004\017\025\014" +
+    "\026\021\027\011\030\013\031\010\001\002\000\014\002" +
+    "\ufff3\005\037\023\ufff3\024\ufff3\035\ufff3\001\002\000\004" +
+    "\004\027\001\002\000\016\002\ufff5\005\031\022\075\023" +
+    "\ufff5\024\ufff5\035\ufff5\001\002\000\020\003\035\004\017" +
+    "\025\014\026\021\027\011\030\013\031\010\001\002\000" +
+    "\014\002\ufff7\005\037\023\ufff7\024\ufff7\035\ufff7\001\002" +
+    "\000\016\004\017\025\014\026\021\027\011\030\013\031" +
+    "\010\001\002\000\004\007\101\001\002\000\042\002\uffe5" +
+    "\003\uffe5\005\uffe5\007\uffe5\012\uffe5\013\uffe5\014\uffe5\015" +
+    "\uffe5\016\uffe5\017\uffe5\021\uffe5\023\uffe5\024\uffe5\033\uffe5" +
+    "\034\uffe5\035\uffe5\001\002\000\016\004\017\025\014\026" +
+    "\021\027\011\030\013\031\010\001\002\000\004\007\104" +
+    "\001\002\000\042\002\uffe2\003\uffe2\005\uffe2\007\uffe2\012" +
+    "\uffe2\013\uffe2\014\uffe2\015\uffe2\016\uffe2\017\uffe2\021\uffe2" +
+    "\023\uffe2\024\uffe2\033\uffe2\034\uffe2\035\uffe2\001\002\000" +
+    "\016\004\017\025\014\026\021\027\011\030\013\031\010" +
+    "\001\002\000\004\007\107\001\002\000\042\002\uffe3\003" +
+    "\uffe3\005\uffe3\007\uffe3\012\uffe3\013\uffe3\014\uffe3\015\uffe3" +
+    "\016\uffe3\017\uffe3\021\uffe3\023\uffe3\024\uffe3\033\uffe3\034" +
+    "\uffe3\035\uffe3\001\002\000\016\004\017\025\014\026\021" +
+    "\027\011\030\013\031\010\001\002\000\004\007\112\001" +
+    "\002\000\042\002\uffe1\003\uffe1\005\uffe1\007\uffe1\012\uffe1" +
+    "\013\uffe1\014\uffe1\015\uffe1\016\uffe1\017\uffe1\021\uffe1\023" +
+    "\uffe1\024\uffe1\033\uffe1\034\uffe1\035\uffe1\001\002\000\006" +
+    "\003\115\040\114\001\002\000\006\002\uffff\036\116\001" +
+    "\002\000\004\002\ufffd\001\002\000\004\040\117\001\002" +
+    "\000\004\002\ufffe\001\002\000\004\002\000\001\002\000" +
+    "\016\004\017\025\014\026\021\027\011\030\013\031\010" +
+    "\001\002\000\016\004\017\025\014\026\021\027\011\030" +
+    "\013\031\010\001\002\000\012\002\ufffb\005\025\024\124" +
+    "\035\ufffb\001\002\000\016\004\017\025\014\026\021\027" +
+    "\011\030\013\031\010\001\002\000\010\005\025\033\127" +
+    "\034\130\001\002\000\006\002\ufff9\035\ufff9\001\002\000" +
+    "\006\002\uffd9\035\uffd9\001\002\000\006\002\uffd8\035\uffd8" +
+    "\001\002\000\010\005\025\033\127\034\130\001\002\000" +
+    "\006\002\ufffa\035\ufffa\001\002" });
 
   /** Access to parse-action table. */
   public short[][] action_table() {return _action_table;}
@@ -136,38 +146,40 @@ public class parser extends java_cup.runtime.lr_parser {
   /** <code>reduce_goto</code> table. */
   protected static final short[][] _reduce_table = 
     unpackFromStrings(new String[] {
-    "\000\122\000\006\003\004\004\003\001\001\000\002\001" +
-    "\001\000\002\001\001\000\006\005\016\006\010\001\001" +
-    "\000\002\001\001\000\002\001\001\000\002\001\001\000" +
+    "\000\130\000\010\003\004\004\005\005\003\001\001\000" +
     "\002\001\001\000\002\001\001\000\002\001\001\000\006" +
-    "\005\060\006\010\001\001\000\002\001\001\000\002\001" +
-    "\001\000\002\001\001\000\004\006\021\001\001\000\002" +
-    "\001\001\000\002\001\001\000\004\006\053\001\001\000" +
-    "\004\007\026\001\001\000\002\001\001\000\002\001\001" +
-    "\000\002\001\001\000\010\006\031\010\034\011\032\001" +
-    "\001\000\004\012\047\001\001\000\002\001\001\000\002" +
-    "\001\001\000\002\001\001\000\006\006\031\011\036\001" +
+    "\006\017\007\011\001\001\000\002\001\001\000\002\001" +
     "\001\000\002\001\001\000\002\001\001\000\002\001\001" +
-    "\000\002\001\001\000\002\001\001\000\002\001\001\000" +
+    "\000\002\001\001\000\006\006\061\007\011\001\001\000" +
     "\002\001\001\000\002\001\001\000\002\001\001\000\004" +
-    "\006\050\001\001\000\002\001\001\000\002\001\001\000" +
-    "\002\001\001\000\002\001\001\000\002\001\001\000\002" +
+    "\007\022\001\001\000\002\001\001\000\002\001\001\000" +
+    "\004\007\054\001\001\000\004\010\027\001\001\000\002" +
+    "\001\001\000\002\001\001\000\002\001\001\000\010\007" +
+    "\032\011\035\012\033\001\001\000\004\013\050\001\001" +
+    "\000\002\001\001\000\002\001\001\000\002\001\001\000" +
+    "\006\007\032\012\037\001\001\000\002\001\001\000\002" +
     "\001\001\000\002\001\001\000\002\001\001\000\002\001" +
-    "\001\000\004\007\062\001\001\000\002\001\001\000\010" +
-    "\006\031\010\064\011\032\001\001\000\002\001\001\000" +
-    "\004\007\066\001\001\000\002\001\001\000\010\006\031" +
-    "\010\070\011\032\001\001\000\002\001\001\000\004\007" +
-    "\072\001\001\000\002\001\001\000\010\006\031\010\074" +
-    "\011\032\001\001\000\002\001\001\000\004\006\076\001" +
-    "\001\000\002\001\001\000\002\001\001\000\004\006\101" +
-    "\001\001\000\002\001\001\000\002\001\001\000\004\006" +
-    "\104\001\001\000\002\001\001\000\002\001\001\000\004" +
-    "\006\107\001\001\000\002\001\001\000\002\001\001\000" +
-    "\002\001\001\000\006\005\122\006\010\001\001\000\006" +
-    "\005\114\006\010\001\001\000\002\001\001\000\006\005" +
-    "\116\006\010\001\001\000\004\013\117\001\001\000\002" +
-    "\001\001\000\002\001\001\000\002\001\001\000\004\013" +
-    "\123\001\001\000\002\001\001" });
+    "\001\000\002\001\001\000\002\001\001\000\002\001\001" +
+    "\000\002\001\001\000\004\007\051\001\001\000\002\001" +
+    "\001\000\002\001\001\000\002\001\001\000\002\001\001" +
+    "\000\002\001\001\000\002\001\001\000\002\001\001\000" +
+    "\002\001\001\000\002\001\001\000\004\010\063\001\001" +
+    "\000\002\001\001\000\010\007\032\011\065\012\033\001" +
+    "\001\000\002\001\001\000\004\010\067\001\001\000\002" +
+    "\001\001\000\010\007\032\011\071\012\033\001\001\000" +
+    "\002\001\001\000\004\010\073\001\001\000\002\001\001" +
+    "\000\010\007\032\011\075\012\033\001\001\000\002\001" +
+    "\001\000\004\007\077\001\001\000\002\001\001\000\002" +
+    "\001\001\000\004\007\102\001\001\000\002\001\001\000" +
+    "\002\001\001\000\004\007\105\001\001\000\002\001\001" +
+    "\000\002\001\001\000\004\007\110\001\001\000\002\001" +
+    "\001\000\002\001\001\000\002\001\001\000\002\001\001" +
+    "\000\002\001\001\000\002\001\001\000\002\001\001\000" +
+    "\002\001\001\000\006\006\130\007\011\001\001\000\006" +
+    "\006\122\007\011\001\001\000\002\001\001\000\006\006" +
+    "\124\007\011\001\001\000\004\014\125\001\001\000\002" +
+    "\001\001\000\002\001\001\000\002\001\001\000\004\014" +
+    "\131\001\001\000\002\001\001" });
 
   /** Access to <code>reduce_goto</code> table. */
   public short[][] reduce_table() {return _reduce_table;}
@@ -254,95 +266,95 @@ class CUP$parser$actions {
       switch (CUP$parser$act_num)
         {
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 37: // order ::= DESC 
+          case 41: // order ::= DESC 
             {
               boolean RESULT = false;
 		 
 			RESULT = false; 
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(9/*order*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(10/*order*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 36: // order ::= ASC 
+          case 40: // order ::= ASC 
             {
               boolean RESULT = true;
 		 
 			RESULT = true; 
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(9/*order*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(10/*order*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 35: // op ::= EQUAL 
+          case 39: // op ::= EQUAL 
             {
               Condition RESULT = null;
 		
 			RESULT = new Condition(Condition.EQUAL);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(8/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(9/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 34: // op ::= NOTEQUAL 
+          case 38: // op ::= NOTEQUAL 
             {
               Condition RESULT = null;
 			
 		  RESULT = new Condition(Condition.NOTEQUAL);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(8/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(9/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 33: // op ::= GTOE 
+          case 37: // op ::= GTOE 
             {
               Condition RESULT = null;
 		
 			RESULT = new Condition(Condition.GTOE);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(8/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(9/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 32: // op ::= LTOE 
+          case 36: // op ::= LTOE 
             {
               Condition RESULT = null;
 		
 			RESULT = new Condition(Condition.LTOE);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(8/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(9/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 31: // op ::= GREATERTHAN 
+          case 35: // op ::= GREATERTHAN 
             {
               Condition RESULT = null;
 		
 			RESULT = new Condition(Condition.GREATERTHAN);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(8/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(9/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 30: // op ::= LESSTHAN 
+          case 34: // op ::= LESSTHAN 
             {
               Condition RESULT = null;
 		
 			RESULT = new Condition(Condition.LESSTHAN);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(8/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(9/*op*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 29: // attribute ::= ID error 
+          case 33: // attribute ::= ID error 
             {
               Attribute RESULT = null;
 		int ileft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -355,12 +367,12 @@ class CUP$parser$actions {
 			System.out.println("syntax error: incorrect attribute:"+ i.text());
 			System.exit(0);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(4/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(5/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 28: // attribute ::= AVG LEFTBRACKET attribute RIGHTBRACKET 
+          case 32: // attribute ::= AVG LEFTBRACKET attribute RIGHTBRACKET 
             {
               Attribute RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -370,12 +382,12 @@ class CUP$parser$actions {
 			at.setAggType(Attribute.AVG);
 			RESULT = at;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(4/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(5/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 27: // attribute ::= COUNT LEFTBRACKET attribute RIGHTBRACKET 
+          case 31: // attribute ::= COUNT LEFTBRACKET attribute RIGHTBRACKET 
             {
               Attribute RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -385,12 +397,12 @@ class CUP$parser$actions {
 			at.setAggType(Attribute.COUNT);
 			RESULT = at;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(4/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(5/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 26: // attribute ::= SUM LEFTBRACKET attribute RIGHTBRACKET 
+          case 30: // attribute ::= SUM LEFTBRACKET attribute RIGHTBRACKET 
             {
               Attribute RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -400,12 +412,12 @@ class CUP$parser$actions {
 			at.setAggType(Attribute.SUM);
 			RESULT = at;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(4/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(5/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 25: // attribute ::= MIN LEFTBRACKET attribute RIGHTBRACKET 
+          case 29: // attribute ::= MIN LEFTBRACKET attribute RIGHTBRACKET 
             {
               Attribute RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -415,12 +427,12 @@ class CUP$parser$actions {
 			at.setAggType(Attribute.MIN);
 			RESULT = at;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(4/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(5/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 24: // attribute ::= MAX LEFTBRACKET attribute RIGHTBRACKET 
+          case 28: // attribute ::= MAX LEFTBRACKET attribute RIGHTBRACKET 
             {
               Attribute RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -430,12 +442,12 @@ class CUP$parser$actions {
 			at.setAggType(Attribute.MAX);
 			RESULT = at;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(4/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(5/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 23: // attribute ::= ID DOT ID 
+          case 27: // attribute ::= ID DOT ID 
             {
               Attribute RESULT = null;
 		int i1left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -447,12 +459,12 @@ class CUP$parser$actions {
 		
 			RESULT = new Attribute(i1.text(),i2.text());
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(4/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(5/*attribute*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 22: // condition ::= error STRINGLIT 
+          case 26: // condition ::= error STRINGLIT 
             {
               Condition RESULT = null;
 		int pleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -465,12 +477,12 @@ class CUP$parser$actions {
 			System.out.println("syntax error: incorrect condition:"+s.text());
 			System.exit(0);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(7/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(8/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 21: // condition ::= attribute error 
+          case 25: // condition ::= attribute error 
             {
               Condition RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
@@ -483,12 +495,12 @@ class CUP$parser$actions {
 			System.out.println("syntax error: incorrect condition");
 			System.exit(0);
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(7/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(8/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 20: // condition ::= attribute op attribute 
+          case 24: // condition ::= attribute op attribute 
             {
               Condition RESULT = null;
 		int a1left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -505,12 +517,12 @@ class CUP$parser$actions {
 			c.setOpType(Condition.JOIN);
 			RESULT = c;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(7/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(8/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 19: // condition ::= attribute op STRINGLIT 
+          case 23: // condition ::= attribute op STRINGLIT 
             {
               Condition RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -527,12 +539,12 @@ class CUP$parser$actions {
 			c.setOpType(Condition.SELECT);
 			RESULT = c;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(7/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(8/*condition*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 18: // conditionlist ::= condition 
+          case 22: // conditionlist ::= condition 
             {
               ArrayList RESULT = null;
 		int cleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
@@ -543,12 +555,12 @@ class CUP$parser$actions {
 			clist.add(c);
 			RESULT = clist;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(6/*conditionlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(7/*conditionlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 17: // conditionlist ::= conditionlist COMMA condition 
+          case 21: // conditionlist ::= conditionlist COMMA condition 
             {
               ArrayList RESULT = null;
 		int clistleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -561,12 +573,12 @@ class CUP$parser$actions {
 			clist.add(c);
 			RESULT = clist;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(6/*conditionlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(7/*conditionlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 16: // tablelist ::= ID 
+          case 20: // tablelist ::= ID 
             {
               ArrayList RESULT = null;
 		int ileft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
@@ -577,12 +589,12 @@ class CUP$parser$actions {
 			tlist.add(i.text());
 			RESULT = tlist;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(5/*tablelist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(6/*tablelist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 15: // tablelist ::= tablelist COMMA ID 
+          case 19: // tablelist ::= tablelist COMMA ID 
             {
               ArrayList RESULT = null;
 		int tlistleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -595,12 +607,12 @@ class CUP$parser$actions {
 			tlist.add(i.text());
 			RESULT = tlist;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(5/*tablelist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(6/*tablelist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 14: // attlist ::= attribute 
+          case 18: // attlist ::= attribute 
             {
               ArrayList RESULT = null;
 		int atleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
@@ -611,12 +623,12 @@ class CUP$parser$actions {
 			v.add(at);
 			RESULT = v;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(3/*attlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(4/*attlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 13: // attlist ::= attlist COMMA attribute 
+          case 17: // attlist ::= attlist COMMA attribute 
             {
               ArrayList RESULT = null;
 		int asleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -629,12 +641,12 @@ class CUP$parser$actions {
 			as.add(a);
 			RESULT = as;
 	    
-              CUP$parser$result = new java_cup.runtime.Symbol(3/*attlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(4/*attlist*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 12: // sqlquery ::= SELECT DISTINCT STAR FROM tablelist 
+          case 16: // sqlquery ::= SELECT DISTINCT STAR FROM tablelist 
             {
               SQLQuery RESULT = null;
 		int tleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
@@ -646,12 +658,12 @@ class CUP$parser$actions {
 			sq.setIsDistinct(true);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 11: // sqlquery ::= SELECT DISTINCT attlist FROM tablelist 
+          case 15: // sqlquery ::= SELECT DISTINCT attlist FROM tablelist 
             {
               SQLQuery RESULT = null;
 		int aleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -665,12 +677,12 @@ class CUP$parser$actions {
 			sq.setIsDistinct(true);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 10: // sqlquery ::= SELECT DISTINCT STAR FROM tablelist WHERE conditionlist 
+          case 14: // sqlquery ::= SELECT DISTINCT STAR FROM tablelist WHERE conditionlist 
             {
               SQLQuery RESULT = null;
 		int tleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -685,12 +697,12 @@ class CUP$parser$actions {
 			sq.setIsDistinct(true);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-6)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-6)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 9: // sqlquery ::= SELECT DISTINCT attlist FROM tablelist WHERE conditionlist 
+          case 13: // sqlquery ::= SELECT DISTINCT attlist FROM tablelist WHERE conditionlist 
             {
               SQLQuery RESULT = null;
 		int aleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left;
@@ -707,12 +719,12 @@ class CUP$parser$actions {
 			sq.setIsDistinct(true);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-6)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-6)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 8: // sqlquery ::= SELECT STAR FROM tablelist 
+          case 12: // sqlquery ::= SELECT STAR FROM tablelist 
             {
               SQLQuery RESULT = null;
 		int tleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
@@ -723,12 +735,12 @@ class CUP$parser$actions {
 			SQLQuery sq = new SQLQuery(a,t);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 7: // sqlquery ::= SELECT attlist FROM tablelist 
+          case 11: // sqlquery ::= SELECT attlist FROM tablelist 
             {
               SQLQuery RESULT = null;
 		int aleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -741,12 +753,12 @@ class CUP$parser$actions {
 			SQLQuery sq = new SQLQuery(a,t);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 6: // sqlquery ::= SELECT STAR FROM tablelist WHERE conditionlist 
+          case 10: // sqlquery ::= SELECT STAR FROM tablelist WHERE conditionlist 
             {
               SQLQuery RESULT = null;
 		int tleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -760,12 +772,12 @@ class CUP$parser$actions {
 			SQLQuery sq = new SQLQuery(a,t,c);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-5)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-5)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 5: // sqlquery ::= SELECT attlist FROM tablelist WHERE conditionlist 
+          case 9: // sqlquery ::= SELECT attlist FROM tablelist WHERE conditionlist 
             {
               SQLQuery RESULT = null;
 		int aleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left;
@@ -781,12 +793,12 @@ class CUP$parser$actions {
 			SQLQuery sq = new SQLQuery(a,t,c);
 			RESULT = sq;
 		
-              CUP$parser$result = new java_cup.runtime.Symbol(2/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-5)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(3/*sqlquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-5)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 4: // finalquery ::= sqlquery GROUPBY attlist ORDERBY attlist order 
+          case 8: // orderedquery ::= sqlquery GROUPBY attlist ORDERBY attlist order 
             {
               SQLQuery RESULT = null;
 		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-5)).left;
@@ -805,15 +817,14 @@ class CUP$parser$actions {
             s.setGroupByList(a);
             s.setOrderByList(b);
 			s.setAscending(o);
-            parser.query = s;
             RESULT = s;
         
-              CUP$parser$result = new java_cup.runtime.Symbol(1/*finalquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-5)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(2/*orderedquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-5)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 3: // finalquery ::= sqlquery ORDERBY attlist order 
+          case 7: // orderedquery ::= sqlquery ORDERBY attlist order 
             {
               SQLQuery RESULT = null;
 		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left;
@@ -828,15 +839,14 @@ class CUP$parser$actions {
 		
             s.setOrderByList(a);
 			s.setAscending(o);
-            parser.query = s;
             RESULT = s;
         
-              CUP$parser$result = new java_cup.runtime.Symbol(1/*finalquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+              CUP$parser$result = new java_cup.runtime.Symbol(2/*orderedquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 2: // finalquery ::= sqlquery GROUPBY attlist 
+          case 6: // orderedquery ::= sqlquery GROUPBY attlist 
             {
               SQLQuery RESULT = null;
 		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
@@ -847,9 +857,82 @@ class CUP$parser$actions {
 		ArrayList a = (ArrayList)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		
             s.setGroupByList(a);
-			parser.query = s;
             RESULT = s;
         
+              CUP$parser$result = new java_cup.runtime.Symbol(2/*orderedquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+            }
+          return CUP$parser$result;
+
+          /*. . . . . . . . . . . . . . . . . . . .*/
+          case 5: // orderedquery ::= sqlquery 
+            {
+              SQLQuery RESULT = null;
+		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int sright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SQLQuery s = (SQLQuery)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		
+			RESULT = s;
+		
+              CUP$parser$result = new java_cup.runtime.Symbol(2/*orderedquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+            }
+          return CUP$parser$result;
+
+          /*. . . . . . . . . . . . . . . . . . . .*/
+          case 4: // finalquery ::= orderedquery LIMIT error 
+            {
+              SQLQuery RESULT = null;
+		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
+		int sright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
+		SQLQuery s = (SQLQuery)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
+		int pleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int pright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		Object p = (Object)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		
+			System.out.println("syntax error: LIMIT and OFFSET take a number of rows");
+			System.exit(0);
+		
+              CUP$parser$result = new java_cup.runtime.Symbol(1/*finalquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+            }
+          return CUP$parser$result;
+
+          /*. . . . . . . . . . . . . . . . . . . .*/
+          case 3: // finalquery ::= orderedquery LIMIT INTLIT OFFSET INTLIT 
+            {
+              SQLQuery RESULT = null;
+		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left;
+		int sright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).right;
+		SQLQuery s = (SQLQuery)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-4)).value;
+		int nleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
+		int nright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
+		TokenValue n = (TokenValue)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
+		int mleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int mright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		TokenValue m = (TokenValue)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		
+			s.setLimit(Integer.parseInt(n.text()));
+			s.setOffset(Integer.parseInt(m.text()));
+			parser.query = s;
+			RESULT = s;
+		
+              CUP$parser$result = new java_cup.runtime.Symbol(1/*finalquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
+            }
+          return CUP$parser$result;
+
+          /*. . . . . . . . . . . . . . . . . . . .*/
+          case 2: // finalquery ::= orderedquery LIMIT INTLIT 
+            {
+              SQLQuery RESULT = null;
+		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
+		int sright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
+		SQLQuery s = (SQLQuery)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
+		int nleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int nright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		TokenValue n = (TokenValue)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		
+			s.setLimit(Integer.parseInt(n.text()));
+			parser.query = s;
+			RESULT = s;
+		
               CUP$parser$result = new java_cup.runtime.Symbol(1/*finalquery*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -869,7 +952,7 @@ class CUP$parser$actions {
           return CUP$parser$result;
 
           /*. . . . . . . . . . . . . . . . . . . .*/
-          case 0: // finalquery ::= sqlquery 
+          case 0: // finalquery ::= orderedquery 
             {
               SQLQuery RESULT = null;
 		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
@@ -1,7 +1,7 @@
 
 //----------------------------------------------------
 // The following code was generated by CUP v0.10k
-// Sun Feb 21 15:56:34 SGT 2021
+// Sun Oct 18 05:26:47 UTC 2026
 //----------------------------------------------------
 
 package qp.parser;
@@ -22,16 +22,19 @@ public class sym {
   public static final int LTOE = 10;
   public static final int STAR = 7;
   public static final int ID = 2;
+  public static final int LIMIT = 27;
   public static final int GTOE = 11;
+  public static final int INTLIT = 30;
   public static final int COMMA = 3;
   public static final int LESSTHAN = 8;
   public static final int EOF = 0;
-  public static final int STRINGLIT = 27;
+  public static final int STRINGLIT = 29;
   public static final int DISTINCT = 24;
   public static final int LEFTBRACKET = 4;
   public static final int AVG = 23;
   public static final int error = 1;
   public static final int DOT = 6;
+  public static final int OFFSET = 28;
   public static final int ASC = 25;
   public static final int MIN = 20;
   public static final int MAX = 19;
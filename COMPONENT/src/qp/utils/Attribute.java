@@ -8,6 +8,8 @@ import java.io.Serializable;
 
 public class Attribute implements Serializable {
 
+    private static final long serialVersionUID = -8217705756579532816L;
+
     public static final int INT = 1;
     public static final int STRING = 2;
     public static final int REAL = 3;
@@ -28,6 +30,7 @@ public class Attribute implements Serializable {
     int aggtype = 0;  // Aggregate type of attribute
     int key = -1;     // Type of key
     int attrsize;     // Number of bytes for this attribute
+    private transient Dictionary dictionary;  // Dictionary of the column in the table file, null if not encoded
 
     public Attribute(String tbl, String col) {
         tblname = tbl;
@@ -120,6 +123,18 @@ public class Attribute implements Serializable {
         }
     }
 
+    /**
+     * Dictionary of the column when the table stores it as codes (see Dictionary),
+     * * the values are codes if the type is INT and strings if it is STRING
+     **/
+    public void setDictionary(Dictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
     public void setAggType(int at) {
         aggtype = at;
     }
@@ -174,6 +189,7 @@ public class Attribute implements Serializable {
         newattr.setAggType(aggtype);
         newattr.setKeyType(key);
         newattr.setAttrSize(attrsize);
+        newattr.setDictionary(dictionary);
         return newattr;
     }
 
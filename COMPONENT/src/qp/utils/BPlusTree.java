@@ -0,0 +1,520 @@
+/**
+ * Persistent B+-tree index on one column of a table
+ **/
+
+package qp.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * BPlusTree - index on a column of a table, stored in <tablename>.<column>.idx and built by BuildIndex.
+ * * The file has the header of a slotted page file and the page size of the table,
+ * * so its pages are read through the buffer pool like the pages of the tables.
+ * * Page 0 holds the statistics of the index, the other pages are the nodes of the tree:
+ * * Leaf:     [LEAF][number of entries][next leaf]  [key][page][slot]  [key][page][slot] ...
+ * * Internal: [INTERNAL][number of keys][child 0]   [key][child 1]     [key][child 2] ...
+ * * An entry points to a record by its page number and slot in the table file. INT and REAL keys
+ * * take 4 bytes, STRING keys a 2 byte length followed by the UTF-8 characters, padded to the
+ * * longest key of the column. Key i of an internal node is the smallest key under child i + 1,
+ * * and entries with equal keys are ordered by page and slot.
+ * * The tree is bulk loaded and not updated afterwards, so it is ignored once the table changes.
+ **/
+public class BPlusTree {
+
+    static final int META_MAGIC = 0x42505431;       // Marks the meta page of an index ("BPT1")
+    static final int LEAF = 1;                      // Kind of a leaf node
+    static final int INTERNAL = 2;                  // Kind of an internal node
+    static final int NODE_HEADER_SIZE = 12;         // Kind, number of entries, next leaf or child 0
+    static final int RID_SIZE = 8;                  // Page number and slot of a record
+    static final int CHILD_SIZE = 4;                // Page number of a child
+
+    static HashMap<String, BPlusTree> opened = new HashMap<>();  // Indexes looked up so far, null if none
+
+    String filename;        // File of the index
+    String tblfile;         // File of the indexed table
+    int column;             // Position of the indexed column in the table
+    int keytype;            // Attribute.INT, REAL or STRING
+    int keysize;            // Number of bytes of a key
+    int pagesize;           // Number of bytes per page
+    int root;               // Page of the root node
+    int height;             // Number of levels, 1 if the root is a leaf
+    int numleaves;          // Number of leaf pages
+    long numentries;        // Number of records indexed
+    long numkeys;           // Number of distinct keys
+    BufferPool pool;        // Buffer pool the nodes and the records are read through
+
+    BPlusTree(String filename, String tblfile) {
+        this.filename = filename;
+        this.tblfile = tblfile;
+    }
+
+    /**
+     * Name of the file of the index on the column of the table
+     **/
+    public static String fileName(String tabname, String colname) {
+        return tabname + "." + colname + ".idx";
+    }
+
+    /**
+     * Index on the column of the table, null if there is none or if it is out of date.
+     * * The statistics of an index are only read once.
+     **/
+    public static synchronized BPlusTree lookup(String tabname, String colname) {
+        String filename = fileName(tabname, colname);
+        if (opened.containsKey(filename)) {
+            return opened.get(filename);
+        }
+        BPlusTree tree = null;
+        if (new File(filename).exists()) {
+            tree = new BPlusTree(filename, tabname + ".tbl");
+            if (!tree.readMeta()) {
+                tree = null;
+            }
+        }
+        opened.put(filename, tree);
+        return tree;
+    }
+
+    // reads the statistics from the meta page, false if the index cannot be used
+    private boolean readMeta() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+            if (in.readInt() != SlottedPage.MAGIC) return false;
+            pagesize = in.readInt();
+            if (in.readInt() != META_MAGIC) return false;
+            column = in.readInt();
+            keytype = in.readInt();
+            keysize = in.readInt();
+            root = in.readInt();
+            height = in.readInt();
+            numleaves = in.readInt();
+            numentries = in.readLong();
+            numkeys = in.readLong();
+            long tablesize = in.readLong();
+            if (tablesize != new File(tblfile).length()) {
+                System.out.println("BPlusTree: " + filename + " is out of date and ignored, build it again with BuildIndex");
+                return false;
+            }
+        } catch (IOException io) {
+            System.out.println("BPlusTree: error in reading " + filename);
+            return false;
+        }
+        return true;
+    }
+
+    public String getFileName() {
+        return filename;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public int getKeyType() {
+        return keytype;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNumLeaves() {
+        return numleaves;
+    }
+
+    public long getNumEntries() {
+        return numentries;
+    }
+
+    public long getNumKeys() {
+        return numkeys;
+    }
+
+    /**
+     * Average number of records with the same key
+     **/
+    public double getEntriesPerKey() {
+        return numkeys == 0 ? 0 : (double) numentries / numkeys;
+    }
+
+    /**
+     * Key of the index with the value of a constant of a condition, null if the constant does not have its type
+     **/
+    public Object parseKey(String constant) {
+        try {
+            if (keytype == Attribute.INT) {
+                return Integer.parseInt(constant);
+            } else if (keytype == Attribute.REAL) {
+                return Float.parseFloat(constant);
+            }
+            return constant;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Estimated fraction of the entries whose key is smaller than the given key.
+     * * The position of the key is looked up in each node on the way down to the leaf,
+     * * assuming that the nodes below each child hold the same number of entries.
+     **/
+    public double estimateFraction(Object key) {
+        double fraction = 0;
+        double width = 1;
+        int page = root;
+        for (int level = 1; level < height; ++level) {
+            ByteBuffer node = pin(filename, page);
+            int numkeys = node.getInt(4);
+            int lo = lowerBound(node, numkeys, CHILD_SIZE, key);
+            int child = childAt(node, lo);
+            pool.unpin(filename, page, false);
+            width /= numkeys + 1;
+            fraction += lo * width;
+            page = child;
+        }
+        ByteBuffer leaf = pin(filename, page);
+        int count = leaf.getInt(4);
+        int lo = lowerBound(leaf, count, RID_SIZE, key);
+        pool.unpin(filename, page, false);
+        if (count > 0) {
+            fraction += width * lo / count;
+        }
+        return fraction;
+    }
+
+    // number of entries of the node whose key is smaller than the given key, 0 if the key is null
+    private int lowerBound(ByteBuffer node, int count, int valuesize, Object key) {
+        int lo = 0;
+        int hi = key == null ? 0 : count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(node, NODE_HEADER_SIZE + mid * (keysize + valuesize), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // page of child i of an internal node
+    private int childAt(ByteBuffer node, int i) {
+        return i == 0 ? node.getInt(8) : node.getInt(NODE_HEADER_SIZE + (i - 1) * (keysize + CHILD_SIZE) + keysize);
+    }
+
+    /**
+     * Sets the buffer pool the pages are read through, must be set before the first cursor is opened
+     **/
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Reads the record at the given page and slot of the table,
+     * * decoding the columns stored as codes with the given dictionaries (see Dictionary.decoders)
+     **/
+    public Tuple fetch(Schema schema, Dictionary[] dictionaries, int page, int slot) {
+        ByteBuffer buf = pin(tblfile, page);
+        Tuple tuple = new SlottedPage(schema, buf, dictionaries).get(slot);
+        pool.unpin(tblfile, page, false);
+        return tuple;
+    }
+
+    private ByteBuffer pin(String file, int page) {
+        try {
+            return pool.pin(file, page);
+        } catch (IOException io) {
+            System.err.println("BPlusTree: error in reading page " + page + " of " + file);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Compares two keys of the given type
+     **/
+    static int compareKeys(int keytype, Object k1, Object k2) {
+        if (keytype == Attribute.INT) {
+            return Integer.compare((Integer) k1, (Integer) k2);
+        } else if (keytype == Attribute.REAL) {
+            return Float.compare((Float) k1, (Float) k2);
+        } else {
+            return ((String) k1).compareTo((String) k2);
+        }
+    }
+
+    // decodes the key stored at pos
+    private Object keyAt(ByteBuffer buf, int pos) {
+        if (keytype == Attribute.INT) {
+            return buf.getInt(pos);
+        } else if (keytype == Attribute.REAL) {
+            return buf.getFloat(pos);
+        }
+        int length = buf.getShort(pos) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = buf.get(pos + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // compares the key stored at pos with the given key, without decoding numeric keys
+    private int compareAt(ByteBuffer buf, int pos, Object key) {
+        if (keytype == Attribute.INT) {
+            return Integer.compare(buf.getInt(pos), (Integer) key);
+        } else if (keytype == Attribute.REAL) {
+            return Float.compare(buf.getFloat(pos), (Float) key);
+        }
+        return ((String) keyAt(buf, pos)).compareTo((String) key);
+    }
+
+    private static void putKey(ByteBuffer buf, int pos, int keytype, Object key) {
+        if (keytype == Attribute.INT) {
+            buf.putInt(pos, (Integer) key);
+        } else if (keytype == Attribute.REAL) {
+            buf.putFloat(pos, (Float) key);
+        } else {
+            byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+            buf.putShort(pos, (short) bytes.length);
+            for (int i = 0; i < bytes.length; ++i) {
+                buf.put(pos + 2 + i, bytes[i]);
+            }
+        }
+    }
+
+    /**
+     * Cursor - position in the leaves of the tree. The current leaf stays pinned
+     * * in the buffer pool until the cursor moves to another leaf or is closed.
+     **/
+    public class Cursor {
+
+        int leaf = -1;      // Page of the current leaf, -1 if none is pinned
+        ByteBuffer buf;     // Content of the current leaf
+        int count;          // Number of entries in the current leaf
+        int pos;            // Current entry in the leaf
+
+        /**
+         * Moves to the first entry whose key is not smaller than the given key,
+         * * or to the first entry of the index if the key is null
+         **/
+        public void seek(Object key) {
+            close();
+            int page = root;
+            for (int level = 1; level < height; ++level) {
+                ByteBuffer node = pin(filename, page);
+                /** The first matching entry is under the child after the keys smaller than the key **/
+                int child = childAt(node, lowerBound(node, node.getInt(4), CHILD_SIZE, key));
+                pool.unpin(filename, page, false);
+                page = child;
+            }
+            load(page);
+            pos = lowerBound(buf, count, RID_SIZE, key);
+            skipEmpty();
+        }
+
+        // pins the leaf in place of the current one
+        private void load(int page) {
+            close();
+            leaf = page;
+            buf = pin(filename, page);
+            count = buf.getInt(4);
+            pos = 0;
+        }
+
+        // moves on to the next leaves while the cursor is past the end of the current one
+        private void skipEmpty() {
+            while (leaf != -1 && pos >= count) {
+                int next = buf.getInt(8);
+                if (next < 0) {
+                    close();
+                } else {
+                    load(next);
+                }
+            }
+        }
+
+        private int entry(int i) {
+            return NODE_HEADER_SIZE + i * (keysize + RID_SIZE);
+        }
+
+        /** Whether the cursor is on an entry, false once it is past the last entry **/
+        public boolean isValid() {
+            return leaf != -1;
+        }
+
+        /** Compares the key of the current entry with the given key **/
+        public int compareKey(Object key) {
+            return compareAt(buf, entry(pos), key);
+        }
+
+        public Object getKey() {
+            return keyAt(buf, entry(pos));
+        }
+
+        /** Page of the current record in the table file **/
+        public int getPage() {
+            return buf.getInt(entry(pos) + keysize);
+        }
+
+        /** Slot of the current record in its page **/
+        public int getSlot() {
+            return buf.getInt(entry(pos) + keysize + 4);
+        }
+
+        /** Moves to the next entry **/
+        public void advance() {
+            pos++;
+            skipEmpty();
+        }
+
+        /** Releases the current leaf, the cursor is no longer valid **/
+        public void close() {
+            if (leaf != -1) {
+                pool.unpin(filename, leaf, false);
+                leaf = -1;
+                buf = null;
+            }
+        }
+    }
+
+    /**
+     * Builds the index on the given column of the table from the records of the table file:
+     * * the entries are sorted in memory and written leaf by leaf, then each level
+     * * of internal nodes is built from the first keys of the level below.
+     **/
+    public static void build(String tabname, Schema schema, int column) throws IOException {
+        String tblfile = tabname + ".tbl";
+        String filename = fileName(tabname, schema.getAttribute(column).getColName());
+        int keytype = schema.typeOf(column);
+
+        /** Read the key and the position of every record **/
+        ArrayList<Object> keys = new ArrayList<>();
+        ArrayList<Long> rids = new ArrayList<>();
+        TupleReader in = new TupleReader(tblfile, 1, schema);
+        /** The keys of a column stored as codes are the strings **/
+        in.setDictionaries(Dictionary.decoders(Dictionary.codedSchema(tabname, schema, schema.getAttList())));
+        if (!in.open()) {
+            throw new IOException(tblfile + " is not in slotted page format, convert it with ConvertTblFormat");
+        }
+        int pagesize = in.getPageSize();
+        Batch batch;
+        while ((batch = in.nextBatch()) != null) {
+            /** Empty pages are skipped but counted, so the page number is the number of pages read **/
+            long page = in.getNumBatch() - 1;
+            for (int slot = 0; slot < batch.size(); ++slot) {
+                /** A null key never satisfies a condition, so it is left out of the index **/
+                if (batch.get(slot).dataAt(column) == null) continue;
+                keys.add(batch.get(slot).dataAt(column));
+                rids.add((page << 32) | slot);
+            }
+        }
+
+        /** The sort is stable, so equal keys stay in the order of the records **/
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> compareKeys(keytype, keys.get(i1), keys.get(i2)));
+
+        int keysize = 4;
+        if (keytype == Attribute.STRING) {
+            keysize = 2;
+            for (Object key : keys) {
+                keysize = Math.max(keysize, 2 + ((String) key).getBytes(StandardCharsets.UTF_8).length);
+            }
+        }
+        int leafcapacity = (pagesize - NODE_HEADER_SIZE) / (keysize + RID_SIZE);
+        int nodecapacity = (pagesize - NODE_HEADER_SIZE) / (keysize + CHILD_SIZE) + 1;
+        if (leafcapacity < 1 || nodecapacity < 2) {
+            throw new IOException("pages of " + pagesize + " bytes are too small for keys of " + keysize + " bytes");
+        }
+
+        new File(filename).delete();
+        try (RandomAccessFile out = new RandomAccessFile(filename, "rw")) {
+            out.writeInt(SlottedPage.MAGIC);
+            out.writeInt(pagesize);
+            ByteBuffer page = ByteBuffer.allocate(pagesize);
+            int nextpage = 1;
+
+            /** Leaves, the first keys and page numbers are kept to build the level above **/
+            ArrayList<Object> firstkeys = new ArrayList<>();
+            ArrayList<Integer> pages = new ArrayList<>();
+            long numkeys = 0;
+            int numleaves = Math.max(1, (order.length + leafcapacity - 1) / leafcapacity);
+            for (int l = 0; l < numleaves; ++l) {
+                int start = l * leafcapacity;
+                int end = Math.min(order.length, start + leafcapacity);
+                Arrays.fill(page.array(), (byte) 0);
+                page.putInt(0, LEAF);
+                page.putInt(4, end - start);
+                page.putInt(8, l == numleaves - 1 ? -1 : nextpage + 1);
+                for (int i = start; i < end; ++i) {
+                    int pos = NODE_HEADER_SIZE + (i - start) * (keysize + RID_SIZE);
+                    Object key = keys.get(order[i]);
+                    long rid = rids.get(order[i]);
+                    putKey(page, pos, keytype, key);
+                    page.putInt(pos + keysize, (int) (rid >>> 32));
+                    page.putInt(pos + keysize + 4, (int) rid);
+                    if (i == 0 || compareKeys(keytype, keys.get(order[i - 1]), key) != 0) {
+                        numkeys++;
+                    }
+                }
+                firstkeys.add(start < end ? keys.get(order[start]) : null);
+                pages.add(nextpage);
+                writePage(out, nextpage++, page);
+            }
+
+            /** Internal levels, until a single node is left **/
+            int height = 1;
+            while (pages.size() > 1) {
+                ArrayList<Object> upperkeys = new ArrayList<>();
+                ArrayList<Integer> upperpages = new ArrayList<>();
+                for (int start = 0; start < pages.size(); start += nodecapacity) {
+                    int end = Math.min(pages.size(), start + nodecapacity);
+                    Arrays.fill(page.array(), (byte) 0);
+                    page.putInt(0, INTERNAL);
+                    page.putInt(4, end - start - 1);
+                    page.putInt(8, pages.get(start));
+                    for (int i = start + 1; i < end; ++i) {
+                        int pos = NODE_HEADER_SIZE + (i - start - 1) * (keysize + CHILD_SIZE);
+                        putKey(page, pos, keytype, firstkeys.get(i));
+                        page.putInt(pos + keysize, pages.get(i));
+                    }
+                    upperkeys.add(firstkeys.get(start));
+                    upperpages.add(nextpage);
+                    writePage(out, nextpage++, page);
+                }
+                firstkeys = upperkeys;
+                pages = upperpages;
+                height++;
+            }
+
+            /** Meta page **/
+            Arrays.fill(page.array(), (byte) 0);
+            page.putInt(0, META_MAGIC);
+            page.putInt(4, column);
+            page.putInt(8, keytype);
+            page.putInt(12, keysize);
+            page.putInt(16, pages.get(0));
+            page.putInt(20, height);
+            page.putInt(24, numleaves);
+            page.putLong(28, order.length);
+            page.putLong(36, numkeys);
+            page.putLong(44, new File(tblfile).length());
+            writePage(out, 0, page);
+        }
+    }
+
+    private static void writePage(RandomAccessFile out, int pageno, ByteBuffer page) throws IOException {
+        out.seek(SlottedPage.FILE_HEADER_SIZE + (long) pageno * page.capacity());
+        out.write(page.array());
+    }
+}
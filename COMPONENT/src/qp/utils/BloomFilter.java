@@ -0,0 +1,93 @@
+/**
+ * Bloom filter over key hashes
+ **/
+
+package qp.utils;
+
+/**
+ * BloomFilter - approximate set of key hashes, built by a hash join from its build input.
+ * * mightContain never answers false for a hash that was added, so probe tuples it rejects
+ * * cannot have a match and are dropped before they are written to a partition.
+ * * Once built, the filter is only read and may be shared by the workers of an Exchange.
+ * *
+ * * The k probe positions are derived from the key hash by double hashing.
+ * * With 10 bits per key and 7 positions about 1% of the keys that were not added pass.
+ **/
+public class BloomFilter {
+
+    static final int BITS_PER_KEY = 10;
+    static final int NUM_HASHES = 7;
+    static final int MIN_BITS = 1 << 10;
+    static final int MAX_BITS = 1 << 26;
+
+    long[] bits;        // The bit array, a power of two bits long
+    int mask;           // Number of bits - 1
+    long numkeys;       // Number of hashes added
+
+    /**
+     * Filter sized for the expected number of keys
+     **/
+    public BloomFilter(long expected) {
+        long wanted = Math.max(MIN_BITS, Math.min(MAX_BITS, expected * BITS_PER_KEY));
+        int numbits = Integer.highestOneBit((int) wanted);
+        if (numbits < wanted) numbits <<= 1;
+        bits = new long[numbits >>> 6];
+        mask = numbits - 1;
+    }
+
+    public void add(int hash) {
+        int h2 = secondHash(hash);
+        int h = hash;
+        for (int i = 0; i < NUM_HASHES; ++i) {
+            int pos = h & mask;
+            bits[pos >>> 6] |= 1L << pos;
+            h += h2;
+        }
+        numkeys++;
+    }
+
+    public boolean mightContain(int hash) {
+        int h2 = secondHash(hash);
+        int h = hash;
+        for (int i = 0; i < NUM_HASHES; ++i) {
+            int pos = h & mask;
+            if ((bits[pos >>> 6] & (1L << pos)) == 0) {
+                return false;
+            }
+            h += h2;
+        }
+        return true;
+    }
+
+    /**
+     * Removes from the selection vector of the batch the rows whose key
+     * * (columns at the given indices, hashed with Tuple.hashOf and the seed) is not in the filter
+     **/
+    public void filter(ColumnBatch batch, int[] index, int seed) {
+        int[] sel = batch.sel;
+        int count = 0;
+        for (int k = 0; k < batch.selsize; ++k) {
+            int row = sel[k];
+            if (mightContain(batch.hashOf(row, index, seed))) sel[count++] = row;
+        }
+        batch.selsize = count;
+    }
+
+    /**
+     * Whether enough bits are still clear for the filter to reject most absent keys,
+     * * false once more keys than expected have been added (less than 4 bits per key)
+     **/
+    public boolean isSelective() {
+        return numkeys * 4 <= (long) mask + 1;
+    }
+
+    public long getNumKeys() {
+        return numkeys;
+    }
+
+    /** Odd step of the double hashing, taken from the high bits of the hash **/
+    private static int secondHash(int hash) {
+        return (Integer.rotateLeft(hash * 0x9E3779B9, 16)) | 1;
+    }
+
+}
@@ -0,0 +1,373 @@
+/**
+ * Page-granular buffer pool for slotted page files
+ **/
+
+package qp.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * BufferPool - caches the pages of slotted page files (see SlottedPage) in a fixed number of frames.
+ * * A page is identified by its file name and its page number in the file.
+ * * pin() returns the page in memory, reading it from the file on a miss, and keeps it
+ * * in its frame until the matching unpin(). Unpinned pages stay cached until the
+ * * replacement policy chooses their frame for another page.
+ * *
+ * * Pages appended with pinNew() are dirty: they are only written to the file when their
+ * * frame is evicted or the file is flushed, and temporary files deleted through delete()
+ * * that fit into the pool are never written at all.
+ * *
+ * * In a compressed file (see PageCodec) the pages are decompressed when they are read, and a
+ * * page written back is compressed and appended at the end of the pages of the file.
+ **/
+public class BufferPool {
+
+    public static final int DEFAULT_NUM_FRAMES = 1024;
+
+    /** Page currently held by a frame **/
+    static class Frame {
+        String filename;   // File of the page, null if the frame is free
+        int pageno;        // Page number within the file
+        long key;          // Key of the page in the page table, see key()
+        ByteBuffer data;   // Content of the page
+        boolean dirty;     // Whether the page differs from the file
+    }
+
+    /**
+     * Frame of each cached page, an open addressing table on the keys of the pages
+     * * so that looking up a page does not create any object
+     **/
+    static class PageTable {
+        static final long EMPTY = -1L;  // Key of a free slot, keys are never negative
+
+        final long[] keys;      // Key of the page in each slot
+        final int[] values;     // Frame of the page in each slot
+        final int mask;         // Number of slots - 1, the number of slots is a power of two
+
+        PageTable(int capacity) {
+            int numslots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+            keys = new long[numslots];
+            values = new int[numslots];
+            mask = numslots - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        private int home(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        /** Frame of the page, -1 if it is not cached **/
+        int get(long key) {
+            for (int i = home(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+            }
+            return -1;
+        }
+
+        void put(long key, int frame) {
+            int i = home(key);
+            while (keys[i] != EMPTY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = frame;
+        }
+
+        /** Removes the page, the entries after it in its probe sequence are moved back into the gap **/
+        void remove(long key) {
+            int gap = home(key);
+            while (keys[gap] != key) {
+                if (keys[gap] == EMPTY) return;
+                gap = (gap + 1) & mask;
+            }
+            for (int i = (gap + 1) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+                int h = home(keys[i]);
+                boolean stays = gap < i ? (h > gap && h <= i) : (h > gap || h <= i);
+                if (!stays) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    gap = i;
+                }
+            }
+            keys[gap] = EMPTY;
+        }
+    }
+
+    /** Open file known to the pool **/
+    static class FileEntry {
+        int id;                 // Number of the file in the pool, part of the keys of its pages
+        RandomAccessFile file;  // File handle used to read and write pages
+        int pagesize;           // Number of bytes per page
+        int numpages;           // Number of pages, including those not written to the file yet
+        long[] offsets;         // Position of each page of a compressed file, null if not compressed
+        long end;               // End of the pages written to a compressed file
+    }
+
+    final Frame[] frames;                          // The frames of the pool
+    final int[] pincount;                          // Pin count of each frame
+    final ReplacementPolicy policy;                // Chooses the frame to evict
+    final HashMap<String, FileEntry> files;        // Files opened by the pool
+    final PageTable pagetable;                     // Frame of each cached page, see key()
+    final ArrayDeque<Integer> freeframes;          // Frames that hold no page
+    final PageCodec codec = new PageCodec();       // Compresses the pages of the compressed files
+
+    long numhits = 0;      // Number of pins served from memory
+    long nummisses = 0;    // Number of pins that read the file
+    long numwrites = 0;    // Number of dirty pages written back
+    int nextid = 0;        // Number of the next file opened by the pool
+
+    public BufferPool(int numframes, ReplacementPolicy policy) {
+        frames = new Frame[numframes];
+        pincount = new int[numframes];
+        this.policy = policy;
+        policy.init(numframes);
+        files = new HashMap<>();
+        pagetable = new PageTable(numframes);
+        freeframes = new ArrayDeque<>(numframes);
+        for (int i = 0; i < numframes; ++i) {
+            frames[i] = new Frame();
+            freeframes.add(i);
+        }
+    }
+
+    private static long key(FileEntry entry, int pageno) {
+        return ((long) entry.id << 32) | pageno;
+    }
+
+    public int getNumFrames() {
+        return frames.length;
+    }
+
+    public ReplacementPolicy getPolicy() {
+        return policy;
+    }
+
+    public synchronized long getNumHits() {
+        return numhits;
+    }
+
+    public synchronized long getNumMisses() {
+        return nummisses;
+    }
+
+    public synchronized long getNumWrites() {
+        return numwrites;
+    }
+
+    /** Number of bytes per page of the file **/
+    public synchronized int getPageSize(String filename) throws IOException {
+        return entry(filename).pagesize;
+    }
+
+    /** Number of pages of the file, including the pages not written back yet **/
+    public synchronized int getNumPages(String filename) throws IOException {
+        return entry(filename).numpages;
+    }
+
+    /** Opens the file on its first use and reads its header **/
+    private FileEntry entry(String filename) throws IOException {
+        FileEntry entry = files.get(filename);
+        if (entry != null) return entry;
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        int magic = file.length() < SlottedPage.FILE_HEADER_SIZE ? 0 : file.readInt();
+        if (magic != SlottedPage.MAGIC && magic != PageCodec.MAGIC) {
+            file.close();
+            throw new IOException(filename + " is not a slotted page file");
+        }
+        entry = new FileEntry();
+        entry.id = nextid++;
+        entry.file = file;
+        entry.pagesize = file.readInt();
+        if (magic == PageCodec.MAGIC) {
+            try {
+                entry.offsets = PageCodec.readDirectory(file);
+            } catch (IOException io) {
+                file.close();
+                throw new IOException(filename + ": " + io.getMessage());
+            }
+            entry.numpages = entry.offsets.length;
+            entry.end = PageCodec.endOfPages(file.length(), entry.numpages);
+        } else {
+            entry.numpages = (int) ((file.length() - SlottedPage.FILE_HEADER_SIZE) / entry.pagesize);
+        }
+        files.put(filename, entry);
+        return entry;
+    }
+
+    /**
+     * Creates (or truncates) a file of pages of the given size to be filled with pinNew()
+     * * Pages of a previous file with the same name are dropped from the pool
+     **/
+    public synchronized void create(String filename, int pagesize, boolean compressed) throws IOException {
+        drop(filename);
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        file.setLength(0);
+        file.writeInt(compressed ? PageCodec.MAGIC : SlottedPage.MAGIC);
+        file.writeInt(pagesize);
+        FileEntry entry = new FileEntry();
+        entry.id = nextid++;
+        entry.file = file;
+        entry.pagesize = pagesize;
+        entry.numpages = 0;
+        if (compressed) {
+            entry.offsets = new long[16];
+            entry.end = SlottedPage.FILE_HEADER_SIZE;
+        }
+        files.put(filename, entry);
+    }
+
+    /**
+     * Pins the page and returns its content, the buffer must not be used after unpin()
+     **/
+    public synchronized ByteBuffer pin(String filename, int pageno) throws IOException {
+        FileEntry entry = entry(filename);
+        int cached = pagetable.get(key(entry, pageno));
+        if (cached >= 0) {
+            numhits++;
+            pincount[cached]++;
+            policy.accessed(cached);
+            return frames[cached].data;
+        }
+        if (pageno < 0 || pageno >= entry.numpages) {
+            throw new IOException(filename + ": no page " + pageno);
+        }
+        int f = allocate(entry, filename, pageno);
+        if (entry.offsets != null) {
+            entry.file.seek(entry.offsets[pageno]);
+            codec.readFrame(entry.file, frames[f].data.array());
+        } else {
+            entry.file.seek(SlottedPage.FILE_HEADER_SIZE + (long) pageno * entry.pagesize);
+            entry.file.readFully(frames[f].data.array(), 0, entry.pagesize);
+        }
+        nummisses++;
+        return frames[f].data;
+    }
+
+    /**
+     * Appends a new page at the end of a file created with create() and pins it
+     * * The page is dirty and its page number is the previous number of pages of the file
+     **/
+    public synchronized ByteBuffer pinNew(String filename) throws IOException {
+        FileEntry entry = files.get(filename);
+        if (entry == null) {
+            throw new IOException(filename + " was not created through the buffer pool");
+        }
+        int f = allocate(entry, filename, entry.numpages);
+        entry.numpages++;
+        if (entry.offsets != null && entry.numpages > entry.offsets.length) {
+            entry.offsets = Arrays.copyOf(entry.offsets, 2 * entry.offsets.length);
+        }
+        frames[f].dirty = true;
+        return frames[f].data;
+    }
+
+    /** Releases a pin on the page, dirty marks a page that has been modified **/
+    public synchronized void unpin(String filename, int pageno, boolean dirty) {
+        FileEntry entry = files.get(filename);
+        int f = entry == null ? -1 : pagetable.get(key(entry, pageno));
+        if (f < 0 || pincount[f] == 0) {
+            System.err.println("BufferPool: unpin of page " + pageno + " of " + filename + " that is not pinned");
+            return;
+        }
+        pincount[f]--;
+        frames[f].dirty |= dirty;
+    }
+
+    /** Writes the dirty pages of the file back to the file, and the positions of the pages of a compressed file **/
+    public synchronized void flush(String filename) throws IOException {
+        for (Frame frame : frames) {
+            if (frame.dirty && filename.equals(frame.filename)) {
+                writeBack(frame);
+            }
+        }
+        FileEntry entry = files.get(filename);
+        if (entry != null && entry.offsets != null) {
+            entry.file.seek(entry.end);
+            PageCodec.writeDirectory(entry.file, entry.offsets, entry.numpages);
+            entry.file.setLength(entry.file.getFilePointer());
+        }
+    }
+
+    /** Drops the pages of a temporary file without writing them and deletes the file **/
+    public synchronized void delete(String filename) {
+        drop(filename);
+        new File(filename).delete();
+    }
+
+    /** Finds a frame for the page, evicting a page if no frame is free, and pins it **/
+    private int allocate(FileEntry entry, String filename, int pageno) throws IOException {
+        int f;
+        if (!freeframes.isEmpty()) {
+            f = freeframes.poll();
+        } else {
+            f = policy.victim(pincount);
+            if (f < 0) {
+                throw new IOException("all " + frames.length + " frames of the buffer pool are pinned");
+            }
+            Frame old = frames[f];
+            if (old.dirty) {
+                writeBack(old);
+            }
+            pagetable.remove(old.key);
+            policy.removed(f);
+        }
+        Frame frame = frames[f];
+        if (frame.data == null || frame.data.capacity() != entry.pagesize) {
+            frame.data = ByteBuffer.allocate(entry.pagesize);
+        }
+        frame.filename = filename;
+        frame.pageno = pageno;
+        frame.key = key(entry, pageno);
+        frame.dirty = false;
+        pincount[f] = 1;
+        pagetable.put(frame.key, f);
+        policy.accessed(f);
+        return f;
+    }
+
+    private void writeBack(Frame frame) throws IOException {
+        FileEntry entry = files.get(frame.filename);
+        if (entry.offsets != null) {
+            entry.file.seek(entry.end);
+            entry.offsets[frame.pageno] = entry.end;
+            entry.end += codec.writeFrame(entry.file, frame.data.array(), entry.pagesize);
+        } else {
+            entry.file.seek(SlottedPage.FILE_HEADER_SIZE + (long) frame.pageno * entry.pagesize);
+            entry.file.write(frame.data.array(), 0, entry.pagesize);
+        }
+        frame.dirty = false;
+        numwrites++;
+    }
+
+    /** Removes the pages of the file from the pool and closes the file **/
+    private void drop(String filename) {
+        for (int f = 0; f < frames.length; ++f) {
+            Frame frame = frames[f];
+            if (filename.equals(frame.filename)) {
+                if (pincount[f] > 0) {
+                    System.err.println("BufferPool: dropping pinned page " + frame.pageno + " of " + filename);
+                }
+                pagetable.remove(frame.key);
+                frame.filename = null;
+                frame.dirty = false;
+                pincount[f] = 0;
+                policy.removed(f);
+                freeframes.add(f);
+            }
+        }
+        FileEntry entry = files.remove(filename);
+        if (entry != null) {
+            try {
+                entry.file.close();
+            } catch (IOException io) {
+                System.err.println("BufferPool: error closing " + filename);
+            }
+        }
+    }
+}
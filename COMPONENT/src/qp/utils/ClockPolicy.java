@@ -0,0 +1,44 @@
+/**
+ * CLOCK page replacement
+ **/
+
+package qp.utils;
+
+/**
+ * ClockPolicy - second chance replacement.
+ * * Every access sets the reference bit of the frame. The clock hand skips pinned frames,
+ * * clears the reference bit of the frames it passes and evicts the first unreferenced frame.
+ **/
+public class ClockPolicy implements ReplacementPolicy {
+
+    boolean[] referenced;  // Reference bit of each frame
+    int hand;              // Next frame to inspect
+
+    public void init(int numframes) {
+        referenced = new boolean[numframes];
+        hand = 0;
+    }
+
+    public void accessed(int frame) {
+        referenced[frame] = true;
+    }
+
+    public void removed(int frame) {
+        referenced[frame] = false;
+    }
+
+    public int victim(int[] pincount) {
+        /** Two rounds are enough: the first one clears all the reference bits **/
+        for (int i = 0; i < 2 * referenced.length; ++i) {
+            int frame = hand;
+            hand = (hand + 1) % referenced.length;
+            if (pincount[frame] > 0) continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
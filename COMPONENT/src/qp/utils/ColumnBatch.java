@@ -0,0 +1,223 @@
+/**
+ * Column-major page of tuples with a selection vector
+ **/
+
+package qp.utils;
+
+import java.util.ArrayList;
+
+/**
+ * ColumnBatch keeps one primitive vector per attribute instead of one Tuple per record.
+ * * INT values and the bits of REAL values are kept in int vectors and STRING values in String vectors.
+ * * The selection vector lists the rows of the vectors that are still part of the batch,
+ * * so a filter only rewrites the selection vector and never copies the values.
+ * *
+ * * Operators that are not vectorized use the row API inherited from Batch.
+ * * The first call to the row API materializes the selected rows as tuples,
+ * * after which the batch behaves exactly like a row Batch.
+ **/
+public class ColumnBatch extends Batch {
+
+    private static final long serialVersionUID = -6830200693903104409L;
+
+    int[] types;            // Layout of the rows, see Tuple
+    int[][] values;         // Vector of each INT or REAL column, null for STRING columns
+    String[][] strings;     // Vector of each STRING column, null for the other columns
+    int numrows;            // Number of rows stored in the vectors
+    int[] sel;              // Selection vector: rows of the vectors that are in the batch
+    int selsize;            // Number of selected rows
+    boolean materialized;   // Whether the rows have been converted to tuples
+
+    /** Creates an empty batch for numtuple rows with the given layout **/
+    public ColumnBatch(int numtuple, int[] types) {
+        super(numtuple);
+        this.types = types;
+        values = new int[types.length][];
+        strings = new String[types.length][];
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == Attribute.STRING) {
+                strings[i] = new String[numtuple];
+            } else {
+                values[i] = new int[numtuple];
+            }
+        }
+        sel = new int[numtuple];
+    }
+
+    private ColumnBatch(int numtuple, int[] types, int[][] values, String[][] strings) {
+        super(numtuple);
+        this.types = types;
+        this.values = values;
+        this.strings = strings;
+    }
+
+    /** Whether the rows have been converted to tuples, the vectors must not be used afterwards **/
+    public boolean isMaterialized() {
+        return materialized;
+    }
+
+    public int[] getLayout() {
+        return types;
+    }
+
+    /** Vector of an INT column, or the bits of a REAL column **/
+    public int[] getValues(int col) {
+        return values[col];
+    }
+
+    /** Vector of a STRING column **/
+    public String[] getStrings(int col) {
+        return strings[col];
+    }
+
+    public int[] getSelection() {
+        return sel;
+    }
+
+    /** Keeps only the first n rows of the selection vector **/
+    public void setSelectionSize(int n) {
+        selsize = n;
+    }
+
+    /** Same hash as Tuple.hashOf for the given row of the vectors **/
+    public int hashOf(int row, int[] index, int seed) {
+        int h = seed;
+        for (int i : index) {
+            int value;
+            if (types[i] == Attribute.STRING) {
+                value = strings[i][row] == null ? 0 : strings[i][row].hashCode();
+            } else {
+                value = values[i][row];
+            }
+            h = Tuple.combineHash(h, value);
+        }
+        return Tuple.finishHash(h);
+    }
+
+    /**
+     * Appends a row at the end of the vectors and selects it
+     * * The caller sets the values of the row with setInt/setFloat/setString
+     **/
+    public int appendRow() {
+        sel[selsize++] = numrows;
+        return numrows++;
+    }
+
+    public void setInt(int row, int col, int value) {
+        values[col][row] = value;
+    }
+
+    public void setFloat(int row, int col, float value) {
+        values[col][row] = Float.floatToIntBits(value);
+    }
+
+    public void setString(int row, int col, String value) {
+        strings[col][row] = value;
+    }
+
+    /**
+     * Projects the columns at the given indices
+     * * The vectors and the selection vector are shared with this batch, no value is copied
+     **/
+    public ColumnBatch project(int[] index, int[] layout) {
+        if (materialized) {
+            throw new IllegalStateException("ColumnBatch: projecting a materialized batch");
+        }
+        int[][] newvalues = new int[index.length][];
+        String[][] newstrings = new String[index.length][];
+        for (int i = 0; i < index.length; ++i) {
+            newvalues[i] = values[index[i]];
+            newstrings[i] = strings[index[i]];
+        }
+        ColumnBatch projected = new ColumnBatch(MAX_SIZE, layout, newvalues, newstrings);
+        projected.numrows = numrows;
+        projected.sel = sel;
+        projected.selsize = selsize;
+        return projected;
+    }
+
+    /** Converts the selected rows to tuples, the row API of Batch works on those tuples **/
+    private void materialize() {
+        if (materialized) return;
+        for (int k = 0; k < selsize; ++k) {
+            int row = sel[k];
+            Tuple t = new Tuple(types);
+            for (int col = 0; col < types.length; ++col) {
+                if (types[col] == Attribute.STRING) {
+                    t.strings[col] = strings[col][row];
+                } else {
+                    t.values[col] = values[col][row];
+                }
+            }
+            tuples.add(t);
+        }
+        materialized = true;
+        values = null;
+        strings = null;
+        sel = null;
+    }
+
+    /** Spill files store the selected rows as a row Batch **/
+    private Object writeReplace() {
+        materialize();
+        Batch batch = new Batch(MAX_SIZE);
+        batch.tuples = tuples;
+        return batch;
+    }
+
+    public void add(Tuple t) {
+        materialize();
+        super.add(t);
+    }
+
+    public void clear() {
+        if (!materialized) {
+            numrows = 0;
+            selsize = 0;
+        }
+        super.clear();
+    }
+
+    public boolean contains(Tuple t) {
+        materialize();
+        return super.contains(t);
+    }
+
+    public Tuple get(int i) {
+        materialize();
+        return super.get(i);
+    }
+
+    public int indexOf(Tuple t) {
+        materialize();
+        return super.indexOf(t);
+    }
+
+    public void add(Tuple t, int i) {
+        materialize();
+        super.add(t, i);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void remove(int i) {
+        materialize();
+        super.remove(i);
+    }
+
+    public void set(Tuple t, int i) {
+        materialize();
+        super.set(t, i);
+    }
+
+    public int size() {
+        return materialized ? super.size() : selsize;
+    }
+
+    public ArrayList<Tuple> getAllTuples() {
+        materialize();
+        return super.getAllTuples();
+    }
+}
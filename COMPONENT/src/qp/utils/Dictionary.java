@@ -0,0 +1,247 @@
+/**
+ * Dictionary of the values of a STRING column of a table
+ **/
+
+package qp.utils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Dictionary - the distinct values of a STRING column in sorted order. The table file stores
+ * * the position of the value in the dictionary (its code) as an INT instead of the string,
+ * * so codes compare in the same order as the strings. ConvertTxtToTbl writes the dictionaries
+ * * of all the STRING columns of a table to <tablename>.dict, together with the size of the
+ * * table file, and they are ignored once the table changes.
+ * * In a query a column keeps its codes and has the type INT, so selections, hashing and
+ * * sorting work on integers. Codes of two dictionaries cannot be compared, so a column
+ * * compared with another column is decoded by the scan and keeps the type STRING.
+ * * The result is decoded when it is printed.
+ **/
+public class Dictionary {
+
+    static final int MAGIC = 0x44494331;    // Marks a dictionary file ("DIC1")
+
+    static HashMap<String, HashMap<String, Dictionary>> opened = new HashMap<>();  // Dictionaries of the tables looked up so far
+
+    String[] values;    // Distinct values of the column in sorted order, the code of a value is its position
+
+    public Dictionary(String[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Name of the dictionary file of a table
+     **/
+    public static String fileName(String tabname) {
+        return tabname + ".dict";
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Code of the value, -1 if it is not in the dictionary
+     **/
+    public int code(String value) {
+        int pos = Arrays.binarySearch(values, value);
+        return pos < 0 ? -1 : pos;
+    }
+
+    public String decode(int code) {
+        return values[code];
+    }
+
+    /**
+     * Writes the dictionaries of the table file, one for each column of the schema that is not null
+     **/
+    public static void write(String tblfile, Schema schema, Dictionary[] dictionaries) throws IOException {
+        String tabname = tblfile.endsWith(".tbl") ? tblfile.substring(0, tblfile.length() - 4) : tblfile;
+        int count = 0;
+        for (Dictionary dictionary : dictionaries) {
+            if (dictionary != null) count++;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName(tabname))))) {
+            out.writeInt(MAGIC);
+            out.writeLong(new File(tblfile).length());
+            out.writeInt(count);
+            for (int i = 0; i < dictionaries.length; ++i) {
+                if (dictionaries[i] == null) continue;
+                out.writeUTF(schema.getAttribute(i).getColName());
+                out.writeInt(dictionaries[i].values.length);
+                for (String value : dictionaries[i].values) {
+                    out.writeUTF(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dictionary of the column of the table, null if the column is not encoded.
+     * * The dictionaries of a table are only read once.
+     **/
+    public static synchronized Dictionary lookup(String tabname, String colname) {
+        if (tabname == null) {
+            return null;
+        }
+        HashMap<String, Dictionary> columns = opened.get(tabname);
+        if (columns == null) {
+            columns = read(tabname);
+            opened.put(tabname, columns);
+        }
+        return columns.get(colname);
+    }
+
+    // reads the dictionaries of the table, none if there is no file or if it is out of date
+    private static HashMap<String, Dictionary> read(String tabname) {
+        HashMap<String, Dictionary> columns = new HashMap<>();
+        File file = new File(fileName(tabname));
+        if (!file.exists()) {
+            return columns;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != new File(tabname + ".tbl").length()) {
+                System.out.println("Dictionary: " + file.getName() + " is out of date and ignored");
+                return columns;
+            }
+            int count = in.readInt();
+            for (int c = 0; c < count; ++c) {
+                String colname = in.readUTF();
+                String[] values = new String[in.readInt()];
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = in.readUTF();
+                }
+                columns.put(colname, new Dictionary(values));
+            }
+        } catch (IOException io) {
+            System.out.println("Dictionary: error in reading " + file.getName());
+            System.exit(1);
+        }
+        return columns;
+    }
+
+    /**
+     * Whether the values of the attribute are codes of its dictionary
+     **/
+    public static boolean isCoded(Attribute attr) {
+        return attr.getType() == Attribute.INT && attr.getDictionary() != null;
+    }
+
+    /**
+     * Copy of the schema where the given columns hold codes, as INT of 4 bytes
+     **/
+    public static Schema withCodes(Schema schema, boolean[] coded) {
+        Schema newschema = (Schema) schema.clone();
+        int tuplesize = schema.getTupleSize();
+        for (int i = 0; i < coded.length; ++i) {
+            if (!coded[i]) continue;
+            Attribute attr = newschema.getAttribute(i);
+            tuplesize = tuplesize - attr.getAttrSize() + 4;
+            attr.setType(Attribute.INT);
+            attr.setAttrSize(4);
+        }
+        newschema.setTupleSize(tuplesize);
+        return newschema;
+    }
+
+    /**
+     * Schema of the table in a query: the dictionaries of the table are attached to the
+     * * columns, which hold codes except the decoded ones (compared with other columns)
+     **/
+    public static Schema codedSchema(String tabname, Schema schema, ArrayList<Attribute> decoded) {
+        Dictionary[] dictionaries = new Dictionary[schema.getNumCols()];
+        boolean[] coded = new boolean[schema.getNumCols()];
+        for (int i = 0; i < coded.length; ++i) {
+            Attribute attr = schema.getAttribute(i);
+            if (attr.getType() == Attribute.STRING) {
+                dictionaries[i] = lookup(tabname, attr.getColName());
+            }
+            coded[i] = dictionaries[i] != null;
+            for (Attribute other : decoded) {
+                if (other.equals(attr)) {
+                    coded[i] = false;
+                }
+            }
+        }
+        Schema newschema = withCodes(schema, coded);
+        for (int i = 0; i < coded.length; ++i) {
+            newschema.getAttribute(i).setDictionary(dictionaries[i]);
+        }
+        return newschema;
+    }
+
+    /**
+     * Schema of the records in the file of a table schema, every column with a dictionary holds codes
+     **/
+    public static Schema storedSchema(Schema schema) {
+        boolean[] coded = new boolean[schema.getNumCols()];
+        for (int i = 0; i < coded.length; ++i) {
+            coded[i] = schema.getAttribute(i).getDictionary() != null;
+        }
+        return withCodes(schema, coded);
+    }
+
+    /**
+     * Dictionary of each STRING column of a table schema that is stored as codes,
+     * * to decode the records read from the file. Null if there is none.
+     **/
+    public static Dictionary[] decoders(Schema schema) {
+        Dictionary[] dictionaries = new Dictionary[schema.getNumCols()];
+        boolean found = false;
+        for (int i = 0; i < dictionaries.length; ++i) {
+            Attribute attr = schema.getAttribute(i);
+            if (attr.getType() == Attribute.STRING && attr.getDictionary() != null) {
+                dictionaries[i] = attr.getDictionary();
+                found = true;
+            }
+        }
+        return found ? dictionaries : null;
+    }
+
+    /**
+     * Dictionary of each column of the schema whose values are codes, to print them
+     **/
+    public static Dictionary[] codedColumns(Schema schema) {
+        Dictionary[] dictionaries = new Dictionary[schema.getNumCols()];
+        for (int i = 0; i < dictionaries.length; ++i) {
+            Attribute attr = schema.getAttribute(i);
+            int aggtype = attr.getAggType();
+            if ((aggtype == Attribute.NONE || aggtype == Attribute.MAX || aggtype == Attribute.MIN) && isCoded(attr)) {
+                dictionaries[i] = attr.getDictionary();
+            }
+        }
+        return dictionaries;
+    }
+
+    /**
+     * Condition on the codes equivalent to a condition comparing a coded column
+     * * of the schema with a string. Any other condition is returned as it is.
+     **/
+    public static Condition codeCondition(Condition con, Schema schema) {
+        int index = schema.indexOf(con.getLhs());
+        if (index < 0 || !(con.getRhs() instanceof String) || !isCoded(schema.getAttribute(index))) {
+            return con;
+        }
+        Dictionary dictionary = schema.getAttribute(index).getDictionary();
+        String value = (String) con.getRhs();
+        int pos = Arrays.binarySearch(dictionary.values, value);
+        boolean found = pos >= 0;
+        int code = found ? pos : -pos - 1;      // Code of the value, or of the first value above it
+        int exprtype = con.getExprType();
+        if (!found) {
+            if (exprtype == Condition.LTOE) {
+                exprtype = Condition.LESSTHAN;
+            } else if (exprtype == Condition.GREATERTHAN) {
+                exprtype = Condition.GTOE;
+            } else if (exprtype == Condition.EQUAL || exprtype == Condition.NOTEQUAL) {
+                code = -1;
+            }
+        }
+        Condition coded = new Condition(con.getLhs(), exprtype, String.valueOf(code));
+        coded.setOpType(con.getOpType());
+        return coded;
+    }
+}
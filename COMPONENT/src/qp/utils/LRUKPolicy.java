@@ -0,0 +1,64 @@
+/**
+ * LRU-K page replacement
+ **/
+
+package qp.utils;
+
+import java.util.Arrays;
+
+/**
+ * LRUKPolicy - evicts the frame whose K-th most recent access is the oldest.
+ * * Frames accessed fewer than K times are evicted first, by least recent access,
+ * * so a single sequential scan does not push out pages that are used repeatedly,
+ * * such as the inner table of a nested loop join.
+ **/
+public class LRUKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    final int k;         // Number of accesses remembered per frame
+    long[][] history;    // Times of the last k accesses of each frame, most recent first (0 if none)
+    long time;           // Logical clock, incremented at each access
+
+    public LRUKPolicy() {
+        this(DEFAULT_K);
+    }
+
+    public LRUKPolicy(int k) {
+        this.k = k;
+    }
+
+    public void init(int numframes) {
+        history = new long[numframes][k];
+        time = 0;
+    }
+
+    public void accessed(int frame) {
+        long[] h = history[frame];
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = ++time;
+    }
+
+    public void removed(int frame) {
+        Arrays.fill(history[frame], 0);
+    }
+
+    public int victim(int[] pincount) {
+        int victim = -1;
+        for (int frame = 0; frame < history.length; ++frame) {
+            if (pincount[frame] > 0) continue;
+            if (victim == -1 || older(frame, victim)) {
+                victim = frame;
+            }
+        }
+        return victim;
+    }
+
+    /** Whether frame a has a larger backward K-distance than frame b **/
+    private boolean older(int a, int b) {
+        long ka = history[a][k - 1];
+        long kb = history[b][k - 1];
+        if (ka != kb) return ka < kb;
+        return history[a][0] < history[b][0];
+    }
+}
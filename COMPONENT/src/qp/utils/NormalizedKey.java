@@ -0,0 +1,147 @@
+/**
+ * Normalized sort keys
+ **/
+
+package qp.utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * NormalizedKey - encodes the sort attributes of a tuple into a long whose signed order is
+ * * the order of the sort, so most comparisons of a sort are a single Long.compare.
+ * *
+ * * The attributes are packed from the most significant bit: INT and REAL attributes take 32 bits
+ * * (sign bit flipped, negative REALs inverted), a STRING takes the remaining bits as 16-bit chars
+ * * padded with zeros and ends the key. For a descending sort the bits of every attribute are inverted.
+ * * Attributes that do not fit are left out. When every attribute fits exactly the key is exact:
+ * * equal keys mean equal attributes. Otherwise equal keys must be compared on the tuples,
+ * * but a smaller key always means a tuple that comes first (or is equal).
+ **/
+public class NormalizedKey {
+
+    static final int RADIX_BITS = 8;
+
+    int[] types;        // Types of the sort attributes
+    int[] index;        // Indices of the sort attributes in the tuples
+    boolean ascending;  // Whether the sort is ascending
+    boolean exact;      // Whether the key holds all the sort attributes exactly
+    int numbits;        // Number of high bits of the key that are used
+
+    public NormalizedKey(int[] layout, List<Integer> attrIndex, boolean ascending) {
+        this.ascending = ascending;
+        int bits = 0;
+        int n = 0;
+        exact = true;
+        for (int i : attrIndex) {
+            if (layout[i] == Attribute.STRING) {
+                if (64 - bits >= 16) {
+                    bits = 64;
+                    n++;
+                }
+                exact = false;
+                break;
+            }
+            if (64 - bits < 32) {
+                exact = false;
+                break;
+            }
+            bits += 32;
+            n++;
+        }
+        numbits = bits;
+        types = new int[n];
+        index = new int[n];
+        for (int k = 0; k < n; k++) {
+            index[k] = attrIndex.get(k);
+            types[k] = layout[index[k]];
+        }
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Key of the tuple, to be compared with Long.compare
+     **/
+    public long of(Tuple t) {
+        long key = 0;
+        int shift = 64;
+        for (int k = 0; k < index.length; k++) {
+            int i = index[k];
+            if (types[k] == Attribute.STRING) {
+                long chars = 0;
+                String s = t.strings[i];
+                int len = s == null ? 0 : s.length();
+                for (int c = 0; c < shift / 16; c++) {
+                    chars = (chars << 16) | (c < len ? s.charAt(c) : 0);
+                }
+                if (!ascending) chars = shift == 64 ? ~chars : ~chars & ((1L << shift) - 1);
+                key |= chars;
+                shift = 0;
+            } else {
+                int v = t.values[i];
+                if (types[k] == Attribute.REAL) {
+                    if (Float.isNaN(Float.intBitsToFloat(v))) v = 0x7fc00000;
+                    v = v < 0 ? ~v : v ^ Integer.MIN_VALUE;
+                } else {
+                    v ^= Integer.MIN_VALUE;
+                }
+                if (!ascending) v = ~v;
+                shift -= 32;
+                key |= (v & 0xffffffffL) << shift;
+            }
+        }
+        return key ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Sorts the first n tuples by their keys with a least significant digit radix sort
+     * * over the used bits of the keys (4 passes for a single INT attribute),
+     * * then sorts the tuples with equal keys with the comparator if the key is not exact.
+     **/
+    public void sort(long[] keys, Tuple[] tuples, int n, Comparator<Tuple> cmp) {
+        if (n < 2) return;
+        long[] tmpkeys = new long[n];
+        Tuple[] tmptuples = new Tuple[n];
+        int[] count = new int[1 << RADIX_BITS];
+        int passes = (numbits + RADIX_BITS - 1) / RADIX_BITS;
+        for (int p = 0; p < passes; p++) {
+            int shift = 64 - (passes - p) * RADIX_BITS;
+            Arrays.fill(count, 0);
+            for (int i = 0; i < n; i++) {
+                count[digit(keys[i], shift)]++;
+            }
+            if (count[digit(keys[0], shift)] == n) {
+                continue;   // all the keys have the same digit
+            }
+            for (int d = 0, sum = 0; d < count.length; d++) {
+                int c = count[d];
+                count[d] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                int pos = count[digit(keys[i], shift)]++;
+                tmpkeys[pos] = keys[i];
+                tmptuples[pos] = tuples[i];
+            }
+            System.arraycopy(tmpkeys, 0, keys, 0, n);
+            System.arraycopy(tmptuples, 0, tuples, 0, n);
+        }
+        if (!exact) {
+            for (int i = 0; i < n; ) {
+                int j = i + 1;
+                while (j < n && keys[j] == keys[i]) j++;
+                if (j - i > 1) Arrays.sort(tuples, i, j, cmp);
+                i = j;
+            }
+        }
+    }
+
+    private static int digit(long key, int shift) {
+        return (int) (((key ^ Long.MIN_VALUE) >>> shift) & ((1 << RADIX_BITS) - 1));
+    }
+
+}
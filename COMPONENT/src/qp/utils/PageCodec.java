@@ -0,0 +1,227 @@
+/**
+ * Compression of the pages of slotted page files
+ **/
+
+package qp.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PageCodec - deflates each page of a slotted page file on its own, so the free space in the
+ * * middle of the pages and the repeated values of the records are not written to the disk.
+ * * A compressed file starts with MAGIC and the page size, followed by one frame per page:
+ * * [length][bytes], where a length equal to the page size marks a page stored as it is
+ * * because it does not get smaller. The frames end with a length of -1, followed by the
+ * * position of each frame in the file, the number of pages and MAGIC again, so a page can
+ * * still be found from its page number (buffer pool, memory mapping, index fetches).
+ * * The readers recognize a compressed file from its MAGIC; when the codec is enabled,
+ * * the files written by TupleWriter, including the sorted runs of Sort and Distinct, are compressed.
+ * * A PageCodec holds a Deflater and an Inflater and must only be used by one thread at a time.
+ **/
+public class PageCodec {
+
+    public static final int MAGIC = 0x51505a31;     // Marks a file of compressed slotted pages ("QPZ1")
+    static final int END_OF_PAGES = -1;             // Length of the frame that follows the last page
+    static final int TRAILER_SIZE = 8;              // Number of pages followed by MAGIC, at the end of the file
+
+    static boolean enabled = false;                 // Whether the files written are compressed
+    static int level = Deflater.BEST_SPEED;         // Compression level of the Deflater
+
+    static AtomicLong numpages = new AtomicLong();      // Number of pages written through a codec
+    static AtomicLong rawbytes = new AtomicLong();      // Size of these pages
+    static AtomicLong storedbytes = new AtomicLong();   // Number of bytes written for them
+
+    Deflater deflater;      // Compresses the pages written, created on first use
+    Inflater inflater;      // Decompresses the pages read, created on first use
+    byte[] frame;           // Compressed content of the last page written or read
+
+    /**
+     * Compress the slotted page files written from now on
+     **/
+    public static void setEnabled(boolean flag) {
+        enabled = flag;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the compression level, from 1 (fastest) to 9 (smallest)
+     **/
+    public static void setLevel(int lvl) {
+        level = lvl;
+    }
+
+    public static long getNumPages() {
+        return numpages.get();
+    }
+
+    public static long getRawBytes() {
+        return rawbytes.get();
+    }
+
+    public static long getStoredBytes() {
+        return storedbytes.get();
+    }
+
+    /**
+     * Writes the frame of the page and returns the number of bytes written
+     **/
+    public int writeFrame(DataOutput out, byte[] page, int pagesize) throws IOException {
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        if (frame == null || frame.length < pagesize) {
+            frame = new byte[pagesize];
+        }
+        deflater.reset();
+        deflater.setInput(page, 0, pagesize);
+        deflater.finish();
+        int length = deflater.deflate(frame, 0, pagesize);
+        if (deflater.finished() && length < pagesize) {
+            out.writeInt(length);
+            out.write(frame, 0, length);
+        } else {
+            length = pagesize;
+            out.writeInt(pagesize);
+            out.write(page, 0, pagesize);
+        }
+        numpages.incrementAndGet();
+        rawbytes.addAndGet(pagesize);
+        storedbytes.addAndGet(4 + length);
+        return 4 + length;
+    }
+
+    /**
+     * Reads the next frame into the page, EOFException after the last page
+     **/
+    public void readFrame(DataInput in, byte[] page) throws IOException {
+        int length = in.readInt();
+        if (length == END_OF_PAGES) {
+            throw new EOFException();
+        }
+        if (length == page.length) {
+            in.readFully(page);
+            return;
+        }
+        if (frame == null || frame.length < length) {
+            frame = new byte[Math.max(length, page.length)];
+        }
+        in.readFully(frame, 0, length);
+        inflate(length, page);
+    }
+
+    /**
+     * Reads the frame at the position of the buffer into the page
+     **/
+    public void readFrame(ByteBuffer in, byte[] page) throws IOException {
+        int length = in.getInt();
+        if (length == END_OF_PAGES) {
+            throw new EOFException();
+        }
+        if (length == page.length) {
+            in.get(page);
+            return;
+        }
+        if (frame == null || frame.length < length) {
+            frame = new byte[Math.max(length, page.length)];
+        }
+        in.get(frame, 0, length);
+        inflate(length, page);
+    }
+
+    private void inflate(int length, byte[] page) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(frame, 0, length);
+        try {
+            if (inflater.inflate(page) != page.length) {
+                throw new IOException("compressed page is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed page is corrupted");
+        }
+    }
+
+    /**
+     * Skips the next frame, EOFException after the last page
+     **/
+    public static void skipFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == END_OF_PAGES || in.skipBytes(length) < length) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Writes the end of the frames and the position of each of the pages
+     **/
+    public static void writeDirectory(DataOutput out, long[] offsets, int numpages) throws IOException {
+        out.writeInt(END_OF_PAGES);
+        for (int p = 0; p < numpages; ++p) {
+            out.writeLong(offsets[p]);
+        }
+        out.writeInt(numpages);
+        out.writeInt(MAGIC);
+    }
+
+    /**
+     * Position of each page of a compressed file
+     **/
+    public static long[] readDirectory(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        file.seek(length - TRAILER_SIZE);
+        int count = file.readInt();
+        if (file.readInt() != MAGIC || count < 0 || length - TRAILER_SIZE - 8L * count < SlottedPage.FILE_HEADER_SIZE) {
+            throw new IOException("the compressed file is incomplete");
+        }
+        long[] offsets = new long[count];
+        file.seek(length - TRAILER_SIZE - 8L * count);
+        for (int p = 0; p < count; ++p) {
+            offsets[p] = file.readLong();
+        }
+        return offsets;
+    }
+
+    /**
+     * Position of each page of a compressed file mapped in memory
+     **/
+    public static long[] readDirectory(ByteBuffer file) throws IOException {
+        int length = file.capacity();
+        int count = file.getInt(length - TRAILER_SIZE);
+        if (file.getInt(length - 4) != MAGIC || count < 0 || length - TRAILER_SIZE - 8L * count < SlottedPage.FILE_HEADER_SIZE) {
+            throw new IOException("the compressed file is incomplete");
+        }
+        long[] offsets = new long[count];
+        int start = length - TRAILER_SIZE - 8 * count;
+        for (int p = 0; p < count; ++p) {
+            offsets[p] = file.getLong(start + 8 * p);
+        }
+        return offsets;
+    }
+
+    /**
+     * Position of the end of the frames of a compressed file with the given directory
+     **/
+    public static long endOfPages(long filelength, int numpages) {
+        return filelength - TRAILER_SIZE - 8L * numpages - 4;
+    }
+
+    /**
+     * Releases the Deflater and the Inflater
+     **/
+    public void end() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+        deflater = null;
+        inflater = null;
+    }
+}
@@ -0,0 +1,1013 @@
+/**
+ * Select condition compiled against a schema
+ **/
+
+package qp.utils;
+
+/**
+ * Predicate - a select condition with the column indices and the constant resolved once.
+ * * compile() picks a specialized predicate for the type of the attribute, whether
+ * * the right hand side is a constant or another attribute, and the comparison operator.
+ * * Each of these is its own final class with the comparison written inline, so testing
+ * * a tuple does not look up the schema, parse the constant or dispatch on the operator.
+ **/
+public abstract class Predicate {
+
+    /** Whether the tuple satisfies the condition **/
+    public abstract boolean test(Tuple t);
+
+    /**
+     * Keeps in the selection vector of the batch only the rows that satisfy the condition
+     * * The batch must not be materialized
+     **/
+    public abstract void filter(ColumnBatch batch);
+
+    /**
+     * Compiles a select condition for tuples of the given schema
+     * * Returns null if the condition is malformed
+     **/
+    public static Predicate compile(Condition con, Schema schema) {
+        /** A string constant compared with a column of codes is replaced by a code **/
+        con = Dictionary.codeCondition(con, schema);
+        Attribute attr = con.getLhs();
+        int index = schema.indexOf(attr);
+        int datatype = schema.typeOf(attr);
+        int exprtype = con.getExprType();
+        Object rhs = con.getRhs();
+        if (index < 0 || exprtype < Condition.LESSTHAN || exprtype > Condition.NOTEQUAL) {
+            return null;
+        }
+
+        if (rhs instanceof Attribute) {
+            int rindex = schema.indexOf((Attribute) rhs);
+            if (rindex < 0) return null;
+            if (datatype == Attribute.INT) {
+                return intColumns(exprtype, index, rindex);
+            } else if (datatype == Attribute.REAL) {
+                return realColumns(exprtype, index, rindex);
+            } else if (datatype == Attribute.STRING) {
+                return stringColumns(exprtype, index, rindex);
+            }
+        } else if (rhs instanceof String) {
+            try {
+                if (datatype == Attribute.INT) {
+                    return intConstant(exprtype, index, Integer.parseInt((String) rhs));
+                } else if (datatype == Attribute.REAL) {
+                    return realConstant(exprtype, index, Float.parseFloat((String) rhs));
+                } else if (datatype == Attribute.STRING) {
+                    return stringConstant(exprtype, index, (String) rhs);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Predicates built by compile(), one final class for each type and comparison operator
+     * * with the comparison written inline, so that a call site testing a single class
+     * * inlines the whole comparison
+     **/
+    static Predicate intConstant(int exprtype, int index, int constant) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return new IntLessThanConstant(index, constant);
+            case Condition.GREATERTHAN:
+                return new IntGreaterThanConstant(index, constant);
+            case Condition.LTOE:
+                return new IntLessOrEqualConstant(index, constant);
+            case Condition.GTOE:
+                return new IntGreaterOrEqualConstant(index, constant);
+            case Condition.EQUAL:
+                return new IntEqualConstant(index, constant);
+            default:
+                return new IntNotEqualConstant(index, constant);
+        }
+    }
+
+    static Predicate intColumns(int exprtype, int index, int rindex) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return new IntLessThanColumns(index, rindex);
+            case Condition.GREATERTHAN:
+                return new IntGreaterThanColumns(index, rindex);
+            case Condition.LTOE:
+                return new IntLessOrEqualColumns(index, rindex);
+            case Condition.GTOE:
+                return new IntGreaterOrEqualColumns(index, rindex);
+            case Condition.EQUAL:
+                return new IntEqualColumns(index, rindex);
+            default:
+                return new IntNotEqualColumns(index, rindex);
+        }
+    }
+
+    static Predicate realConstant(int exprtype, int index, float constant) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return new RealLessThanConstant(index, constant);
+            case Condition.GREATERTHAN:
+                return new RealGreaterThanConstant(index, constant);
+            case Condition.LTOE:
+                return new RealLessOrEqualConstant(index, constant);
+            case Condition.GTOE:
+                return new RealGreaterOrEqualConstant(index, constant);
+            case Condition.EQUAL:
+                return new RealEqualConstant(index, constant);
+            default:
+                return new RealNotEqualConstant(index, constant);
+        }
+    }
+
+    static Predicate realColumns(int exprtype, int index, int rindex) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return new RealLessThanColumns(index, rindex);
+            case Condition.GREATERTHAN:
+                return new RealGreaterThanColumns(index, rindex);
+            case Condition.LTOE:
+                return new RealLessOrEqualColumns(index, rindex);
+            case Condition.GTOE:
+                return new RealGreaterOrEqualColumns(index, rindex);
+            case Condition.EQUAL:
+                return new RealEqualColumns(index, rindex);
+            default:
+                return new RealNotEqualColumns(index, rindex);
+        }
+    }
+
+    static Predicate stringConstant(int exprtype, int index, String constant) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return new StringLessThanConstant(index, constant);
+            case Condition.GREATERTHAN:
+                return new StringGreaterThanConstant(index, constant);
+            case Condition.LTOE:
+                return new StringLessOrEqualConstant(index, constant);
+            case Condition.GTOE:
+                return new StringGreaterOrEqualConstant(index, constant);
+            case Condition.EQUAL:
+                return new StringEqualConstant(index, constant);
+            default:
+                return new StringNotEqualConstant(index, constant);
+        }
+    }
+
+    static Predicate stringColumns(int exprtype, int index, int rindex) {
+        switch (exprtype) {
+            case Condition.LESSTHAN:
+                return new StringLessThanColumns(index, rindex);
+            case Condition.GREATERTHAN:
+                return new StringGreaterThanColumns(index, rindex);
+            case Condition.LTOE:
+                return new StringLessOrEqualColumns(index, rindex);
+            case Condition.GTOE:
+                return new StringGreaterOrEqualColumns(index, rindex);
+            case Condition.EQUAL:
+                return new StringEqualColumns(index, rindex);
+            default:
+                return new StringNotEqualColumns(index, rindex);
+        }
+    }
+
+    /** INT column op constant, the subclasses compare with one operator each **/
+    abstract static class IntConstant extends Predicate {
+        final int index;
+        final int constant;
+
+        IntConstant(int index, int constant) {
+            this.index = index;
+            this.constant = constant;
+        }
+    }
+
+    static final class IntLessThanConstant extends IntConstant {
+        IntLessThanConstant(int index, int constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] < constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] < constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntGreaterThanConstant extends IntConstant {
+        IntGreaterThanConstant(int index, int constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] > constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] > constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntLessOrEqualConstant extends IntConstant {
+        IntLessOrEqualConstant(int index, int constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] <= constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] <= constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntGreaterOrEqualConstant extends IntConstant {
+        IntGreaterOrEqualConstant(int index, int constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] >= constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] >= constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntEqualConstant extends IntConstant {
+        IntEqualConstant(int index, int constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] == constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] == constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntNotEqualConstant extends IntConstant {
+        IntNotEqualConstant(int index, int constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] != constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] != constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    /** INT column op INT column, the subclasses compare with one operator each **/
+    abstract static class IntColumns extends Predicate {
+        final int index;
+        final int rindex;
+
+        IntColumns(int index, int rindex) {
+            this.index = index;
+            this.rindex = rindex;
+        }
+    }
+
+    static final class IntLessThanColumns extends IntColumns {
+        IntLessThanColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] < t.values[rindex];
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] < rcol[row]) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntGreaterThanColumns extends IntColumns {
+        IntGreaterThanColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] > t.values[rindex];
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] > rcol[row]) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntLessOrEqualColumns extends IntColumns {
+        IntLessOrEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] <= t.values[rindex];
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] <= rcol[row]) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntGreaterOrEqualColumns extends IntColumns {
+        IntGreaterOrEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] >= t.values[rindex];
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] >= rcol[row]) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntEqualColumns extends IntColumns {
+        IntEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] == t.values[rindex];
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] == rcol[row]) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class IntNotEqualColumns extends IntColumns {
+        IntNotEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.values[index] != t.values[rindex];
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row] != rcol[row]) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    /** REAL column op constant, the subclasses compare with one operator each **/
+    abstract static class RealConstant extends Predicate {
+        final int index;
+        final float constant;
+
+        RealConstant(int index, float constant) {
+            this.index = index;
+            this.constant = constant;
+        }
+    }
+
+    static final class RealLessThanConstant extends RealConstant {
+        RealLessThanConstant(int index, float constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) < constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) < constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealGreaterThanConstant extends RealConstant {
+        RealGreaterThanConstant(int index, float constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) > constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) > constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealLessOrEqualConstant extends RealConstant {
+        RealLessOrEqualConstant(int index, float constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) <= constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) <= constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealGreaterOrEqualConstant extends RealConstant {
+        RealGreaterOrEqualConstant(int index, float constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) >= constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) >= constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealEqualConstant extends RealConstant {
+        RealEqualConstant(int index, float constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) == constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) == constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealNotEqualConstant extends RealConstant {
+        RealNotEqualConstant(int index, float constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) != constant;
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) != constant) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    /** REAL column op REAL column, the subclasses compare with one operator each **/
+    abstract static class RealColumns extends Predicate {
+        final int index;
+        final int rindex;
+
+        RealColumns(int index, int rindex) {
+            this.index = index;
+            this.rindex = rindex;
+        }
+    }
+
+    static final class RealLessThanColumns extends RealColumns {
+        RealLessThanColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) < Float.intBitsToFloat(t.values[rindex]);
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) < Float.intBitsToFloat(rcol[row])) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealGreaterThanColumns extends RealColumns {
+        RealGreaterThanColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) > Float.intBitsToFloat(t.values[rindex]);
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) > Float.intBitsToFloat(rcol[row])) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealLessOrEqualColumns extends RealColumns {
+        RealLessOrEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) <= Float.intBitsToFloat(t.values[rindex]);
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) <= Float.intBitsToFloat(rcol[row])) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealGreaterOrEqualColumns extends RealColumns {
+        RealGreaterOrEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) >= Float.intBitsToFloat(t.values[rindex]);
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) >= Float.intBitsToFloat(rcol[row])) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealEqualColumns extends RealColumns {
+        RealEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) == Float.intBitsToFloat(t.values[rindex]);
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) == Float.intBitsToFloat(rcol[row])) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class RealNotEqualColumns extends RealColumns {
+        RealNotEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return Float.intBitsToFloat(t.values[index]) != Float.intBitsToFloat(t.values[rindex]);
+        }
+
+        public void filter(ColumnBatch batch) {
+            int[] col = batch.values[index];
+            int[] rcol = batch.values[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (Float.intBitsToFloat(col[row]) != Float.intBitsToFloat(rcol[row])) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    /** STRING column op constant, compared with compareTo, the subclasses compare with one operator each **/
+    abstract static class StringConstant extends Predicate {
+        final int index;
+        final String constant;
+
+        StringConstant(int index, String constant) {
+            this.index = index;
+            this.constant = constant;
+        }
+    }
+
+    static final class StringLessThanConstant extends StringConstant {
+        StringLessThanConstant(int index, String constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(constant) < 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(constant) < 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringGreaterThanConstant extends StringConstant {
+        StringGreaterThanConstant(int index, String constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(constant) > 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(constant) > 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringLessOrEqualConstant extends StringConstant {
+        StringLessOrEqualConstant(int index, String constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(constant) <= 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(constant) <= 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringGreaterOrEqualConstant extends StringConstant {
+        StringGreaterOrEqualConstant(int index, String constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(constant) >= 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(constant) >= 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringEqualConstant extends StringConstant {
+        StringEqualConstant(int index, String constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(constant) == 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(constant) == 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringNotEqualConstant extends StringConstant {
+        StringNotEqualConstant(int index, String constant) {
+            super(index, constant);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(constant) != 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(constant) != 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    /** STRING column op STRING column, compared with compareTo, the subclasses compare with one operator each **/
+    abstract static class StringColumns extends Predicate {
+        final int index;
+        final int rindex;
+
+        StringColumns(int index, int rindex) {
+            this.index = index;
+            this.rindex = rindex;
+        }
+    }
+
+    static final class StringLessThanColumns extends StringColumns {
+        StringLessThanColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(t.strings[rindex]) < 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            String[] rcol = batch.strings[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(rcol[row]) < 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringGreaterThanColumns extends StringColumns {
+        StringGreaterThanColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(t.strings[rindex]) > 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            String[] rcol = batch.strings[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(rcol[row]) > 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringLessOrEqualColumns extends StringColumns {
+        StringLessOrEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(t.strings[rindex]) <= 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            String[] rcol = batch.strings[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(rcol[row]) <= 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringGreaterOrEqualColumns extends StringColumns {
+        StringGreaterOrEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(t.strings[rindex]) >= 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            String[] rcol = batch.strings[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(rcol[row]) >= 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringEqualColumns extends StringColumns {
+        StringEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(t.strings[rindex]) == 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            String[] rcol = batch.strings[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(rcol[row]) == 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+
+    static final class StringNotEqualColumns extends StringColumns {
+        StringNotEqualColumns(int index, int rindex) {
+            super(index, rindex);
+        }
+
+        public boolean test(Tuple t) {
+            return t.strings[index].compareTo(t.strings[rindex]) != 0;
+        }
+
+        public void filter(ColumnBatch batch) {
+            String[] col = batch.strings[index];
+            String[] rcol = batch.strings[rindex];
+            int[] sel = batch.sel;
+            int count = 0;
+            for (int k = 0; k < batch.selsize; ++k) {
+                int row = sel[k];
+                if (col[row].compareTo(rcol[row]) != 0) sel[count++] = row;
+            }
+            batch.selsize = count;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Page replacement policy of the buffer pool
+ **/
+
+package qp.utils;
+
+/**
+ * ReplacementPolicy - chooses the frame of the BufferPool to evict when a page is needed
+ * * and no frame is free. Frames are numbered from 0 to the number of frames - 1.
+ **/
+public interface ReplacementPolicy {
+
+    /** Called once by the buffer pool before the frames are used **/
+    void init(int numframes);
+
+    /** The page in the frame has been pinned **/
+    void accessed(int frame);
+
+    /** The page in the frame has been dropped from the pool **/
+    void removed(int frame);
+
+    /**
+     * Returns a frame to evict among the frames with a pin count of 0
+     * * Returns -1 if every frame is pinned
+     **/
+    int victim(int[] pincount);
+}
@@ -25,6 +25,9 @@ public class SQLQuery {
 
     boolean isAscending = true;         // Whether the orderby is ascending
 
+    int limit = -1;                     // Maximum number of result rows, -1 without a limit clause
+    int offset = 0;                     // Number of result rows skipped before the first one returned
+
     public SQLQuery(ArrayList<Attribute> list1, ArrayList<String> list2, ArrayList<Condition> list3) {
         projectList = list1;
         fromList = list2;
@@ -118,6 +121,16 @@ public class SQLQuery {
 
     public ArrayList<Attribute> getOrderByList() { return orderbyList; }
 
+    public void setLimit(int n) { limit = n; }
+
+    public int getLimit() { return limit; }
+
+    public boolean hasLimit() { return limit >= 0; }
+
+    public void setOffset(int n) { offset = n; }
+
+    public int getOffset() { return offset; }
+
     public int getNumJoin() {
         if (joinList == null)
             return 0;
@@ -0,0 +1,222 @@
+/**
+ * Binary slotted page used to store tuples on disk
+ **/
+
+package qp.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Page layout (all offsets are in bytes from the start of the page):
+ * * [number of slots][slot 0 offset][slot 1 offset]...  free space  ...[record 1][record 0]
+ * * The slot directory grows from the front of the page and the records grow from the back.
+ * * A record stores its fields in schema order: INT and REAL take 4 bytes,
+ * * STRING takes a 2 byte length followed by the UTF-8 encoded characters,
+ * * a null STRING is stored as the length NULL_LENGTH without characters.
+ **/
+public class SlottedPage {
+
+    public static final int MAGIC = 0x51504731;         // Marks a file of slotted pages ("QPG1")
+    public static final int FILE_HEADER_SIZE = 8;       // Magic number followed by the page size
+    public static final int DEFAULT_PAGE_SIZE = 4096;   // Page size used when none is configured
+    static final int PAGE_HEADER_SIZE = 4;              // Number of slots in the page
+    static final int SLOT_SIZE = 4;                     // Offset of one record
+    static final int NULL_LENGTH = 0xFFFF;              // Length of a null STRING
+    public static final int MAX_STRING_BYTES = 0xFFFE;  // Longest STRING that can be stored, in UTF-8 bytes
+
+    Schema schema;      // Schema of the tuples stored in this page
+    int[] types;        // Layout of the tuples, cached from the schema
+    ByteBuffer buf;     // Content of the page
+    int pagesize;       // Number of bytes in the page
+    int numslots;       // Number of records in the page
+    int freeend;        // Offset where the free space ends (start of the last record)
+    Dictionary[] dictionaries;  // Dictionary of each STRING column stored as codes, null if none
+
+    /** Creates an empty page to be filled with add() **/
+    public SlottedPage(Schema schema, int pagesize) {
+        this(schema, ByteBuffer.allocate(pagesize));
+        clear();
+    }
+
+    /** Wraps a page that has been read from a file **/
+    public SlottedPage(Schema schema, ByteBuffer buf) {
+        this(schema, buf, null);
+    }
+
+    /**
+     * Wraps a page of a table file, the STRING columns with a dictionary
+     * * are stored as INT codes and decoded when the records are read
+     **/
+    public SlottedPage(Schema schema, ByteBuffer buf, Dictionary[] dictionaries) {
+        this.schema = schema;
+        this.dictionaries = dictionaries;
+        this.buf = buf;
+        this.pagesize = buf.capacity();
+        types = Tuple.layoutOf(schema);
+        numslots = buf.getInt(0);
+        freeend = numslots == 0 ? pagesize : buf.getInt(PAGE_HEADER_SIZE + (numslots - 1) * SLOT_SIZE);
+    }
+
+    /** Page size to use for files, falls back to the default if no page size is set **/
+    public static int getFilePageSize() {
+        return Batch.getPageSize() > 0 ? Batch.getPageSize() : DEFAULT_PAGE_SIZE;
+    }
+
+    public int size() {
+        return numslots;
+    }
+
+    public boolean isEmpty() {
+        return numslots == 0;
+    }
+
+    public int getPageSize() {
+        return pagesize;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+
+    /** Removes all the records in the page **/
+    public void clear() {
+        numslots = 0;
+        freeend = pagesize;
+        buf.putInt(0, 0);
+    }
+
+    /** Number of bytes needed to store the tuple, excluding its slot **/
+    public int recordSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == Attribute.STRING) {
+                byte[] bytes = encode(t.getString(i));
+                size += 2 + (bytes == null ? 0 : bytes.length);
+            } else {
+                size += 4;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * UTF-8 bytes of a STRING value, null for a null value
+     * * Throws IllegalArgumentException if the value is too long to be stored
+     **/
+    static byte[] encode(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("string of " + bytes.length + " bytes is longer than " + MAX_STRING_BYTES + " bytes");
+        }
+        return bytes;
+    }
+
+    // decodes the STRING value at the position of the page, pos is at its length
+    private String decodeString(int pos) {
+        int length = buf.getShort(pos) & 0xFFFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int k = 0; k < length; ++k) {
+            bytes[k] = buf.get(pos + 2 + k);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // number of bytes of the STRING value at the position of the page, including its length
+    private int stringSize(int pos) {
+        int length = buf.getShort(pos) & 0xFFFF;
+        return 2 + (length == NULL_LENGTH ? 0 : length);
+    }
+
+    /** Returns whether the tuple can fit into an empty page **/
+    public boolean fits(Tuple t) {
+        return PAGE_HEADER_SIZE + SLOT_SIZE + recordSize(t) <= pagesize;
+    }
+
+    /**
+     * Inserts the tuple at the next free slot
+     * * Returns false if there is not enough free space left in the page
+     **/
+    public boolean add(Tuple t) {
+        int size = recordSize(t);
+        int slotend = PAGE_HEADER_SIZE + (numslots + 1) * SLOT_SIZE;
+        if (freeend - size < slotend) {
+            return false;
+        }
+        int offset = freeend - size;
+        int pos = offset;
+        for (int i = 0; i < types.length; ++i) {
+            if (types[i] == Attribute.INT) {
+                buf.putInt(pos, t.getInt(i));
+                pos += 4;
+            } else if (types[i] == Attribute.REAL) {
+                buf.putFloat(pos, t.getFloat(i));
+                pos += 4;
+            } else {
+                byte[] bytes = encode(t.getString(i));
+                if (bytes == null) {
+                    buf.putShort(pos, (short) NULL_LENGTH);
+                    pos += 2;
+                    continue;
+                }
+                buf.putShort(pos, (short) bytes.length);
+                pos += 2;
+                for (int j = 0; j < bytes.length; ++j) {
+                    buf.put(pos + j, bytes[j]);
+                }
+                pos += bytes.length;
+            }
+        }
+        buf.putInt(PAGE_HEADER_SIZE + numslots * SLOT_SIZE, offset);
+        numslots++;
+        freeend = offset;
+        buf.putInt(0, numslots);
+        return true;
+    }
+
+    /** Decodes the record in slot i **/
+    public Tuple get(int i) {
+        int pos = buf.getInt(PAGE_HEADER_SIZE + i * SLOT_SIZE);
+        Tuple t = new Tuple(types);
+        for (int j = 0; j < types.length; ++j) {
+            if (types[j] == Attribute.INT) {
+                t.setInt(j, buf.getInt(pos));
+                pos += 4;
+            } else if (types[j] == Attribute.REAL) {
+                t.setFloat(j, buf.getFloat(pos));
+                pos += 4;
+            } else if (dictionaries != null && dictionaries[j] != null) {
+                t.setString(j, dictionaries[j].decode(buf.getInt(pos)));
+                pos += 4;
+            } else {
+                t.setString(j, decodeString(pos));
+                pos += stringSize(pos);
+            }
+        }
+        return t;
+    }
+
+    /** Decodes the record in slot i into a new row of a column batch, no tuple is created **/
+    public void getInto(int i, ColumnBatch batch) {
+        int pos = buf.getInt(PAGE_HEADER_SIZE + i * SLOT_SIZE);
+        int row = batch.appendRow();
+        for (int j = 0; j < types.length; ++j) {
+            if (dictionaries != null && dictionaries[j] != null) {
+                batch.strings[j][row] = dictionaries[j].decode(buf.getInt(pos));
+                pos += 4;
+            } else if (types[j] == Attribute.STRING) {
+                batch.strings[j][row] = decodeString(pos);
+                pos += stringSize(pos);
+            } else {
+                batch.values[j][row] = buf.getInt(pos);     // REAL values are stored as their bits
+                pos += 4;
+            }
+        }
+    }
+}
@@ -8,25 +8,197 @@ import java.util.*;
 import java.io.*;
 
 /**
- * Tuple - a simple object which holds an ArrayList of data
+ * Tuple - holds the values of a record without boxing them
+ * * INT values and the bits of REAL values are kept in an int array,
+ * * STRING values are kept in a separate String array.
+ * * Both arrays are indexed by column, and the type of each column is given
+ * * by a layout array that is shared between the tuples of the same schema.
  */
 public class Tuple implements Serializable {
 
-    public ArrayList<Object> _data;
+    private static final long serialVersionUID = 1928781161746223552L;
 
+    /**
+     * Serialized form of the tuple. The _data field is only present in tuples
+     * * written before the tuple kept its values in primitive arrays.
+     **/
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("types", int[].class),
+            new ObjectStreamField("values", int[].class),
+            new ObjectStreamField("strings", String[].class),
+            new ObjectStreamField("_data", ArrayList.class)
+    };
+
+    int[] types;        // Type of each column (Attribute.INT, Attribute.REAL or Attribute.STRING)
+    int[] values;       // INT values and bits of REAL values, by column
+    String[] strings;   // STRING values by column, null if there is no STRING column
+
+    /**
+     * Creates a tuple with the given layout, the values are set with setInt/setFloat/setString
+     **/
+    public Tuple(int[] types) {
+        this.types = types;
+        values = new int[types.length];
+        for (int type : types) {
+            if (type == Attribute.STRING) {
+                strings = new String[types.length];
+                break;
+            }
+        }
+    }
+
+    /**
+     * Creates a tuple from boxed values (Integer, Float or String)
+     **/
     public Tuple(ArrayList<Object> d) {
-        _data = d;
+        this(layoutOf(d));
+        for (int i = 0; i < types.length; ++i) {
+            setData(i, d.get(i));
+        }
     }
 
     /**
-     * Accessor for data
+     * Layout of the tuples of a schema, to be computed once and shared by the tuples
+     **/
+    public static int[] layoutOf(Schema schema) {
+        int[] layout = new int[schema.getNumCols()];
+        for (int i = 0; i < layout.length; ++i) {
+            layout[i] = schema.getAttribute(i).getProjectedType();
+        }
+        return layout;
+    }
+
+    private static int[] layoutOf(ArrayList<Object> d) {
+        int[] layout = new int[d.size()];
+        for (int i = 0; i < layout.length; ++i) {
+            Object data = d.get(i);
+            if (data instanceof Integer) {
+                layout[i] = Attribute.INT;
+            } else if (data instanceof Float) {
+                layout[i] = Attribute.REAL;
+            } else {
+                layout[i] = Attribute.STRING;
+            }
+        }
+        return layout;
+    }
+
+    public int[] getLayout() {
+        return types;
+    }
+
+    public int size() {
+        return types.length;
+    }
+
+    public int typeAt(int index) {
+        return types[index];
+    }
+
+    public int getInt(int index) {
+        return values[index];
+    }
+
+    public float getFloat(int index) {
+        return Float.intBitsToFloat(values[index]);
+    }
+
+    public String getString(int index) {
+        return strings[index];
+    }
+
+    public void setInt(int index, int value) {
+        values[index] = value;
+    }
+
+    public void setFloat(int index, float value) {
+        values[index] = Float.floatToIntBits(value);
+    }
+
+    public void setString(int index, String value) {
+        strings[index] = value;
+    }
+
+    /**
+     * Accessor for data, the values are boxed
      */
     public ArrayList<Object> data() {
-        return _data;
+        ArrayList<Object> data = new ArrayList<>(types.length);
+        for (int i = 0; i < types.length; ++i) {
+            data.add(dataAt(i));
+        }
+        return data;
     }
 
+    /**
+     * Boxed value of a column, prefer the typed accessors
+     **/
     public Object dataAt(int index) {
-        return _data.get(index);
+        if (types[index] == Attribute.INT) {
+            return values[index];
+        } else if (types[index] == Attribute.REAL) {
+            return getFloat(index);
+        } else {
+            return strings[index];
+        }
+    }
+
+    private void setData(int index, Object data) {
+        if (types[index] == Attribute.INT) {
+            values[index] = (Integer) data;
+        } else if (types[index] == Attribute.REAL) {
+            setFloat(index, (Float) data);
+        } else {
+            strings[index] = (String) data;
+        }
+    }
+
+    /**
+     * Hash code of the value of a column, same as the hash code of the boxed value
+     **/
+    public int hashCodeAt(int index) {
+        if (types[index] == Attribute.STRING) {
+            return strings[index] == null ? 0 : strings[index].hashCode();
+        }
+        return values[index];
+    }
+
+    /**
+     * Hash of the values of the given columns, mixed so that all the bits depend on every value.
+     * * Tuples and column batches with equal key values get equal hashes for the same seed.
+     **/
+    public int hashOf(int[] index, int seed) {
+        int h = seed;
+        for (int i : index) {
+            h = combineHash(h, hashCodeAt(i));
+        }
+        return finishHash(h);
+    }
+
+    /** Adds the hash code of one value to a key hash **/
+    public static int combineHash(int h, int value) {
+        h = (h ^ value) * 0x01000193;
+        return Integer.rotateLeft(h, 15);
+    }
+
+    /** Final avalanche of a key hash (murmur3 finalizer) **/
+    public static int finishHash(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+        return h;
+    }
+
+    /**
+     * Whether the value of a column equals the value of a column of another tuple
+     **/
+    public boolean equalsAt(Tuple right, int leftindex, int rightindex) {
+        if (types[leftindex] == Attribute.STRING) {
+            return Objects.equals(strings[leftindex], right.strings[rightindex]);
+        }
+        return values[leftindex] == right.values[rightindex];
     }
 
     /**
@@ -34,12 +206,7 @@ public class Tuple implements Serializable {
      * * before performing actual join operation
      **/
     public boolean checkJoin(Tuple right, int leftindex, int rightindex) {
-        Object leftData = dataAt(leftindex);
-        Object rightData = right.dataAt(rightindex);
-        if (leftData.equals(rightData))
-            return true;
-        else
-            return false;
+        return equalsAt(right, leftindex, rightindex);
     }
 
     /**
@@ -50,9 +217,7 @@ public class Tuple implements Serializable {
         if (leftindex.size() != rightindex.size())
             return false;
         for (int i = 0; i < leftindex.size(); ++i) {
-            Object leftData = dataAt(leftindex.get(i));
-            Object rightData = right.dataAt(rightindex.get(i));
-            if (!leftData.equals(rightData)) {
+            if (!equalsAt(right, leftindex.get(i), rightindex.get(i))) {
                 return false;
             }
         }
@@ -63,9 +228,40 @@ public class Tuple implements Serializable {
      * Joining two tuples without duplicate column elimination
      **/
     public Tuple joinWith(Tuple right) {
-        ArrayList<Object> newData = new ArrayList<>(this.data());
-        newData.addAll(right.data());
-        return new Tuple(newData);
+        int[] layout = new int[types.length + right.types.length];
+        System.arraycopy(types, 0, layout, 0, types.length);
+        System.arraycopy(right.types, 0, layout, types.length, right.types.length);
+        return joinWith(right, layout);
+    }
+
+    /**
+     * Joining two tuples, layout is the (precomputed) layout of the result
+     **/
+    public Tuple joinWith(Tuple right, int[] layout) {
+        Tuple joined = new Tuple(layout);
+        System.arraycopy(values, 0, joined.values, 0, types.length);
+        System.arraycopy(right.values, 0, joined.values, types.length, right.types.length);
+        if (strings != null) {
+            System.arraycopy(strings, 0, joined.strings, 0, types.length);
+        }
+        if (right.strings != null) {
+            System.arraycopy(right.strings, 0, joined.strings, types.length, right.types.length);
+        }
+        return joined;
+    }
+
+    /**
+     * Projects the columns at the given indices, layout is the (precomputed) layout of the result
+     **/
+    public Tuple project(int[] index, int[] layout) {
+        Tuple projected = new Tuple(layout);
+        for (int i = 0; i < index.length; ++i) {
+            projected.values[i] = values[index[i]];
+            if (layout[i] == Attribute.STRING) {
+                projected.strings[i] = strings[index[i]];
+            }
+        }
+        return projected;
     }
 
     /**
@@ -79,14 +275,13 @@ public class Tuple implements Serializable {
      * Comparing tuples in different tables, used for join condition checking
      **/
     public static int compareTuples(Tuple left, Tuple right, int leftIndex, int rightIndex) {
-        Object leftdata = left.dataAt(leftIndex);
-        Object rightdata = right.dataAt(rightIndex);
-        if (leftdata instanceof Integer) {
-            return ((Integer) leftdata).compareTo((Integer) rightdata);
-        } else if (leftdata instanceof String) {
-            return ((String) leftdata).compareTo((String) rightdata);
-        } else if (leftdata instanceof Float) {
-            return ((Float) leftdata).compareTo((Float) rightdata);
+        int type = left.types[leftIndex];
+        if (type == Attribute.INT) {
+            return Integer.compare(left.values[leftIndex], right.values[rightIndex]);
+        } else if (type == Attribute.STRING) {
+            return left.strings[leftIndex].compareTo(right.strings[rightIndex]);
+        } else if (type == Attribute.REAL) {
+            return Float.compare(left.getFloat(leftIndex), right.getFloat(rightIndex));
         } else {
             System.out.println("Tuple: Unknown comparision of the tuples");
             System.exit(1);
@@ -104,21 +299,37 @@ public class Tuple implements Serializable {
             return 0;
         }
         for (int i = 0; i < leftIndex.size(); ++i) {
-            Object leftdata = left.dataAt(leftIndex.get(i));
-            Object rightdata = right.dataAt(rightIndex.get(i));
-            if (leftdata.equals(rightdata)) continue;
-            if (leftdata instanceof Integer) {
-                return ((Integer) leftdata).compareTo((Integer) rightdata);
-            } else if (leftdata instanceof String) {
-                return ((String) leftdata).compareTo((String) rightdata);
-            } else if (leftdata instanceof Float) {
-                return ((Float) leftdata).compareTo((Float) rightdata);
-            } else {
-                System.out.println("Tuple: Unknown comparision of the tuples");
-                System.exit(1);
-                return 0;
+            int res = compareTuples(left, right, leftIndex.get(i), rightIndex.get(i));
+            if (res != 0) {
+                return res;
             }
         }
         return 0;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("types", types);
+        fields.put("values", values);
+        fields.put("strings", strings);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        ArrayList<Object> data = (ArrayList<Object>) fields.get("_data", null);
+        if (data != null) {
+            types = layoutOf(data);
+            values = new int[types.length];
+            strings = new String[types.length];
+            for (int i = 0; i < types.length; ++i) {
+                setData(i, data.get(i));
+            }
+        } else {
+            types = (int[]) fields.get("types", null);
+            values = (int[]) fields.get("values", null);
+            strings = (String[]) fields.get("strings", null);
+        }
+    }
 }
@@ -0,0 +1,108 @@
+/**
+ * In-memory hash table of tuples keyed by some of their attributes
+ **/
+
+package qp.utils;
+
+import java.util.ArrayList;
+
+/**
+ * TupleHashTable - open addressing table for the build side of a hash join.
+ * * The caller computes the hash of the key once and passes it in, the table keeps it
+ * * next to the tuple so that a probe only compares the keys of entries with the same hash.
+ * *
+ * * Each slot of the table refers to the first tuple of one key. The other tuples with
+ * * the same key are linked from it, so a probe looks at O(1) slots on average
+ * * and then walks over exactly the tuples that match.
+ * * Tuples are numbered in insertion order from 0 to size() - 1.
+ **/
+public class TupleHashTable {
+
+    int capacity;                   // Maximum number of tuples
+    ArrayList<Integer> keyindex;    // Indices of the key attributes in the stored tuples
+    Tuple[] tuples;                 // Stored tuples, in insertion order
+    int[] hashes;                   // Hash of the key of each stored tuple
+    int[] next;                     // Next tuple with the same key, -1 at the end
+    int[] slots;                    // First tuple of a key + 1, 0 for a free slot
+    int mask;                       // Number of slots - 1
+    int size;                       // Number of tuples stored
+    int numkeys;                    // Number of distinct keys stored
+
+    /**
+     * Table for at most capacity tuples, the number of slots is a power of two
+     * * at least twice the capacity so that probe sequences stay short
+     **/
+    public TupleHashTable(int capacity, ArrayList<Integer> keyindex) {
+        this.capacity = capacity;
+        this.keyindex = keyindex;
+        tuples = new Tuple[capacity];
+        hashes = new int[capacity];
+        next = new int[capacity];
+        int numslots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        slots = new int[numslots];
+        mask = numslots - 1;
+    }
+
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumKeys() {
+        return numkeys;
+    }
+
+    public Tuple get(int i) {
+        return tuples[i];
+    }
+
+    /**
+     * Adds a tuple whose key has the given hash, the table must not be full
+     **/
+    public void add(Tuple tuple, int hash) {
+        int t = size++;
+        tuples[t] = tuple;
+        hashes[t] = hash;
+        next[t] = -1;
+        for (int s = hash & mask; ; s = (s + 1) & mask) {
+            int head = slots[s] - 1;
+            if (head < 0) {
+                slots[s] = t + 1;
+                numkeys++;
+                return;
+            }
+            if (hashes[head] == hash && tuples[head].checkJoin(tuple, keyindex, keyindex)) {
+                next[t] = next[head];
+                next[head] = t;
+                return;
+            }
+        }
+    }
+
+    /**
+     * First stored tuple whose key equals the attributes of the probe tuple at probeindex,
+     * * the others are reached with next(). Returns -1 if there is none.
+     **/
+    public int find(Tuple probe, int hash, ArrayList<Integer> probeindex) {
+        for (int s = hash & mask; ; s = (s + 1) & mask) {
+            int head = slots[s] - 1;
+            if (head < 0) {
+                return -1;
+            }
+            if (hashes[head] == hash && tuples[head].checkJoin(probe, keyindex, probeindex)) {
+                return head;
+            }
+        }
+    }
+
+    /**
+     * Next stored tuple with the same key as tuple i, -1 if there is none
+     **/
+    public int next(int i) {
+        return next[i];
+    }
+
+}
@@ -1,5 +1,6 @@
 /**
  * TupleReader is a helper class that allows other operators to read tuples from a file in a Batch by Batch form
+ * The file is read as a sequence of binary slotted pages (see SlottedPage), compressed or not (see PageCodec)
  */
 
 package qp.utils;
@@ -8,11 +9,16 @@ import qp.utils.*;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.IntPredicate;
 
 public class TupleReader {
 
     final String filename;    // Filename to write to
     final int batchsize;        // Number of tuples per out batch
+    final Schema schema;        // Schema of the tuples to read
 
     Batch inBatch;                            // Currently buffered input
     int readCursor = 0;                    // Cursor within inBatch
@@ -20,13 +26,46 @@ public class TupleReader {
     int numBatch = 0;                        // Number of batch read
     int numTuple = 0;                        // Number of tuples read
     Tuple peekTuple = null;            // The next tuple of the batch (if peeked)
-    ObjectInputStream in;                // Input file stream
+    DataInputStream in;                // Input file stream
+    byte[] pageBuffer;                // Buffer for the page read from the file
+    int pageSize;                        // Number of bytes per page in the file
+    boolean memoryMapped = false;    // Whether to read the pages through a memory mapping
+    MappedByteBuffer mapped;        // Mapping of the whole file (in memory mapped mode)
+    int mapCursor;                        // Offset of the next page within the mapping
+    SlottedPage colPage;            // Page being decoded by readInto
+    BufferPool pool;                    // Buffer pool the pages are read through (optional)
+    int numPages;                        // Number of pages in the file (buffer pool mode)
+    int nextPage;                        // Number of the next page to read (buffer pool and compressed modes)
+    int pinnedPage = -1;            // Page pinned in the buffer pool, -1 if none
+    boolean pooled = false;            // Whether the pages are read through the buffer pool
+    int part = 0;                            // Only the pages with page number % numparts == part are read
+    int numparts = 1;                    // Number of readers sharing the file
+    int colCursor;                        // Next slot of colPage to decode
+    IntPredicate pageFilter;            // Only the pages for which it holds are read, null to read all
+    int streamPage;                        // Number of the next page of the input stream
+    int numSkipped;                        // Number of pages skipped by the filter
+    Dictionary[] dictionaries;            // Dictionaries of the STRING columns stored as codes, null if none
+    PageCodec codec;                    // Decompresses the pages of a compressed file, null if not compressed
+    long[] offsets;                        // Position of each page of a compressed file (memory mapped mode)
+    int framePage;                        // Number of the next page of the compressed input stream
 
     // filename: Filename of the output file to read from
     // batchsize: Number of tuples per batch
-    public TupleReader(String filename, int batchsize) {
+    // schema: Schema of the tuples to read
+    public TupleReader(String filename, int batchsize, Schema schema) {
         this.filename = filename;
         this.batchsize = batchsize;
+        this.schema = schema;
+    }
+
+    // Returns true if the file starts with the header of a slotted page file
+    public static boolean isPageFile(String filename) {
+        try (DataInputStream din = new DataInputStream(new FileInputStream(filename))) {
+            int magic = din.readInt();
+            return magic == SlottedPage.MAGIC || magic == PageCodec.MAGIC;
+        } catch (IOException io) {
+            return false;
+        }
     }
 
     public int getNumBatch() {
@@ -45,6 +84,48 @@ public class TupleReader {
         return filename;
     }
 
+    // Number of bytes per page of the file, once it is open
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    // Reads the pages directly from a memory mapping of the file instead of an input stream
+    // Files too large to be mapped are still read through the input stream
+    public void setMemoryMapped(boolean flag) {
+        memoryMapped = flag;
+    }
+
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
+    // Reads only every numparts-th page of the file starting from page part,
+    // so that numparts readers can scan disjoint pages of the same file in parallel
+    public void setPartition(int part, int numparts) {
+        this.part = part;
+        this.numparts = numparts;
+    }
+
+    // Reads the pages through the buffer pool, so pages read again hit memory
+    // The memory mapped mode takes precedence over the buffer pool
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    // Reads only the pages whose page number satisfies the filter, the others are skipped without being read
+    public void setPageFilter(IntPredicate filter) {
+        this.pageFilter = filter;
+    }
+
+    public int getNumSkipped() {
+        return numSkipped;
+    }
+
+    // Decodes the STRING columns stored as codes of the given dictionaries (see Dictionary.decoders)
+    public void setDictionaries(Dictionary[] dictionaries) {
+        this.dictionaries = dictionaries;
+    }
+
     // Returns true if the end of the input file is encountered
     public boolean isEOF() {
         if (completed) return true;
@@ -53,17 +134,64 @@ public class TupleReader {
 
     // Opens the input file and initializes the class for reading
     public boolean open() {
-        try {
-            in = new ObjectInputStream(new FileInputStream(filename));
-        } catch (IOException io) {
-            System.out.printf("%s:reading the temporary file error", filename);
-            return false;
-        }
+        mapped = null;
         inBatch = null;
         numBatch = 0;
         numTuple = 0;
         readCursor = 0;
+        colPage = null;
+        colCursor = 0;
+        numSkipped = 0;
         completed = false;
+        pooled = pool != null && !memoryMapped;
+        if (pooled) {
+            try {
+                pageSize = pool.getPageSize(filename);
+                numPages = pool.getNumPages(filename);
+            } catch (IOException io) {
+                System.out.printf("%s:reading the temporary file error", filename);
+                return false;
+            }
+            nextPage = part;
+            pinnedPage = -1;
+            return true;
+        }
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+            int magic = in.readInt();
+            if (magic != SlottedPage.MAGIC && magic != PageCodec.MAGIC) {
+                System.out.printf("%s:not a slotted page file\n", filename);
+                in.close();
+                return false;
+            }
+            pageSize = in.readInt();
+            codec = magic == PageCodec.MAGIC ? new PageCodec() : null;
+            if (memoryMapped && new File(filename).length() <= Integer.MAX_VALUE) {
+                in.close();
+                in = null;
+                try (FileChannel channel = FileChannel.open(new File(filename).toPath())) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                mapCursor = SlottedPage.FILE_HEADER_SIZE + part * pageSize;
+                if (codec != null) {
+                    offsets = PageCodec.readDirectory(mapped);
+                    pageBuffer = new byte[pageSize];
+                    nextPage = part;
+                }
+            } else {
+                pageBuffer = new byte[pageSize];
+                if (codec != null) {
+                    nextPage = part;
+                    framePage = 0;
+                } else {
+                    in.skipBytes(part * pageSize);
+                    streamPage = part;
+                }
+            }
+        } catch (IOException io) {
+            System.out.printf("%s:reading the temporary file error", filename);
+            return false;
+        }
         return true;
     }
 
@@ -79,7 +207,11 @@ public class TupleReader {
         if (inBatch == null) {
             try {
                 while (true) {
-                    inBatch = (Batch) in.readObject();
+                    SlottedPage page = readPage();
+                    inBatch = new Batch(page.size());
+                    for (int i = 0; i < page.size(); ++i) {
+                        inBatch.add(page.get(i));
+                    }
                     numBatch++;
                     if (inBatch.size() > 0) break;
                 }
@@ -89,11 +221,9 @@ public class TupleReader {
                 completed = true;
                 this.close();
                 return null;
-            } catch (ClassNotFoundException c) {
-                System.out.printf("%s:Some error in deserialization\n", filename);
-                System.exit(1);
             } catch (IOException io) {
                 System.out.printf("%s:temporary file reading error\n", filename);
+                System.out.println(io);
                 System.exit(1);
             }
         }
@@ -111,6 +241,116 @@ public class TupleReader {
         return peekTuple;
     }
 
+    // Reads the next page from the file
+    // In memory mapped mode the page is decoded straight from the mapping without copying
+    // In buffer pool mode the page stays pinned until the next page is read or the reader is closed
+    private SlottedPage readPage() throws IOException {
+        if (pooled) {
+            unpinPage();
+            while (nextPage < numPages && pageFilter != null && !pageFilter.test(nextPage)) {
+                nextPage += numparts;
+                numSkipped++;
+            }
+            if (nextPage >= numPages) {
+                throw new EOFException();
+            }
+            ByteBuffer page = pool.pin(filename, nextPage);
+            pinnedPage = nextPage;
+            nextPage += numparts;
+            return new SlottedPage(schema, page, dictionaries);
+        }
+        if (mapped != null && codec != null) {
+            while (nextPage < offsets.length && pageFilter != null && !pageFilter.test(nextPage)) {
+                nextPage += numparts;
+                numSkipped++;
+            }
+            if (nextPage >= offsets.length) {
+                throw new EOFException();
+            }
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) offsets[nextPage]);
+            codec.readFrame(view, pageBuffer);
+            nextPage += numparts;
+            return new SlottedPage(schema, ByteBuffer.wrap(pageBuffer), dictionaries);
+        }
+        if (mapped != null) {
+            while (mapCursor + pageSize <= mapped.capacity() && pageFilter != null
+                    && !pageFilter.test((mapCursor - SlottedPage.FILE_HEADER_SIZE) / pageSize)) {
+                mapCursor += numparts * pageSize;
+                numSkipped++;
+            }
+            if (mapCursor + pageSize > mapped.capacity()) {
+                throw new EOFException();
+            }
+            ByteBuffer view = mapped.duplicate();
+            view.position(mapCursor);
+            view.limit(mapCursor + pageSize);
+            mapCursor += numparts * pageSize;
+            return new SlottedPage(schema, view.slice(), dictionaries);
+        }
+        if (codec != null) {
+            // The frames before the next page are skipped without being decompressed
+            while (pageFilter != null && !pageFilter.test(nextPage)) {
+                nextPage += numparts;
+                numSkipped++;
+            }
+            for (; framePage < nextPage; ++framePage) {
+                PageCodec.skipFrame(in);
+            }
+            codec.readFrame(in, pageBuffer);
+            framePage++;
+            nextPage += numparts;
+            return new SlottedPage(schema, ByteBuffer.wrap(pageBuffer), dictionaries);
+        }
+        while (pageFilter != null && !pageFilter.test(streamPage)) {
+            if (in.skipBytes(numparts * pageSize) < numparts * pageSize) {
+                throw new EOFException();
+            }
+            streamPage += numparts;
+            numSkipped++;
+        }
+        in.readFully(pageBuffer);
+        streamPage += numparts;
+        if (numparts > 1) {
+            in.skipBytes((numparts - 1) * pageSize);
+        }
+        return new SlottedPage(schema, ByteBuffer.wrap(pageBuffer), dictionaries);
+    }
+
+    private void unpinPage() {
+        if (pinnedPage >= 0) {
+            pool.unpin(filename, pinnedPage, false);
+            pinnedPage = -1;
+        }
+    }
+
+    // Returns the tuples of the next page of the file, null once the end of the file is reached
+    // A reader must be used either through next()/peek() or through nextBatch(), not both
+    public Batch nextBatch() {
+        if (completed) return null;
+        try {
+            while (true) {
+                SlottedPage page = readPage();
+                numBatch++;
+                if (page.isEmpty()) continue;
+                Batch batch = new Batch(page.size());
+                for (int i = 0; i < page.size(); ++i) {
+                    batch.add(page.get(i));
+                }
+                numTuple += page.size();
+                return batch;
+            }
+        } catch (EOFException e) {
+            // No more page in the file
+            this.close();
+        } catch (IOException io) {
+            System.out.printf("%s:temporary file reading error\n", filename);
+            System.out.println(io);
+            System.exit(1);
+        }
+        return null;
+    }
+
     // Returns the next tuple and advances the stream
     public Tuple next() {
         // Returns the next tuple, already computed by peek()
@@ -124,11 +364,49 @@ public class TupleReader {
         return curTuple;
     }
 
+    // Decodes the next tuples straight into the vectors of the batch until it is full
+    // Returns the number of tuples read, 0 once the end of the file is reached
+    // A reader must be used either through next()/peek() or through readInto(), not both
+    public int readInto(ColumnBatch batch) {
+        if (completed) return 0;
+        int count = 0;
+        try {
+            while (!batch.isFull()) {
+                if (colPage == null || colCursor >= colPage.size()) {
+                    colPage = readPage();
+                    colCursor = 0;
+                    numBatch++;
+                    continue;
+                }
+                colPage.getInto(colCursor++, batch);
+                count++;
+            }
+        } catch (EOFException e) {
+            // No more page in the file
+            this.close();
+        } catch (IOException io) {
+            System.out.printf("%s:temporary file reading error\n", filename);
+            System.out.println(io);
+            System.exit(1);
+        }
+        numTuple += count;
+        return count;
+    }
+
     // Signals the TupleReader to stop reading from the file
     // Buffers and the input file will be closed here
     public boolean close() {
         inBatch = null;        // deallocate buffer
+        pageBuffer = null;
+        mapped = null;
         peekTuple = null;
+        colPage = null;
+        offsets = null;
+        if (codec != null) {
+            codec.end();
+            codec = null;
+        }
+        if (pooled) unpinPage();
         completed = true;
         if (in != null) {
             try {
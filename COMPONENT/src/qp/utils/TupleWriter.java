@@ -1,5 +1,7 @@
 /**
  * TupleWriter is a helper class that allows other operators to write tuples to a file in a Batch by Batch form
+ * The file is written as a sequence of binary slotted pages (see SlottedPage)
+ * The pages are compressed when the page codec is enabled (see PageCodec)
  */
 
 package qp.utils;
@@ -12,18 +14,24 @@ import java.io.*;
 public class TupleWriter {
 
     final String filename;    // Filename to write to
-    final int batchsize;        // Number of tuples per out batch
+    final Schema schema;        // Schema of the tuples to write
 
-    Batch outBatch;
+    SlottedPage outPage;                // Page being filled
     int numBatch = 0;                        // Number of batch written
     int numTuple = 0;                        // Number of tuples added
-    ObjectOutputStream out;            // Output file stream
+    DataOutputStream out;            // Output file stream
+    BufferPool pool;                    // Buffer pool the pages are written through (optional)
+    ZoneMap zonemap;                    // Minimum and maximum of the columns of each page (optional)
+    PageCodec codec;                    // Compresses the pages written, null if not compressed
+    long[] offsets;                        // Position of each page written to a compressed file
+    long position;                        // Number of bytes written to the file
 
     // filename: Filename of the output file to write to
-    // batchsize: Number of tuples per batch
-    public TupleWriter(String filename, int batchsize) {
+    // schema: Schema of the tuples to write
+    // The pages are filled by bytes, so the number of tuples per page depends on their values
+    public TupleWriter(String filename, Schema schema) {
         this.filename = filename;
-        this.batchsize = batchsize;
+        this.schema = schema;
     }
 
     public int getNumBatch() {
@@ -34,46 +42,114 @@ public class TupleWriter {
         return numTuple;
     }
 
-    public int getBatchSize() {
-        return batchsize;
-    }
-
     public String getFileName() {
         return filename;
     }
 
+    // Writes the pages into the buffer pool instead of an output stream
+    // The pages reach the file when the pool evicts or flushes them
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    // Records the minimum and maximum of the numeric columns of each page written in the zone map
+    public void setZoneMap(ZoneMap zonemap) {
+        this.zonemap = zonemap;
+    }
+
     // Opens the file and initializes the class for writing
+    // The page size of the file is the current page size of Batch
     public boolean open() {
+        int pagesize = SlottedPage.getFilePageSize();
+        numBatch = 0;
+        numTuple = 0;
+        if (pool != null) {
+            try {
+                pool.create(filename, pagesize, PageCodec.isEnabled());
+            } catch (IOException io) {
+                System.out.printf("%s:writing the temporary file error", filename);
+                return false;
+            }
+            outPage = null;     // Pinned when the first tuple arrives
+            return true;
+        }
         try {
-            out = new ObjectOutputStream(new FileOutputStream(filename));
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), pagesize));
+            out.writeInt(PageCodec.isEnabled() ? PageCodec.MAGIC : SlottedPage.MAGIC);
+            out.writeInt(pagesize);
+            position = SlottedPage.FILE_HEADER_SIZE;
+            if (PageCodec.isEnabled()) {
+                codec = new PageCodec();
+                offsets = new long[16];
+            }
         } catch (IOException io) {
             System.out.printf("%s:writing the temporary file error", filename);
             return false;
         }
-        outBatch = null;
-        numBatch = 0;
-        numTuple = 0;
+        outPage = new SlottedPage(schema, pagesize);
         return true;
     }
 
     // Supplies a tuple to the tuple writer
-    // Tuple writer will store the tuples and writes to the file on Batch at a time
+    // Tuple writer will store the tuples and writes to the file one page at a time
     public boolean next(Tuple nextTuple) {
-        if (outBatch == null) {
-            outBatch = new Batch(batchsize);
+        if (outPage == null) outPage = newPage();
+        boolean added = false;
+        try {
+            added = outPage.add(nextTuple);
+        } catch (IllegalArgumentException e) {
+            System.out.printf("%s:%s\n", filename, e.getMessage());
+            System.exit(1);
+        }
+        if (!added) {
+            if (!outPage.fits(nextTuple)) {
+                System.out.printf("%s:tuple does not fit into a page of %d bytes\n", filename, outPage.getPageSize());
+                System.exit(1);
+            }
+            writeBatch();        // Immediately writes to file when the page has no more free space
+            if (outPage == null) outPage = newPage();
+            outPage.add(nextTuple);
         }
-        outBatch.add(nextTuple);
+        if (zonemap != null) zonemap.add(numBatch, nextTuple);
         ++numTuple;
-        if (outBatch.isFull())
-            writeBatch();        // Immediately writes to file when we have enough tuples to fill a BAtch
         return true;
     }
 
-    // Helper method to write a single batch to the output file
+    // Pins a new page at the end of the file in the buffer pool
+    private SlottedPage newPage() {
+        try {
+            SlottedPage page = new SlottedPage(schema, pool.pinNew(filename));
+            page.clear();
+            return page;
+        } catch (IOException io) {
+            System.out.printf("%s:writing the temporary file error", filename);
+            System.out.println(io);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    // Helper method to write a single page to the output file
+    // In the buffer pool the page is only unpinned as dirty
     private void writeBatch() {
+        if (pool != null) {
+            pool.unpin(filename, numBatch, true);
+            outPage = null;
+            ++numBatch;
+            return;
+        }
         try {
-            out.writeObject(outBatch);
-            outBatch = null;        // deallocate output buffer --> saves memory
+            if (codec != null) {
+                if (numBatch == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, 2 * numBatch);
+                }
+                offsets[numBatch] = position;
+                position += codec.writeFrame(out, outPage.getBuffer().array(), outPage.getPageSize());
+            } else {
+                out.write(outPage.getBuffer().array(), 0, outPage.getPageSize());
+                position += outPage.getPageSize();
+            }
+            outPage.clear();
             ++numBatch;
         } catch (IOException io) {
             System.out.printf("%s:writing the temporary file error", filename);
@@ -84,9 +160,15 @@ public class TupleWriter {
 
     // Signals the TupleWriter to finish writing all the tuples to the file
     public boolean close() {
-        if (outBatch != null) writeBatch();  // Unfilled batch (if any) will be flushed to the file
+        if (outPage != null && !outPage.isEmpty()) writeBatch();  // Unfilled page (if any) will be flushed to the file
+        outPage = null;
         if (out != null) {
             try {
+                if (codec != null) {
+                    PageCodec.writeDirectory(out, offsets, numBatch);
+                    codec.end();
+                    codec = null;
+                }
                 out.close();
                 out = null;
             } catch (IOException io) {
@@ -0,0 +1,250 @@
+/**
+ * Minimum and maximum of the numeric columns of each page of a table
+ **/
+
+package qp.utils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * ZoneMap - for each page of a table file, the smallest and largest value of every
+ * * INT and REAL column. It is filled by the TupleWriter of the table and stored in
+ * * <tablename>.zm next to <tablename>.tbl. A scan with select conditions on these columns
+ * * skips the pages whose range of values cannot satisfy one of the conditions.
+ * * The file records the size of the table file, and is ignored once the table changes.
+ **/
+public class ZoneMap {
+
+    static final int MAGIC = 0x5a4d5031;    // Marks a zone map file ("ZMP1")
+
+    int[] columns;      // Positions of the INT and REAL columns in the table
+    int[] types;        // Types of these columns
+    int numpages;       // Number of pages of the table
+    int capacity;       // Number of pages that fit in the arrays
+    int[][] min;        // Smallest value of column c in page p at min[c][p], the bits of a float for REAL
+    int[][] max;        // Largest value of column c in page p at max[c][p]
+
+    /**
+     * Creates an empty zone map for a table with the given schema
+     **/
+    public ZoneMap(Schema schema) {
+        int count = 0;
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            if (schema.typeOf(i) != Attribute.STRING) count++;
+        }
+        columns = new int[count];
+        types = new int[count];
+        count = 0;
+        for (int i = 0; i < schema.getNumCols(); ++i) {
+            if (schema.typeOf(i) != Attribute.STRING) {
+                columns[count] = i;
+                types[count++] = schema.typeOf(i);
+            }
+        }
+        numpages = 0;
+        capacity = 16;
+        min = new int[columns.length][capacity];
+        max = new int[columns.length][capacity];
+    }
+
+    /**
+     * Name of the zone map file of a table file
+     **/
+    public static String fileName(String tblfile) {
+        String tabname = tblfile.endsWith(".tbl") ? tblfile.substring(0, tblfile.length() - 4) : tblfile;
+        return tabname + ".zm";
+    }
+
+    public int getNumPages() {
+        return numpages;
+    }
+
+    /**
+     * Accounts for a tuple written to the given page, pages are written in order
+     **/
+    public void add(int page, Tuple tuple) {
+        while (numpages <= page) {
+            if (numpages == capacity) {
+                grow();
+            }
+            for (int c = 0; c < columns.length; ++c) {
+                min[c][numpages] = types[c] == Attribute.INT ? Integer.MAX_VALUE : Float.floatToIntBits(Float.POSITIVE_INFINITY);
+                max[c][numpages] = types[c] == Attribute.INT ? Integer.MIN_VALUE : Float.floatToIntBits(Float.NEGATIVE_INFINITY);
+            }
+            numpages++;
+        }
+        for (int c = 0; c < columns.length; ++c) {
+            if (types[c] == Attribute.INT) {
+                int v = tuple.getInt(columns[c]);
+                if (v < min[c][page]) min[c][page] = v;
+                if (v > max[c][page]) max[c][page] = v;
+            } else {
+                float v = tuple.getFloat(columns[c]);
+                if (v < Float.intBitsToFloat(min[c][page])) min[c][page] = Float.floatToIntBits(v);
+                if (v > Float.intBitsToFloat(max[c][page])) max[c][page] = Float.floatToIntBits(v);
+            }
+        }
+    }
+
+    private void grow() {
+        capacity *= 2;
+        for (int c = 0; c < columns.length; ++c) {
+            min[c] = Arrays.copyOf(min[c], capacity);
+            max[c] = Arrays.copyOf(max[c], capacity);
+        }
+    }
+
+    /**
+     * Writes the zone map of the table file, which must be complete
+     **/
+    public void write(String tblfile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName(tblfile))))) {
+            out.writeInt(MAGIC);
+            out.writeLong(new File(tblfile).length());
+            out.writeInt(columns.length);
+            for (int c = 0; c < columns.length; ++c) {
+                out.writeInt(columns[c]);
+                out.writeInt(types[c]);
+            }
+            out.writeInt(numpages);
+            for (int c = 0; c < columns.length; ++c) {
+                for (int p = 0; p < numpages; ++p) {
+                    out.writeInt(min[c][p]);
+                    out.writeInt(max[c][p]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Zone map of the table file, null if there is none or if it is out of date
+     **/
+    public static ZoneMap read(String tblfile, Schema schema) {
+        File file = new File(fileName(tblfile));
+        if (!file.exists()) {
+            return null;
+        }
+        ZoneMap zonemap = new ZoneMap(schema);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != new File(tblfile).length()
+                    || in.readInt() != zonemap.columns.length) {
+                return null;
+            }
+            for (int c = 0; c < zonemap.columns.length; ++c) {
+                if (in.readInt() != zonemap.columns[c] || in.readInt() != zonemap.types[c]) {
+                    return null;
+                }
+            }
+            int numpages = in.readInt();
+            zonemap.numpages = numpages;
+            zonemap.capacity = numpages;
+            for (int c = 0; c < zonemap.columns.length; ++c) {
+                zonemap.min[c] = new int[numpages];
+                zonemap.max[c] = new int[numpages];
+                for (int p = 0; p < numpages; ++p) {
+                    zonemap.min[c][p] = in.readInt();
+                    zonemap.max[c][p] = in.readInt();
+                }
+            }
+        } catch (IOException io) {
+            System.out.println("ZoneMap: error in reading " + file.getName());
+            return null;
+        }
+        return zonemap;
+    }
+
+    /**
+     * Range - a condition attribute op constant on a column of the zone map
+     **/
+    public static class Range {
+        int column;     // Position of the column in the zone map
+        int type;       // Type of the column
+        int exprtype;   // Comparison of the condition
+        int ivalue;     // Constant of an INT column
+        float fvalue;   // Constant of a REAL column
+
+        Range(int column, int type, int exprtype) {
+            this.column = column;
+            this.type = type;
+            this.exprtype = exprtype;
+        }
+    }
+
+    /**
+     * Range of the select condition on the tuples of the given schema,
+     * * null if the condition does not compare a column of the zone map with a constant
+     **/
+    public Range compile(Condition con, Schema schema) {
+        con = Dictionary.codeCondition(con, schema);
+        int index = schema.indexOf(con.getLhs());
+        int exprtype = con.getExprType();
+        if (!(con.getRhs() instanceof String) || exprtype < Condition.LESSTHAN || exprtype > Condition.NOTEQUAL) {
+            return null;
+        }
+        for (int c = 0; c < columns.length; ++c) {
+            if (columns[c] != index || schema.typeOf(index) != types[c]) continue;
+            Range range = new Range(c, types[c], exprtype);
+            try {
+                if (types[c] == Attribute.INT) {
+                    range.ivalue = Integer.parseInt((String) con.getRhs());
+                } else {
+                    range.fvalue = Float.parseFloat((String) con.getRhs());
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return range;
+        }
+        return null;
+    }
+
+    /**
+     * Whether some tuple of the page might satisfy all the conditions
+     **/
+    public boolean mightMatch(int page, ArrayList<Range> ranges) {
+        if (page >= numpages) {
+            return true;
+        }
+        for (Range range : ranges) {
+            int lo = min[range.column][page];
+            int hi = max[range.column][page];
+            int cmplo, cmphi;
+            if (range.type == Attribute.INT) {
+                cmplo = Integer.compare(lo, range.ivalue);
+                cmphi = Integer.compare(hi, range.ivalue);
+            } else {
+                float flo = Float.intBitsToFloat(lo);
+                float fhi = Float.intBitsToFloat(hi);
+                cmplo = flo < range.fvalue ? -1 : (flo == range.fvalue ? 0 : 1);
+                cmphi = fhi < range.fvalue ? -1 : (fhi == range.fvalue ? 0 : 1);
+            }
+            boolean possible;
+            switch (range.exprtype) {
+                case Condition.LESSTHAN:
+                    possible = cmplo < 0;
+                    break;
+                case Condition.GREATERTHAN:
+                    possible = cmphi > 0;
+                    break;
+                case Condition.LTOE:
+                    possible = cmplo <= 0;
+                    break;
+                case Condition.GTOE:
+                    possible = cmphi >= 0;
+                    break;
+                case Condition.EQUAL:
+                    possible = cmplo <= 0 && cmphi >= 0;
+                    break;
+                default:
+                    possible = !(cmplo == 0 && cmphi == 0);
+                    break;
+            }
+            if (!possible) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,5 @@
+SELECT EMPLOYEES.salary,COUNT(EMPLOYEES.eid)
+FROM EMPLOYEES
+GROUPBY EMPLOYEES.salary
+ORDERBY COUNT(EMPLOYEES.eid), EMPLOYEES.salary DESC
+LIMIT 10
\ No newline at end of file
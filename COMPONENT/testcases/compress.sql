@@ -0,0 +1,4 @@
+SELECT EMPLOYEES.eid,EMPLOYEES.salary,CERTIFIED.aid
+FROM EMPLOYEES,CERTIFIED
+WHERE EMPLOYEES.eid=CERTIFIED.eid,EMPLOYEES.salary>"99000"
+ORDERBY EMPLOYEES.eid,CERTIFIED.aid ASC
\ No newline at end of file
@@ -0,0 +1,4 @@
+SELECT EMPLOYEES.ename,EMPLOYEES.eid
+FROM EMPLOYEES
+WHERE EMPLOYEES.ename>="aa",EMPLOYEES.ename<"ac"
+ORDERBY EMPLOYEES.ename,EMPLOYEES.eid ASC
\ No newline at end of file
@@ -0,0 +1,3 @@
+SELECT COUNT(EMPLOYEES.eid),SUM(EMPLOYEES.salary),MAX(EMPLOYEES.ename)
+FROM EMPLOYEES
+WHERE EMPLOYEES.salary<"0"
\ No newline at end of file
@@ -0,0 +1,4 @@
+SELECT DISTINCT EMPLOYEES.salary
+FROM EMPLOYEES
+WHERE EMPLOYEES.salary<"5000"
+ORDERBY EMPLOYEES.salary ASC
\ No newline at end of file
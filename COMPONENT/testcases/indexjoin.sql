@@ -0,0 +1,4 @@
+SELECT TEST.NAME,CERTIFIED.eid,CERTIFIED.aid
+FROM TEST,CERTIFIED
+WHERE TEST.ID=CERTIFIED.eid
+ORDERBY TEST.NAME,CERTIFIED.eid,CERTIFIED.aid ASC
\ No newline at end of file
@@ -0,0 +1,4 @@
+SELECT CERTIFIED.eid
+FROM CERTIFIED
+WHERE CERTIFIED.eid>="100",CERTIFIED.eid<"140"
+ORDERBY CERTIFIED.eid ASC
\ No newline at end of file
@@ -0,0 +1,4 @@
+SELECT *
+FROM CERTIFIED
+WHERE CERTIFIED.eid>="100",CERTIFIED.eid<"140"
+ORDERBY CERTIFIED.aid,CERTIFIED.eid ASC
\ No newline at end of file
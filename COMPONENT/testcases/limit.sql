@@ -0,0 +1,3 @@
+SELECT *
+FROM EMPLOYEES
+LIMIT 10
\ No newline at end of file
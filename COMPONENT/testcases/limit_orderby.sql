@@ -0,0 +1,4 @@
+SELECT *
+FROM EMPLOYEES
+ORDERBY EMPLOYEES.salary, EMPLOYEES.eid DESC
+LIMIT 10
\ No newline at end of file
@@ -0,0 +1,3 @@
+SELECT *
+FROM EMPLOYEES
+LIMIT 5 OFFSET 20
\ No newline at end of file
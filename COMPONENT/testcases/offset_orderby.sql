@@ -0,0 +1,4 @@
+SELECT *
+FROM EMPLOYEES
+ORDERBY EMPLOYEES.eid ASC
+LIMIT 5 OFFSET 20
\ No newline at end of file
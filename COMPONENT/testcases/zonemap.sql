@@ -0,0 +1,3 @@
+SELECT *
+FROM EMPLOYEES
+WHERE EMPLOYEES.salary>"99900"
\ No newline at end of file